@@ -33,6 +33,7 @@ package edu.harvard.seas.pl.abcdatalog.ast;
  * #L%
  */
 
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -40,7 +41,10 @@ import edu.harvard.seas.pl.abcdatalog.ast.visitors.TermVisitor;
 import edu.harvard.seas.pl.abcdatalog.util.substitution.Substitution;
 
 /**
- * A zero-ary function symbol (i.e., a constant in Datalog).
+ * A zero-ary function symbol (i.e., a constant in Datalog). Every constant is
+ * also assigned a dense integer id when it is first created; the id can be
+ * used in place of the constant by data structures that store facts as rows of
+ * integers.
  *
  */
 public class Constant implements Term {
@@ -48,12 +52,28 @@ public class Constant implements Term {
 	 * Identifier of the constant.
 	 */
 	private final String name;
+	/**
+	 * Dense integer id of the constant.
+	 */
+	private final int id;
 
 	/**
 	 * A map for memoization.
 	 */
 	private static final ConcurrentMap<String, Constant> memo = new ConcurrentHashMap<>();
 
+	/**
+	 * The dictionary from ids to constants. It is stored in fixed-size chunks
+	 * so that growing it never copies the constants themselves. Writes are
+	 * guarded by the class lock; the volatile write of the outer array
+	 * publishes the most recently created constant.
+	 */
+	private static volatile Constant[][] dictionary = new Constant[16][];
+	private static int nextId = 0;
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
 	/**
 	 * Returns a constant with the given string identifier.
 	 * 
@@ -66,29 +86,95 @@ public class Constant implements Term {
 		if (c != null) {
 			return c;
 		}
-		// try creating it
-		c = new Constant(name);
-		Constant existing = memo.putIfAbsent(name, c);
-		if (existing != null) {
-			return existing;
+		// Create it atomically, so that ids are only handed out to constants
+		// that actually end up in the memo table.
+		return memo.computeIfAbsent(name, Constant::register);
+	}
+
+	/**
+	 * Returns the constant with the given id.
+	 * 
+	 * @param id
+	 *            the id
+	 * @return the constant
+	 * @throws IllegalArgumentException
+	 *             if no constant has been created with that id
+	 */
+	public static Constant fromId(int id) {
+		Constant[][] dict = dictionary;
+		Constant c = null;
+		if (id >= 0 && (id >>> CHUNK_BITS) < dict.length) {
+			Constant[] chunk = dict[id >>> CHUNK_BITS];
+			if (chunk != null) {
+				c = chunk[id & CHUNK_MASK];
+			}
+		}
+		if (c == null) {
+			throw new IllegalArgumentException("No constant has id " + id + ".");
+		}
+		return c;
+	}
+
+	/**
+	 * Returns the number of constants that have been created so far. Every
+	 * constant id is less than this number.
+	 * 
+	 * @return the number of constants
+	 */
+	public static synchronized int getNumberOfConstants() {
+		return nextId;
+	}
+
+	private static synchronized Constant register(String name) {
+		int id = nextId;
+		Constant[][] dict = dictionary;
+		int chunkIdx = id >>> CHUNK_BITS;
+		if (chunkIdx >= dict.length) {
+			dict = Arrays.copyOf(dict, dict.length * 2);
+		}
+		if (dict[chunkIdx] == null) {
+			dict[chunkIdx] = new Constant[CHUNK_SIZE];
 		}
+		Constant c = new Constant(name, id);
+		dict[chunkIdx][id & CHUNK_MASK] = c;
+		++nextId;
+		dictionary = dict;
 		return c;
 	}
 	
 	/**
-	 * Constructs a constant with the given name.
+	 * Constructs a constant with the given name and id.
 	 * 
 	 * @param name
 	 *            name
+	 * @param id
+	 *            id
 	 */
-	private Constant(String name) {
+	private Constant(String name, int id) {
 		this.name = name;
+		this.id = id;
 	}
 
 	public String getName() {
 		return name;
 	}
 
+	/**
+	 * Returns the dense integer id of this constant.
+	 * 
+	 * @return the id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public int hashCode() {
+		// Constants are interned, so equality is identity; the id is a cheap
+		// hash code that does not require inflating the object header.
+		return id;
+	}
+
 	@Override
 	public String toString() {
 		return this.getName();
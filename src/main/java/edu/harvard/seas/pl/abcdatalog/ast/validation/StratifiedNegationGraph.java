@@ -34,6 +34,8 @@ package edu.harvard.seas.pl.abcdatalog.ast.validation;
  */
 
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -89,6 +91,23 @@ class StratifiedNegationGraph {
 	}
 
 	public static StratifiedNegationGraph create(UnstratifiedProgram program) throws DatalogValidationException {
+		return create(program, 0);
+	}
+
+	/**
+	 * Stratifies the program. If maxStratumSize is zero, each strongly
+	 * connected component of the predicate dependency graph is its own
+	 * stratum. Otherwise, the components are first merged into the fewest
+	 * layers such that no predicate symbol negatively depends on a predicate
+	 * symbol in the same or a later layer. Each layer is then split into
+	 * groups of roughly equal size that hold at most maxStratumSize predicate
+	 * symbols, unless a single component is larger than that.
+	 */
+	public static StratifiedNegationGraph create(UnstratifiedProgram program, int maxStratumSize)
+			throws DatalogValidationException {
+		if (maxStratumSize < 0) {
+			throw new IllegalArgumentException("Maximum stratum size must not be negative.");
+		}
 		// Build dependency graph...
 		Digraph<PredicateSym, AnnotatedEdge> graph = new Digraph<>();
 		HeadVisitor<Void, PredicateSym> getHeadPred = (new HeadVisitorBuilder<Void, PredicateSym>())
@@ -138,6 +157,63 @@ class StratifiedNegationGraph {
 			}
 		}
 
+		if (maxStratumSize == 0) {
+			return new StratifiedNegationGraph(strata, predToStratumMap);
+		}
+		return coarsen(graph, strata, predToStratumMap, maxStratumSize);
+	}
+
+	private static StratifiedNegationGraph coarsen(Digraph<PredicateSym, AnnotatedEdge> graph,
+			List<Set<PredicateSym>> sccs, Map<PredicateSym, Integer> sccByPred, int maxStratumSize) {
+		// The components are in topological order, so the layer of a
+		// component is final by the time it is reached.
+		int nsccs = sccs.size();
+		int[] layerByScc = new int[nsccs];
+		int nlayers = 0;
+		for (int i = 0; i < nsccs; ++i) {
+			nlayers = Math.max(nlayers, layerByScc[i] + 1);
+			for (PredicateSym pred : sccs.get(i)) {
+				for (AnnotatedEdge edge : graph.getOutgoingEdges(pred)) {
+					int j = sccByPred.get(edge.getDest());
+					if (j != i) {
+						int layer = layerByScc[i] + (edge.isNegated() ? 1 : 0);
+						layerByScc[j] = Math.max(layerByScc[j], layer);
+					}
+				}
+			}
+		}
+		List<List<Set<PredicateSym>>> layers = new ArrayList<>();
+		int[] layerSizes = new int[nlayers];
+		for (int i = 0; i < nlayers; ++i) {
+			layers.add(new ArrayList<>());
+		}
+		for (int i = 0; i < nsccs; ++i) {
+			layers.get(layerByScc[i]).add(sccs.get(i));
+			layerSizes[layerByScc[i]] += sccs.get(i).size();
+		}
+
+		// Within a layer, components only depend positively on earlier ones,
+		// so consecutive runs of components can be grouped together.
+		List<Set<PredicateSym>> strata = new ArrayList<>();
+		for (int l = 0; l < nlayers; ++l) {
+			int ngroups = (layerSizes[l] - 1) / maxStratumSize + 1;
+			int target = (layerSizes[l] - 1) / ngroups + 1;
+			Set<PredicateSym> group = new HashSet<>();
+			for (Set<PredicateSym> scc : layers.get(l)) {
+				if (!group.isEmpty() && group.size() + scc.size() > target) {
+					strata.add(group);
+					group = new HashSet<>();
+				}
+				group.addAll(scc);
+			}
+			strata.add(group);
+		}
+		Map<PredicateSym, Integer> predToStratumMap = new HashMap<>();
+		for (int i = 0; i < strata.size(); ++i) {
+			for (PredicateSym pred : strata.get(i)) {
+				predToStratumMap.put(pred, i);
+			}
+		}
 		return new StratifiedNegationGraph(strata, predToStratumMap);
 	}
 
@@ -177,6 +253,8 @@ class StratifiedNegationGraph {
 
 				StratifiedNegationGraph g = StratifiedNegationGraph.create(v);
 				System.out.print("Stratification:\n\t" + g);
+				g = StratifiedNegationGraph.create(v, Integer.MAX_VALUE);
+				System.out.print("\nLayered stratification:\n\t" + g);
 			} catch (DatalogValidationException e) {
 				System.out.println("No stratification possible.");
 			}
@@ -192,6 +270,7 @@ class StratifiedNegationGraph {
 		test.accept("p :- not q. q :- not p.");
 		test.accept("tc :- edge.");
 		test.accept("p :- not q.");
+		test.accept("a :- e. b :- not a. c :- e. d :- not c. f :- b, d.");
 	}
 
 	@Override
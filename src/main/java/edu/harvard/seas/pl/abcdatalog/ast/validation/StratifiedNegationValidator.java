@@ -63,7 +63,33 @@ public final class StratifiedNegationValidator {
 	 *             if the given program cannot be stratified for negation
 	 */
 	public static StratifiedProgram validate(UnstratifiedProgram prog) throws DatalogValidationException {
-		StratifiedNegationGraph g = StratifiedNegationGraph.create(prog);
+		return validate(prog, 0);
+	}
+
+	/**
+	 * Validates that the given unstratified program can be stratified for
+	 * negation and returns a witness stratified program whose strata are
+	 * coarser than the strongly connected components of the predicate
+	 * dependency graph. The components are merged into the fewest layers that
+	 * respect negation, and each layer is split into groups of roughly equal
+	 * size holding at most maxStratumSize predicate symbols (a component
+	 * larger than that forms a group of its own). Passing
+	 * {@link Integer#MAX_VALUE} yields one stratum per layer; passing zero
+	 * yields one stratum per component, as {@link #validate(UnstratifiedProgram)}
+	 * does.
+	 * 
+	 * @param prog
+	 *            the unstratified program
+	 * @param maxStratumSize
+	 *            the maximum number of predicate symbols in a merged stratum,
+	 *            or zero to not merge components
+	 * @return the stratified program
+	 * @throws DatalogValidationException
+	 *             if the given program cannot be stratified for negation
+	 */
+	public static StratifiedProgram validate(UnstratifiedProgram prog, int maxStratumSize)
+			throws DatalogValidationException {
+		StratifiedNegationGraph g = StratifiedNegationGraph.create(prog, maxStratumSize);
 		return new StratifiedProgram() {
 
 			@Override
@@ -0,0 +1,122 @@
+package edu.harvard.seas.pl.abcdatalog.engine.bottomup;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.Premise;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.PremiseVisitor;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.PremiseVisitorBuilder;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexer;
+
+/**
+ * A utility class for determining which argument positions of the atoms in an
+ * annotated clause are bound when a {@link ClauseEvaluator} looks them up in a
+ * fact index. Engines can use these binding patterns to tell their fact
+ * indexers which combinations of positions are worth indexing (see
+ * {@link FactIndexer#addBindingPattern(edu.harvard.seas.pl.abcdatalog.ast.PredicateSym, Set)}).
+ *
+ */
+public final class BindingPatterns {
+
+	private BindingPatterns() {
+		// Cannot be instantiated.
+	}
+
+	/**
+	 * Invokes the action for every atom that is looked up while evaluating the
+	 * given clause, i.e., every annotated atom except the first one and every
+	 * negated atom. A negated atom is reported as an atom with the IDB
+	 * annotation, since that is how the clause evaluator looks it up. The
+	 * action receives the positions of the arguments that are bound at the time
+	 * of the lookup.
+	 * 
+	 * @param cl
+	 *            the clause
+	 * @param action
+	 *            the action
+	 */
+	public static void forEachLookup(SemiNaiveClause cl, BiConsumer<AnnotatedAtom, Set<Integer>> action) {
+		Set<Variable> boundVars = new HashSet<>();
+		PremiseVisitor<Boolean, Void> visitor = (new PremiseVisitorBuilder<Boolean, Void>())
+				.onAnnotatedAtom((atom, isFirst) -> {
+					if (!isFirst) {
+						action.accept(atom, getBoundPositions(atom.asUnannotatedAtom(), boundVars));
+					}
+					bindAll(atom.getArgs(), boundVars);
+					return null;
+				}).onNegatedAtom((atom, isFirst) -> {
+					PositiveAtom pos = atom.asPositiveAtom();
+					action.accept(new AnnotatedAtom(pos, AnnotatedAtom.Annotation.IDB),
+							getBoundPositions(pos, boundVars));
+					return null;
+				}).onBinaryUnifier((u, isFirst) -> {
+					bindAll(new Term[] { u.getLeft(), u.getRight() }, boundVars);
+					return null;
+				}).orNull();
+		boolean isFirst = true;
+		for (Premise p : cl.getBody()) {
+			p.accept(visitor, isFirst);
+			isFirst = false;
+		}
+	}
+
+	private static Set<Integer> getBoundPositions(PositiveAtom atom, Set<Variable> boundVars) {
+		Set<Integer> r = new HashSet<>();
+		Term[] args = atom.getArgs();
+		for (int i = 0; i < args.length; ++i) {
+			Term t = args[i];
+			if (t instanceof Constant || boundVars.contains(t)) {
+				r.add(i);
+			}
+		}
+		return r;
+	}
+
+	private static void bindAll(Term[] args, Set<Variable> boundVars) {
+		for (Term t : args) {
+			if (t instanceof Variable) {
+				boundVars.add((Variable) t);
+			}
+		}
+	}
+
+}
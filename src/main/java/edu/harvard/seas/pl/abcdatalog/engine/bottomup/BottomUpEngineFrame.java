@@ -81,6 +81,30 @@ public class BottomUpEngineFrame<E extends EvalManager> implements DatalogEngine
 		this.isInitialized = true;
 	}
 
+	/**
+	 * Updates the facts that can be derived from the program after some of its
+	 * initial facts have been inserted or deleted. This is only supported if
+	 * the evaluation manager is an {@link IncrementalEvalManager}.
+	 * 
+	 * @param insertions
+	 *            the inserted facts
+	 * @param deletions
+	 *            the deleted facts
+	 * @throws UnsupportedOperationException
+	 *             if the evaluation manager does not support updates
+	 * @throws IllegalArgumentException
+	 *             if one of the facts is not ground
+	 */
+	public synchronized void update(Set<PositiveAtom> insertions, Set<PositiveAtom> deletions) {
+		if (!this.isInitialized) {
+			throw new IllegalStateException("Engine must be initialized before it can be updated.");
+		}
+		if (!(this.manager instanceof IncrementalEvalManager)) {
+			throw new UnsupportedOperationException("The evaluation manager does not support incremental updates.");
+		}
+		this.facts = ((IncrementalEvalManager) this.manager).update(insertions, deletions);
+	}
+
 	@Override
 	public Set<PositiveAtom> query(PositiveAtom q) {
 		if (!this.isInitialized) {
@@ -33,13 +33,18 @@ package edu.harvard.seas.pl.abcdatalog.engine.bottomup;
  * #L%
  */
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import edu.harvard.seas.pl.abcdatalog.ast.BinaryDisunifier;
 import edu.harvard.seas.pl.abcdatalog.ast.BinaryUnifier;
@@ -67,33 +72,148 @@ import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
  *
  */
 public class ClauseEvaluator {
-	// TODO We can make this smarter by using fact that ahead of time we know
-	// which terms are going to be variables and which are going to be constant,
-	// so we can skip checks.
 	private final BiConsumer<PositiveAtom, ClauseSubstitution> newFact;
 	private final BiFunction<AnnotatedAtom, ClauseSubstitution, Iterable<PositiveAtom>> getFacts;
 	private final ClauseSubstitution substTemplate;
-	private final Consumer<PositiveAtom> firstAction;
+	private final Predicate<AnnotatedAtom> exactLookups;
+	/**
+	 * Matches the arguments of a fact against the first atom and evaluates
+	 * the rest of the clause.
+	 */
+	private final Consumer<Term[]> firstAction;
+	/**
+	 * The predicate symbol of the first atom of the clause.
+	 */
+	private final PredicateSym firstPred;
+	/**
+	 * The plan for the first atom of the clause.
+	 */
+	private final PremisePlan firstPlan;
+	/**
+	 * The second premise of the clause if it is an atom, in which case facts
+	 * can be evaluated in batches; null otherwise.
+	 */
+	private final AnnotatedAtom secondAtom;
+	/**
+	 * The positions in the substitution of the variables that are bound by the
+	 * first atom and determine the lookup for the second atom.
+	 */
+	private final int[] keySlots;
+	/**
+	 * Matches a fact that has been looked up for the second atom and evaluates
+	 * the rest of the clause.
+	 */
+	private final BiConsumer<PositiveAtom, ClauseSubstitution> secondAction;
 
 	public ClauseEvaluator(SemiNaiveClause cl, BiConsumer<PositiveAtom, ClauseSubstitution> newFact,
 			BiFunction<AnnotatedAtom, ClauseSubstitution, Iterable<PositiveAtom>> getFacts) {
+		this(cl, newFact, getFacts, false);
+	}
+
+	/**
+	 * Constructs an evaluator for the given clause.
+	 * 
+	 * @param cl
+	 *            the clause
+	 * @param newFact
+	 *            an anonymous function that is invoked with the head of the
+	 *            clause and a substitution whenever a fact is derived
+	 * @param getFacts
+	 *            an anonymous function that returns the facts that might unify
+	 *            with an atom under a substitution
+	 * @param compile
+	 *            whether to compile the clause into flat arrays of operations
+	 *            (see {@link CompiledClause}) instead of a chain of anonymous
+	 *            functions
+	 */
+	public ClauseEvaluator(SemiNaiveClause cl, BiConsumer<PositiveAtom, ClauseSubstitution> newFact,
+			BiFunction<AnnotatedAtom, ClauseSubstitution, Iterable<PositiveAtom>> getFacts, boolean compile) {
+		this(cl, newFact, getFacts, compile, atom -> false);
+	}
+
+	/**
+	 * Constructs an evaluator for the given clause.
+	 * 
+	 * @param cl
+	 *            the clause
+	 * @param newFact
+	 *            an anonymous function that is invoked with the head of the
+	 *            clause and a substitution whenever a fact is derived
+	 * @param getFacts
+	 *            an anonymous function that returns the facts that might unify
+	 *            with an atom under a substitution
+	 * @param compile
+	 *            whether to compile the clause into flat arrays of operations
+	 *            (see {@link CompiledClause}) instead of a chain of anonymous
+	 *            functions
+	 * @param exactLookups
+	 *            an anonymous function that returns whether the facts returned
+	 *            by getFacts for an atom are guaranteed to agree with it on
+	 *            every bound position, in which case those positions are not
+	 *            checked again
+	 */
+	public ClauseEvaluator(SemiNaiveClause cl, BiConsumer<PositiveAtom, ClauseSubstitution> newFact,
+			BiFunction<AnnotatedAtom, ClauseSubstitution, Iterable<PositiveAtom>> getFacts, boolean compile,
+			Predicate<AnnotatedAtom> exactLookups) {
 		assert !cl.getBody().isEmpty();
 		this.newFact = newFact;
 		this.getFacts = getFacts;
 		this.substTemplate = new ClauseSubstitution(cl);
+		this.exactLookups = exactLookups;
 
-		Consumer<ClauseSubstitution> secondAction = makeAction(cl, 1);
-		this.firstAction = cl.getBody().get(0).accept(new CrashPremiseVisitor<Void, Consumer<PositiveAtom>>() {
-			@Override
-			public Consumer<PositiveAtom> visit(AnnotatedAtom atom, Void nothing) {
-				return fact -> {
-					ClauseSubstitution s = substTemplate.getCleanCopy();
-					if (unifyAtomWithFact(atom.asUnannotatedAtom(), fact, s)) {
-						secondAction.accept(s);
-					}
-				};
+		List<Premise> body = cl.getBody();
+		this.firstPred = cl.getFirstAtom().getPred();
+		this.firstPlan = new PremisePlan(cl.getFirstAtom().getArgs(), this.substTemplate, 0, false);
+		this.secondAtom = body.size() > 1 && body.get(1) instanceof AnnotatedAtom ? (AnnotatedAtom) body.get(1)
+				: null;
+		this.keySlots = this.secondAtom == null ? null : getKeySlots(this.secondAtom, this.substTemplate);
+
+		if (compile) {
+			CompiledClause compiled = new CompiledClause(cl, newFact, getFacts, exactLookups, this.substTemplate);
+			this.firstAction = compiled;
+			this.secondAction = (fact, s) -> compiled.resume(1, fact, s);
+			return;
+		}
+
+		Consumer<ClauseSubstitution> rest = makeAction(cl, 1);
+		this.firstAction = args -> {
+			// The first fact is handed to the evaluator, not looked up.
+			ClauseSubstitution s = substTemplate.getCleanCopy();
+			if (firstPlan.match(args, s)) {
+				rest.accept(s);
 			}
-		}, null);
+		};
+		if (this.secondAtom == null) {
+			this.secondAction = null;
+		} else {
+			PremisePlan plan = new PremisePlan(this.secondAtom.getArgs(), this.substTemplate, 1,
+					exactLookups.test(this.secondAtom));
+			Consumer<ClauseSubstitution> third = makeAction(cl, 2);
+			this.secondAction = (fact, s) -> {
+				s.resetState(1);
+				if (plan.match(fact.getArgs(), s)) {
+					third.accept(s);
+				}
+			};
+		}
+	}
+
+	private static int[] getKeySlots(AnnotatedAtom atom, ClauseSubstitution substTemplate) {
+		int start = substTemplate.getStartIndex(1);
+		List<Integer> slots = new ArrayList<>();
+		for (Term t : atom.getArgs()) {
+			if (t instanceof Variable) {
+				int slot = substTemplate.getIndex((Variable) t);
+				if (slot < start && !slots.contains(slot)) {
+					slots.add(slot);
+				}
+			}
+		}
+		int[] r = new int[slots.size()];
+		for (int i = 0; i < r.length; ++i) {
+			r[i] = slots.get(i);
+		}
+		return r;
 	}
 
 	private Consumer<ClauseSubstitution> makeAction(SemiNaiveClause cl, int i) {
@@ -111,13 +231,14 @@ public class ClauseEvaluator {
 		return cl.getBody().get(i).accept(new CrashPremiseVisitor<Integer, Consumer<ClauseSubstitution>>() {
 			@Override
 			public Consumer<ClauseSubstitution> visit(AnnotatedAtom atom, Integer i) {
+				PremisePlan plan = new PremisePlan(atom.getArgs(), substTemplate, i, exactLookups.test(atom));
 				return s -> {
 					s.resetState(i); // TODO is this necessary?
 					Iterator<PositiveAtom> iter = getFacts.apply(atom, s).iterator();
 					while (iter.hasNext()) {
 						s.resetState(i);
 						PositiveAtom fact = iter.next();
-						if (unifyAtomWithFact(atom.asUnannotatedAtom(), fact, s)) {
+						if (plan.match(fact.getArgs(), s)) {
 							nextAction.accept(s);
 						}
 					}
@@ -126,14 +247,14 @@ public class ClauseEvaluator {
 
 			@Override
 			public Consumer<ClauseSubstitution> visit(NegatedAtom atom, Integer i) {
+				AnnotatedAtom lookup = new AnnotatedAtom(atom.asPositiveAtom(), AnnotatedAtom.Annotation.IDB);
+				PremisePlan plan = new PremisePlan(atom.getArgs(), substTemplate, i, exactLookups.test(lookup));
 				return s -> {
-					Iterator<PositiveAtom> iter = getFacts
-							.apply(new AnnotatedAtom(atom.asPositiveAtom(), AnnotatedAtom.Annotation.IDB), s)
-							.iterator();
+					Iterator<PositiveAtom> iter = getFacts.apply(lookup, s).iterator();
 					while (iter.hasNext()) {
 						s.resetState(i);
 						PositiveAtom fact = iter.next();
-						if (unifyAtomWithFact(atom.asPositiveAtom(), fact, s)) {
+						if (plan.match(fact.getArgs(), s)) {
 							return;
 						}
 					}
@@ -161,21 +282,108 @@ public class ClauseEvaluator {
 		}, i);
 	}
 
-	private boolean unifyAtomWithFact(PositiveAtom atom, PositiveAtom fact, ClauseSubstitution s) {
-		assert atom.getPred().equals(fact.getPred());
-		Term[] atomArgs = atom.getArgs();
-		Term[] factArgs = fact.getArgs();
-		for (int i = 0; i < atomArgs.length; ++i) {
-			// if (!unifyTerms(atomArgs[i], factArgs[i], s)) {
-			if (!TermHelpers.unify(atomArgs[i], factArgs[i], s)) {
-				return false;
+	/**
+	 * Evaluates the clause starting from a fact that matches the first atom
+	 * in its body.
+	 * 
+	 * @param newFact
+	 *            the fact, whose predicate symbol has to be that of the first
+	 *            atom
+	 */
+	public void evaluate(PositiveAtom newFact) {
+		assert newFact.getPred().equals(this.firstPred);
+		this.firstAction.accept(newFact.getArgs());
+	}
+
+	/**
+	 * Evaluates the clause starting from a binding of the variables of the
+	 * first atom in its body, given as the arguments that the atom takes
+	 * under the binding. Unlike {@link #evaluate(PositiveAtom)}, this does not
+	 * assume that there is a fact for the first atom, which can thus stand for
+	 * a binding that comes from elsewhere (e.g., from the head of the clause,
+	 * to find the derivations of a given fact).
+	 * 
+	 * @param args
+	 *            the arguments, which have to be constants and have the arity
+	 *            of the first atom
+	 */
+	public void evaluateBinding(Term[] args) {
+		assert args.length == this.firstPred.getArity();
+		this.firstAction.accept(args);
+	}
+
+	/**
+	 * Evaluates the clause on a batch of facts, each of which is treated as if
+	 * it had been passed to {@link #evaluate(PositiveAtom)}. The facts are
+	 * grouped by the values they bind for the lookup of the second premise, so
+	 * that each distinct lookup is made once per batch and only one
+	 * substitution is allocated per group. The results of a lookup are
+	 * materialized if they are shared by several facts, so the facts looked
+	 * up should not change while the batch is being evaluated, or it should
+	 * not matter if some of the changes are missed.
+	 * 
+	 * @param newFacts
+	 *            the facts
+	 */
+	public void evaluate(Collection<PositiveAtom> newFacts) {
+		if (this.secondAtom == null || newFacts.size() < 2) {
+			for (PositiveAtom fact : newFacts) {
+				this.evaluate(fact);
+			}
+			return;
+		}
+
+		Map<Object, List<PositiveAtom>> groups = new LinkedHashMap<>();
+		ClauseSubstitution s = this.substTemplate.getCleanCopy();
+		for (PositiveAtom fact : newFacts) {
+			assert fact.getPred().equals(this.firstPred);
+			s.resetState(0);
+			if (this.firstPlan.match(fact.getArgs(), s)) {
+				Object key = getKey(s);
+				List<PositiveAtom> group = groups.get(key);
+				if (group == null) {
+					group = new ArrayList<>();
+					groups.put(key, group);
+				}
+				group.add(fact);
+			}
+		}
+
+		for (List<PositiveAtom> group : groups.values()) {
+			s.resetState(0);
+			this.firstPlan.match(group.get(0).getArgs(), s);
+			s.resetState(1);
+			Iterable<PositiveAtom> matches = this.getFacts.apply(this.secondAtom, s);
+			if (group.size() > 1) {
+				List<PositiveAtom> l = new ArrayList<>();
+				for (PositiveAtom match : matches) {
+					l.add(match);
+				}
+				matches = l;
+			}
+			for (PositiveAtom fact : group) {
+				s.resetState(0);
+				this.firstPlan.match(fact.getArgs(), s);
+				for (PositiveAtom match : matches) {
+					this.secondAction.accept(match, s);
+				}
 			}
 		}
-		return true;
 	}
 
-	public void evaluate(PositiveAtom newFact) {
-		this.firstAction.accept(newFact);
+	private Object getKey(ClauseSubstitution s) {
+		switch (this.keySlots.length) {
+		case 0:
+			return Collections.emptyList();
+		case 1:
+			return s.get(this.keySlots[0]);
+		default:
+			Constant[] key = new Constant[this.keySlots.length];
+			for (int i = 0; i < key.length; ++i) {
+				key[i] = s.get(this.keySlots[i]);
+			}
+			return Arrays.asList(key);
+		}
 	}
 
 	public static void main(String[] args) {
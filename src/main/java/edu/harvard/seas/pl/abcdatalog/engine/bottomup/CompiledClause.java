@@ -0,0 +1,237 @@
+package edu.harvard.seas.pl.abcdatalog.engine.bottomup;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import edu.harvard.seas.pl.abcdatalog.ast.BinaryDisunifier;
+import edu.harvard.seas.pl.abcdatalog.ast.BinaryUnifier;
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.NegatedAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.Premise;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.CrashHeadVisitor;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.CrashPremiseVisitor;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
+
+/**
+ * A clause that has been compiled into flat arrays of operations, so that it
+ * can be evaluated by a single loop without visitor dispatch or chains of
+ * anonymous functions. Facts are matched against each premise using a
+ * {@link PremisePlan}.
+ *
+ */
+final class CompiledClause implements Consumer<Term[]> {
+	// Kinds of premises.
+	private static final byte ATOM = 0;
+	private static final byte NEGATED = 1;
+	private static final byte UNIFY = 2;
+	private static final byte DISUNIFY = 3;
+
+	private final BiConsumer<PositiveAtom, ClauseSubstitution> newFact;
+	private final BiFunction<AnnotatedAtom, ClauseSubstitution, Iterable<PositiveAtom>> getFacts;
+	private final ClauseSubstitution substTemplate;
+	private final PositiveAtom head;
+
+	private final byte[] kinds;
+	/**
+	 * The atoms that are looked up, for atoms and negated atoms.
+	 */
+	private final AnnotatedAtom[] atoms;
+	/**
+	 * The plan for each premise. The arguments of a unifier or disunifier are
+	 * its left and right terms.
+	 */
+	private final PremisePlan[] plans;
+
+	public CompiledClause(SemiNaiveClause cl, BiConsumer<PositiveAtom, ClauseSubstitution> newFact,
+			BiFunction<AnnotatedAtom, ClauseSubstitution, Iterable<PositiveAtom>> getFacts,
+			Predicate<AnnotatedAtom> exactLookups, ClauseSubstitution substTemplate) {
+		this.newFact = newFact;
+		this.getFacts = getFacts;
+		this.substTemplate = substTemplate;
+		this.head = cl.getHead().accept(new CrashHeadVisitor<Void, PositiveAtom>() {
+			@Override
+			public PositiveAtom visit(PositiveAtom atom, Void nothing) {
+				return atom;
+			}
+		}, null);
+
+		List<Premise> body = cl.getBody();
+		int n = body.size();
+		this.kinds = new byte[n];
+		this.atoms = new AnnotatedAtom[n];
+		this.plans = new PremisePlan[n];
+		for (int i = 0; i < n; ++i) {
+			final int conj = i;
+			Term[] args = body.get(i).accept(new CrashPremiseVisitor<Void, Term[]>() {
+				@Override
+				public Term[] visit(AnnotatedAtom atom, Void nothing) {
+					kinds[conj] = ATOM;
+					atoms[conj] = atom;
+					return atom.getArgs();
+				}
+
+				@Override
+				public Term[] visit(NegatedAtom atom, Void nothing) {
+					kinds[conj] = NEGATED;
+					atoms[conj] = new AnnotatedAtom(atom.asPositiveAtom(), AnnotatedAtom.Annotation.IDB);
+					return atom.getArgs();
+				}
+
+				@Override
+				public Term[] visit(BinaryUnifier u, Void nothing) {
+					kinds[conj] = UNIFY;
+					return new Term[] { u.getLeft(), u.getRight() };
+				}
+
+				@Override
+				public Term[] visit(BinaryDisunifier u, Void nothing) {
+					kinds[conj] = DISUNIFY;
+					return new Term[] { u.getLeft(), u.getRight() };
+				}
+			}, null);
+			// The first atom is matched against facts that are handed to the
+			// evaluator, not looked up.
+			boolean exact = i > 0 && this.atoms[i] != null && exactLookups.test(this.atoms[i]);
+			this.plans[i] = new PremisePlan(args, substTemplate, i, exact);
+			if (this.kinds[i] == UNIFY) {
+				// Both sides of a unifier are resolved before either is bound.
+				PremisePlan plan = this.plans[i];
+				boolean rightFree = plan.kinds[1] == PremisePlan.BIND
+						|| (plan.kinds[1] == PremisePlan.CHECK && plan.slots[1] >= substTemplate.getStartIndex(i));
+				if (plan.kinds[0] == PremisePlan.BIND && rightFree) {
+					throw new IllegalArgumentException("Cannot unify two variables.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the clause starting from the arguments of a fact that matches
+	 * the first atom, or of a binding of its variables.
+	 * 
+	 * @param args
+	 *            the arguments
+	 */
+	@Override
+	public void accept(Term[] args) {
+		ClauseSubstitution s = this.substTemplate.getCleanCopy();
+		if (this.plans[0].match(args, s)) {
+			this.eval(1, s);
+		}
+	}
+
+	/**
+	 * Matches a fact that has been looked up for the given premise, which must
+	 * be an atom, and evaluates the rest of the clause.
+	 * 
+	 * @param i
+	 *            the index of the premise
+	 * @param fact
+	 *            the fact
+	 * @param s
+	 *            the substitution, which binds the variables of the premises
+	 *            before the given one
+	 */
+	void resume(int i, PositiveAtom fact, ClauseSubstitution s) {
+		assert this.kinds[i] == ATOM;
+		s.resetState(i);
+		if (this.plans[i].match(fact.getArgs(), s)) {
+			this.eval(i + 1, s);
+		}
+	}
+
+	private void eval(int i, ClauseSubstitution s) {
+		if (i == this.kinds.length) {
+			this.newFact.accept(this.head, s);
+			return;
+		}
+		s.resetState(i);
+		PremisePlan plan = this.plans[i];
+		switch (this.kinds[i]) {
+		case ATOM:
+			for (PositiveAtom fact : this.getFacts.apply(this.atoms[i], s)) {
+				s.resetState(i);
+				if (plan.match(fact.getArgs(), s)) {
+					this.eval(i + 1, s);
+				}
+			}
+			break;
+		case NEGATED:
+			for (PositiveAtom fact : this.getFacts.apply(this.atoms[i], s)) {
+				s.resetState(i);
+				if (plan.match(fact.getArgs(), s)) {
+					return;
+				}
+			}
+			s.resetState(i);
+			this.eval(i + 1, s);
+			break;
+		case UNIFY:
+			if (unify(plan, s)) {
+				this.eval(i + 1, s);
+			}
+			break;
+		case DISUNIFY:
+			if (!unify(plan, s)) {
+				s.resetState(i);
+				this.eval(i + 1, s);
+			}
+			break;
+		default:
+			throw new AssertionError();
+		}
+	}
+
+	private static boolean unify(PremisePlan plan, ClauseSubstitution s) {
+		if (plan.kinds[0] == PremisePlan.BIND) {
+			s.push(plan.value(1, s));
+			return true;
+		}
+		Constant left = plan.value(0, s);
+		if (plan.kinds[1] == PremisePlan.BIND) {
+			s.push(left);
+			return true;
+		}
+		return left == plan.value(1, s);
+	}
+
+}
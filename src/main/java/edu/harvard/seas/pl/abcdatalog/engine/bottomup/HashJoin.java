@@ -0,0 +1,458 @@
+package edu.harvard.seas.pl.abcdatalog.engine.bottomup;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import edu.harvard.seas.pl.abcdatalog.ast.BinaryDisunifier;
+import edu.harvard.seas.pl.abcdatalog.ast.BinaryUnifier;
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.NegatedAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.Premise;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.CrashHeadVisitor;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.CrashPremiseVisitor;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
+
+/**
+ * An evaluator that derives the facts derivable from a clause given a whole
+ * set of facts for its first atom, instead of one fact at a time. The premises
+ * are joined in order, with each intermediate result held as a list of rows
+ * of constants, indexed by substitution slot. Each atom is joined by building
+ * a hash table on the smaller side, i.e., either on the rows so far or on the
+ * facts for the atom, and probing it with the other side; negated atoms are
+ * evaluated as anti-joins. Before they are reported, the derived facts are
+ * deduplicated and filtered by a bulk anti-join against the facts already
+ * known for the head.
+ *
+ * This is cheaper than evaluating a fact at a time when the set of facts is
+ * large compared to the relations it is joined with, since every relation is
+ * then scanned once instead of being probed once per fact.
+ *
+ */
+public class HashJoin {
+	// Kinds of premises.
+	private static final byte ATOM = 0;
+	private static final byte NEGATED = 1;
+	private static final byte UNIFY = 2;
+	private static final byte DISUNIFY = 3;
+
+	private final SemiNaiveClause clause;
+	private final BiConsumer<PositiveAtom, ClauseSubstitution> newFact;
+	private final Function<AnnotatedAtom, Iterable<PositiveAtom>> getFacts;
+	private final ClauseSubstitution substTemplate;
+	private final PositiveAtom head;
+	/**
+	 * The atom that is looked up to find the facts already known for the head.
+	 */
+	private final AnnotatedAtom headLookup;
+	private final int nvars;
+
+	private final byte[] kinds;
+	/**
+	 * The atoms that are looked up, for atoms and negated atoms.
+	 */
+	private final AnnotatedAtom[] atoms;
+	/**
+	 * The arguments of each premise. The arguments of a unifier or disunifier
+	 * are its left and right terms.
+	 */
+	private final Term[][] args;
+	/**
+	 * For each argument of each premise, its substitution slot, or -1 if it is
+	 * a constant.
+	 */
+	private final int[][] slots;
+	/**
+	 * For each argument of each premise, the earlier argument of the premise
+	 * with the same variable, or -1 if there is none.
+	 */
+	private final int[][] repeats;
+	/**
+	 * For each premise, the arguments (first occurrences only) whose variables
+	 * are bound by earlier premises.
+	 */
+	private final int[][] keys;
+	/**
+	 * For each premise, the arguments (first occurrences only) whose variables
+	 * are bound by the premise.
+	 */
+	private final int[][] binds;
+
+	/**
+	 * Constructs a hash join evaluator for the clause.
+	 *
+	 * @param cl
+	 *            the clause
+	 * @param newFact
+	 *            an anonymous function that is invoked with the head of the
+	 *            clause and a substitution whenever a new fact is derived
+	 * @param getFacts
+	 *            an anonymous function that returns the facts that might unify
+	 *            with an atom
+	 */
+	public HashJoin(SemiNaiveClause cl, BiConsumer<PositiveAtom, ClauseSubstitution> newFact,
+			Function<AnnotatedAtom, Iterable<PositiveAtom>> getFacts) {
+		this.clause = cl;
+		this.newFact = newFact;
+		this.getFacts = getFacts;
+		this.substTemplate = new ClauseSubstitution(cl);
+		this.head = cl.getHead().accept(new CrashHeadVisitor<Void, PositiveAtom>() {
+			@Override
+			public PositiveAtom visit(PositiveAtom atom, Void nothing) {
+				return atom;
+			}
+		}, null);
+		this.headLookup = new AnnotatedAtom(this.head, AnnotatedAtom.Annotation.IDB);
+
+		List<Premise> body = cl.getBody();
+		int n = body.size();
+		this.kinds = new byte[n];
+		this.atoms = new AnnotatedAtom[n];
+		this.args = new Term[n][];
+		this.slots = new int[n][];
+		this.repeats = new int[n][];
+		this.keys = new int[n][];
+		this.binds = new int[n][];
+		int nvars = 0;
+		for (int i = 0; i < n; ++i) {
+			final int conj = i;
+			this.args[i] = body.get(i).accept(new CrashPremiseVisitor<Void, Term[]>() {
+				@Override
+				public Term[] visit(AnnotatedAtom atom, Void nothing) {
+					kinds[conj] = ATOM;
+					atoms[conj] = atom;
+					return atom.getArgs();
+				}
+
+				@Override
+				public Term[] visit(NegatedAtom atom, Void nothing) {
+					kinds[conj] = NEGATED;
+					atoms[conj] = new AnnotatedAtom(atom.asPositiveAtom(), AnnotatedAtom.Annotation.IDB);
+					return atom.getArgs();
+				}
+
+				@Override
+				public Term[] visit(BinaryUnifier u, Void nothing) {
+					kinds[conj] = UNIFY;
+					return new Term[] { u.getLeft(), u.getRight() };
+				}
+
+				@Override
+				public Term[] visit(BinaryDisunifier u, Void nothing) {
+					kinds[conj] = DISUNIFY;
+					return new Term[] { u.getLeft(), u.getRight() };
+				}
+			}, null);
+
+			Term[] ts = this.args[i];
+			int start = this.substTemplate.getStartIndex(i);
+			this.slots[i] = new int[ts.length];
+			this.repeats[i] = new int[ts.length];
+			List<Integer> key = new ArrayList<>();
+			List<Integer> bind = new ArrayList<>();
+			for (int j = 0; j < ts.length; ++j) {
+				int slot = ts[j] instanceof Variable ? this.substTemplate.getIndex((Variable) ts[j]) : -1;
+				this.slots[i][j] = slot;
+				this.repeats[i][j] = -1;
+				for (int k = 0; slot >= 0 && k < j; ++k) {
+					if (this.slots[i][k] == slot) {
+						this.repeats[i][j] = k;
+						break;
+					}
+				}
+				if (slot >= 0 && this.repeats[i][j] < 0) {
+					(slot < start ? key : bind).add(j);
+					nvars = Math.max(nvars, slot + 1);
+				}
+			}
+			this.keys[i] = toArray(key);
+			this.binds[i] = toArray(bind);
+			if (this.kinds[i] == UNIFY && this.binds[i].length == 2) {
+				throw new IllegalArgumentException("Cannot unify two variables.");
+			}
+		}
+		this.nvars = nvars;
+	}
+
+	private static int[] toArray(List<Integer> l) {
+		int[] r = new int[l.size()];
+		for (int i = 0; i < r.length; ++i) {
+			r[i] = l.get(i);
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the clause that this evaluator evaluates.
+	 *
+	 * @return the clause
+	 */
+	public SemiNaiveClause getClause() {
+		return this.clause;
+	}
+
+	/**
+	 * Derives all the facts that are derivable from the clause given the
+	 * current facts, where the first atom of the clause is matched against the
+	 * given facts. Only facts that are not already known for the head are
+	 * reported, each of them once.
+	 *
+	 * @param newFacts
+	 *            the facts for the first atom
+	 */
+	public void evaluate(Iterable<PositiveAtom> newFacts) {
+		List<Constant[]> rows = new ArrayList<>();
+		Constant[] empty = new Constant[this.nvars];
+		for (PositiveAtom fact : newFacts) {
+			if (this.matches(0, fact)) {
+				rows.add(this.extend(0, empty, fact));
+			}
+		}
+		for (int i = 1; i < this.kinds.length && !rows.isEmpty(); ++i) {
+			switch (this.kinds[i]) {
+			case ATOM:
+				rows = this.join(i, rows);
+				break;
+			case NEGATED:
+				rows = this.antiJoin(i, rows);
+				break;
+			case UNIFY:
+				// Fall through...
+			case DISUNIFY:
+				rows = this.unify(i, rows);
+				break;
+			default:
+				throw new AssertionError();
+			}
+		}
+		if (!rows.isEmpty()) {
+			this.report(rows);
+		}
+	}
+
+	private List<PositiveAtom> getMatchingFacts(int i) {
+		List<PositiveAtom> facts = new ArrayList<>();
+		for (PositiveAtom fact : this.getFacts.apply(this.atoms[i])) {
+			if (this.matches(i, fact)) {
+				facts.add(fact);
+			}
+		}
+		return facts;
+	}
+
+	private List<Constant[]> join(int i, List<Constant[]> rows) {
+		List<PositiveAtom> facts = this.getMatchingFacts(i);
+		List<Constant[]> r = new ArrayList<>();
+		if (rows.size() <= facts.size()) {
+			Map<Object, List<Constant[]>> table = new HashMap<>();
+			for (Constant[] row : rows) {
+				table.computeIfAbsent(this.rowKey(i, row), k -> new ArrayList<>()).add(row);
+			}
+			for (PositiveAtom fact : facts) {
+				List<Constant[]> matches = table.get(this.factKey(i, fact));
+				if (matches != null) {
+					for (Constant[] row : matches) {
+						r.add(this.extend(i, row, fact));
+					}
+				}
+			}
+		} else {
+			Map<Object, List<PositiveAtom>> table = new HashMap<>();
+			for (PositiveAtom fact : facts) {
+				table.computeIfAbsent(this.factKey(i, fact), k -> new ArrayList<>()).add(fact);
+			}
+			for (Constant[] row : rows) {
+				List<PositiveAtom> matches = table.get(this.rowKey(i, row));
+				if (matches != null) {
+					for (PositiveAtom fact : matches) {
+						r.add(this.extend(i, row, fact));
+					}
+				}
+			}
+		}
+		return r;
+	}
+
+	private List<Constant[]> antiJoin(int i, List<Constant[]> rows) {
+		Set<Object> table = new HashSet<>();
+		for (PositiveAtom fact : this.getMatchingFacts(i)) {
+			table.add(this.factKey(i, fact));
+		}
+		List<Constant[]> r = new ArrayList<>();
+		for (Constant[] row : rows) {
+			if (!table.contains(this.rowKey(i, row))) {
+				r.add(row);
+			}
+		}
+		return r;
+	}
+
+	private List<Constant[]> unify(int i, List<Constant[]> rows) {
+		boolean negated = this.kinds[i] == DISUNIFY;
+		int[] bind = this.binds[i];
+		List<Constant[]> r = new ArrayList<>();
+		for (Constant[] row : rows) {
+			if (bind.length == 0) {
+				if ((this.value(i, 0, row) == this.value(i, 1, row)) != negated) {
+					r.add(row);
+				}
+			} else {
+				assert !negated;
+				Constant[] extended = Arrays.copyOf(row, row.length);
+				int j = bind[0];
+				extended[this.slots[i][j]] = this.value(i, 1 - j, row);
+				r.add(extended);
+			}
+		}
+		return r;
+	}
+
+	private Constant value(int i, int j, Constant[] row) {
+		int slot = this.slots[i][j];
+		return slot < 0 ? (Constant) this.args[i][j] : row[slot];
+	}
+
+	/**
+	 * Reports the facts derived from the rows that are not already known.
+	 */
+	private void report(List<Constant[]> rows) {
+		Term[] headArgs = this.head.getArgs();
+		Map<PositiveAtom, Constant[]> derived = new LinkedHashMap<>();
+		for (Constant[] row : rows) {
+			Term[] factArgs = new Term[headArgs.length];
+			for (int j = 0; j < headArgs.length; ++j) {
+				Term t = headArgs[j];
+				factArgs[j] = t instanceof Variable ? row[this.substTemplate.getIndex((Variable) t)] : t;
+			}
+			derived.putIfAbsent(PositiveAtom.create(this.head.getPred(), factArgs), row);
+		}
+
+		// Anti-join against the known facts, iterating over the smaller side.
+		Iterable<PositiveAtom> known = this.getFacts.apply(this.headLookup);
+		if (known instanceof Set && ((Set<?>) known).size() > derived.size()) {
+			derived.keySet().removeIf(((Set<?>) known)::contains);
+		} else {
+			for (PositiveAtom fact : known) {
+				if (derived.remove(fact) != null && derived.isEmpty()) {
+					return;
+				}
+			}
+		}
+
+		for (Constant[] row : derived.values()) {
+			ClauseSubstitution s = this.substTemplate.getCleanCopy();
+			for (Constant c : row) {
+				s.push(c);
+			}
+			this.newFact.accept(this.head, s);
+		}
+	}
+
+	/**
+	 * Returns whether a fact matches the constants and repeated variables of a
+	 * premise.
+	 */
+	private boolean matches(int i, PositiveAtom fact) {
+		Term[] factArgs = fact.getArgs();
+		int[] ss = this.slots[i];
+		int[] rs = this.repeats[i];
+		for (int j = 0; j < ss.length; ++j) {
+			if (ss[j] < 0) {
+				if (factArgs[j] != this.args[i][j]) {
+					return false;
+				}
+			} else if (rs[j] >= 0 && factArgs[j] != factArgs[rs[j]]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Constant[] extend(int i, Constant[] row, PositiveAtom fact) {
+		Constant[] r = Arrays.copyOf(row, row.length);
+		Term[] factArgs = fact.getArgs();
+		for (int j : this.binds[i]) {
+			r[this.slots[i][j]] = (Constant) factArgs[j];
+		}
+		return r;
+	}
+
+	private Object rowKey(int i, Constant[] row) {
+		int[] ks = this.keys[i];
+		switch (ks.length) {
+		case 0:
+			return Collections.emptyList();
+		case 1:
+			return row[this.slots[i][ks[0]]];
+		default:
+			Constant[] key = new Constant[ks.length];
+			for (int k = 0; k < ks.length; ++k) {
+				key[k] = row[this.slots[i][ks[k]]];
+			}
+			return Arrays.asList(key);
+		}
+	}
+
+	private Object factKey(int i, PositiveAtom fact) {
+		int[] ks = this.keys[i];
+		Term[] factArgs = fact.getArgs();
+		switch (ks.length) {
+		case 0:
+			return Collections.emptyList();
+		case 1:
+			return factArgs[ks[0]];
+		default:
+			Term[] key = new Term[ks.length];
+			for (int k = 0; k < ks.length; ++k) {
+				key[k] = factArgs[ks[k]];
+			}
+			return Arrays.asList(key);
+		}
+	}
+
+}
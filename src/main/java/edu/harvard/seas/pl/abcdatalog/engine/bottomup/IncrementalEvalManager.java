@@ -0,0 +1,66 @@
+package edu.harvard.seas.pl.abcdatalog.engine.bottomup;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Set;
+
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.IndexableFactCollection;
+
+/**
+ * An evaluation manager that can maintain the facts it has derived when the
+ * initial facts of the program change, without evaluating the program from
+ * scratch.
+ *
+ */
+public interface IncrementalEvalManager extends EvalManager {
+	/**
+	 * Updates the derived facts after some initial facts have been inserted
+	 * into and others deleted from the program. Facts that are both inserted
+	 * and deleted are kept. This can only be invoked after the manager has
+	 * been evaluated.
+	 * 
+	 * @param insertions
+	 *            the inserted facts
+	 * @param deletions
+	 *            the deleted facts
+	 * @return the facts
+	 * @throws IllegalArgumentException
+	 *             if one of the facts is not ground
+	 * @throws UnsupportedOperationException
+	 *             if facts are deleted but the manager cannot remove facts;
+	 *             nothing is changed in that case
+	 */
+	IndexableFactCollection update(Set<PositiveAtom> insertions, Set<PositiveAtom> deletions);
+}
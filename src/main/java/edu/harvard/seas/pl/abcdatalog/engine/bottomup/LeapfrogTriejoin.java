@@ -0,0 +1,416 @@
+package edu.harvard.seas.pl.abcdatalog.engine.bottomup;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Clause;
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.Premise;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.CrashHeadVisitor;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
+
+/**
+ * An evaluator that derives all the facts derivable from a clause at once
+ * using leapfrog triejoin, a worst-case optimal multiway join. Instead of
+ * joining one atom at a time, it binds one variable at a time, intersecting
+ * the values that every atom containing the variable allows. This avoids the
+ * large intermediate results that pairwise joins produce on cyclic clause
+ * bodies, such as triangles.
+ * 
+ * Each time the clause is evaluated, the facts for each atom are projected
+ * onto the variables of the atom and sorted, with the variables ordered as
+ * they are in the clause substitution; the sorted rows serve as a trie.
+ *
+ */
+public class LeapfrogTriejoin {
+	private final BiConsumer<PositiveAtom, ClauseSubstitution> newFact;
+	private final Function<AnnotatedAtom, Iterable<PositiveAtom>> getFacts;
+	private final ClauseSubstitution substTemplate;
+	private final PositiveAtom head;
+	private final int nvars;
+
+	private final AnnotatedAtom[] atoms;
+	/**
+	 * The variables of each atom, in the order of the substitution.
+	 */
+	private final int[][] atomVars;
+	/**
+	 * For each argument of each atom, the position of its variable in the
+	 * projected row, or -1 if it is a constant.
+	 */
+	private final int[][] argColumns;
+	/**
+	 * For each variable, the atoms that contain it and the column of the
+	 * variable in each of them.
+	 */
+	private final int[][] participants;
+	private final int[][] participantColumns;
+
+	/**
+	 * Constructs a leapfrog triejoin evaluator for the clause, which must
+	 * satisfy {@link #isApplicable(Clause)}.
+	 * 
+	 * @param cl
+	 *            the clause
+	 * @param newFact
+	 *            an anonymous function that is invoked with the head of the
+	 *            clause and a substitution whenever a fact is derived
+	 * @param getFacts
+	 *            an anonymous function that returns the facts that might unify
+	 *            with an atom
+	 */
+	public LeapfrogTriejoin(SemiNaiveClause cl, BiConsumer<PositiveAtom, ClauseSubstitution> newFact,
+			Function<AnnotatedAtom, Iterable<PositiveAtom>> getFacts) {
+		if (!isApplicable(cl)) {
+			throw new IllegalArgumentException("Clause body must consist of atoms only: " + cl);
+		}
+		this.newFact = newFact;
+		this.getFacts = getFacts;
+		this.substTemplate = new ClauseSubstitution(cl);
+		this.head = cl.getHead().accept(new CrashHeadVisitor<Void, PositiveAtom>() {
+			@Override
+			public PositiveAtom visit(PositiveAtom atom, Void nothing) {
+				return atom;
+			}
+		}, null);
+
+		List<Premise> body = cl.getBody();
+		int n = body.size();
+		this.atoms = new AnnotatedAtom[n];
+		this.atomVars = new int[n][];
+		this.argColumns = new int[n][];
+		Set<Variable> vars = new HashSet<>();
+		List<List<int[]>> parts = new ArrayList<>();
+		for (int i = 0; i < n; ++i) {
+			AnnotatedAtom atom = (AnnotatedAtom) body.get(i);
+			this.atoms[i] = atom;
+			Term[] args = atom.getArgs();
+			// Variables are numbered by their substitution slots, which
+			// increase with the position of first occurrence.
+			int[] slots = new int[args.length];
+			int k = 0;
+			for (Term t : args) {
+				if (t instanceof Variable) {
+					vars.add((Variable) t);
+					int slot = this.substTemplate.getIndex((Variable) t);
+					if (Arrays.binarySearch(slots, 0, k, slot) < 0) {
+						slots[k++] = slot;
+						Arrays.sort(slots, 0, k);
+					}
+				}
+			}
+			this.atomVars[i] = Arrays.copyOf(slots, k);
+			this.argColumns[i] = new int[args.length];
+			for (int j = 0; j < args.length; ++j) {
+				Term t = args[j];
+				this.argColumns[i][j] = (t instanceof Variable)
+						? Arrays.binarySearch(this.atomVars[i], this.substTemplate.getIndex((Variable) t))
+						: -1;
+			}
+		}
+		this.nvars = vars.size();
+		for (int v = 0; v < this.nvars; ++v) {
+			parts.add(new ArrayList<>());
+		}
+		for (int i = 0; i < n; ++i) {
+			for (int c = 0; c < this.atomVars[i].length; ++c) {
+				parts.get(this.atomVars[i][c]).add(new int[] { i, c });
+			}
+		}
+		this.participants = new int[this.nvars][];
+		this.participantColumns = new int[this.nvars][];
+		for (int v = 0; v < this.nvars; ++v) {
+			List<int[]> l = parts.get(v);
+			this.participants[v] = new int[l.size()];
+			this.participantColumns[v] = new int[l.size()];
+			for (int p = 0; p < l.size(); ++p) {
+				this.participants[v][p] = l.get(p)[0];
+				this.participantColumns[v][p] = l.get(p)[1];
+			}
+		}
+	}
+
+	/**
+	 * Returns whether leapfrog triejoin can evaluate the clause, i.e., whether
+	 * its body consists of (annotated) positive atoms only.
+	 * 
+	 * @param cl
+	 *            the clause
+	 * @return whether the clause can be evaluated
+	 */
+	public static boolean isApplicable(Clause cl) {
+		for (Premise p : cl.getBody()) {
+			if (!(p instanceof AnnotatedAtom)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether the hypergraph of the clause body, which has a vertex for
+	 * each variable and a hyperedge for the variables of each atom, is cyclic
+	 * (i.e., not alpha-acyclic). This is determined by GYO reduction: the
+	 * hypergraph is acyclic if and only if repeatedly removing vertices that
+	 * belong to a single hyperedge and hyperedges that are contained in
+	 * another hyperedge removes every hyperedge.
+	 * 
+	 * @param cl
+	 *            the clause
+	 * @return whether the clause body is cyclic
+	 */
+	public static boolean isCyclic(Clause cl) {
+		List<Set<Variable>> edges = new ArrayList<>();
+		for (Premise p : cl.getBody()) {
+			Term[] args;
+			if (p instanceof AnnotatedAtom) {
+				args = ((AnnotatedAtom) p).getArgs();
+			} else if (p instanceof PositiveAtom) {
+				args = ((PositiveAtom) p).getArgs();
+			} else {
+				continue;
+			}
+			Set<Variable> edge = new HashSet<>();
+			for (Term t : args) {
+				if (t instanceof Variable) {
+					edge.add((Variable) t);
+				}
+			}
+			edges.add(edge);
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Set<Variable> edge : edges) {
+				for (Iterator<Variable> it = edge.iterator(); it.hasNext();) {
+					Variable x = it.next();
+					int count = 0;
+					for (Set<Variable> other : edges) {
+						if (other.contains(x)) {
+							++count;
+						}
+					}
+					if (count == 1) {
+						it.remove();
+						changed = true;
+					}
+				}
+			}
+			for (int i = 0; i < edges.size(); ++i) {
+				Set<Variable> edge = edges.get(i);
+				boolean redundant = edge.isEmpty();
+				for (int j = 0; !redundant && j < edges.size(); ++j) {
+					redundant = j != i && edges.get(j).containsAll(edge);
+				}
+				if (redundant) {
+					edges.remove(i);
+					changed = true;
+					break;
+				}
+			}
+		}
+		return !edges.isEmpty();
+	}
+
+	/**
+	 * Derives all the facts that are derivable from the clause given the
+	 * current facts.
+	 */
+	public void evaluate() {
+		int n = this.atoms.length;
+		int[][][] rows = new int[n][][];
+		// Start with the first atom, which is usually the smallest.
+		for (int i = 0; i < n; ++i) {
+			rows[i] = this.getRows(i);
+			if (rows[i].length == 0) {
+				return;
+			}
+		}
+		int[] lo = new int[n];
+		int[] hi = new int[n];
+		for (int i = 0; i < n; ++i) {
+			hi[i] = rows[i].length;
+		}
+		this.search(0, rows, lo, hi, new int[this.nvars]);
+	}
+
+	private int[][] getRows(int i) {
+		int[] cols = this.argColumns[i];
+		int width = this.atomVars[i].length;
+		Term[] atomArgs = this.atoms[i].getArgs();
+		List<int[]> l = new ArrayList<>();
+		for (PositiveAtom fact : this.getFacts.apply(this.atoms[i])) {
+			Term[] args = fact.getArgs();
+			int[] row = new int[width];
+			Arrays.fill(row, -1);
+			boolean matches = true;
+			for (int j = 0; matches && j < args.length; ++j) {
+				int id = ((Constant) args[j]).getId();
+				int c = cols[j];
+				if (c < 0) {
+					matches = args[j] == atomArgs[j];
+				} else if (row[c] < 0) {
+					row[c] = id;
+				} else {
+					matches = row[c] == id;
+				}
+			}
+			if (matches) {
+				l.add(row);
+			}
+		}
+		int[][] r = l.toArray(new int[l.size()][]);
+		Arrays.sort(r, LeapfrogTriejoin::compareRows);
+		// Remove duplicates.
+		int k = 0;
+		for (int j = 0; j < r.length; ++j) {
+			if (k == 0 || compareRows(r[k - 1], r[j]) != 0) {
+				r[k++] = r[j];
+			}
+		}
+		return Arrays.copyOf(r, k);
+	}
+
+	private static int compareRows(int[] a, int[] b) {
+		for (int i = 0; i < a.length; ++i) {
+			if (a[i] != b[i]) {
+				return Integer.compare(a[i], b[i]);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Binds the variable v to each value that every atom containing it
+	 * allows, given the values of the previous variables. For each atom i, the
+	 * rows in [lo[i], hi[i]) are those that agree with the values of the
+	 * previous variables.
+	 */
+	private void search(int v, int[][][] rows, int[] lo, int[] hi, int[] vals) {
+		if (v == this.nvars) {
+			ClauseSubstitution s = this.substTemplate.getCleanCopy();
+			for (int val : vals) {
+				s.push(Constant.fromId(val));
+			}
+			this.newFact.accept(this.head, s);
+			return;
+		}
+
+		int[] ps = this.participants[v];
+		int[] cs = this.participantColumns[v];
+		int k = ps.length;
+		int[] savedLo = new int[k];
+		int[] savedHi = new int[k];
+		for (int p = 0; p < k; ++p) {
+			savedLo[p] = lo[ps[p]];
+			savedHi[p] = hi[ps[p]];
+		}
+
+		int[] pos = savedLo.clone();
+		while (true) {
+			// Seek every atom to the largest current key until they agree.
+			int max = Integer.MIN_VALUE;
+			for (int p = 0; p < k; ++p) {
+				max = Math.max(max, rows[ps[p]][pos[p]][cs[p]]);
+			}
+			boolean agree = true;
+			for (int p = 0; p < k; ++p) {
+				pos[p] = seek(rows[ps[p]], cs[p], pos[p], savedHi[p], max);
+				if (pos[p] == savedHi[p]) {
+					this.restore(ps, lo, hi, savedLo, savedHi);
+					return;
+				}
+				agree &= rows[ps[p]][pos[p]][cs[p]] == max;
+			}
+			if (!agree) {
+				continue;
+			}
+
+			boolean done = false;
+			for (int p = 0; p < k; ++p) {
+				int end = seek(rows[ps[p]], cs[p], pos[p], savedHi[p], max + 1);
+				lo[ps[p]] = pos[p];
+				hi[ps[p]] = end;
+				pos[p] = end;
+				done |= end == savedHi[p];
+			}
+			vals[v] = max;
+			this.search(v + 1, rows, lo, hi, vals);
+			if (done) {
+				this.restore(ps, lo, hi, savedLo, savedHi);
+				return;
+			}
+		}
+	}
+
+	private void restore(int[] ps, int[] lo, int[] hi, int[] savedLo, int[] savedHi) {
+		for (int p = 0; p < ps.length; ++p) {
+			lo[ps[p]] = savedLo[p];
+			hi[ps[p]] = savedHi[p];
+		}
+	}
+
+	/**
+	 * Returns the first row in [from, to) whose value in the given column is at
+	 * least the key, or to if there is none. The rows in the range must be
+	 * sorted on that column.
+	 */
+	private static int seek(int[][] rows, int col, int from, int to, int key) {
+		int lo = from;
+		int hi = to;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (rows[mid][col] < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+}
@@ -0,0 +1,178 @@
+package edu.harvard.seas.pl.abcdatalog.engine.bottomup;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
+
+/**
+ * A plan for matching facts against the arguments of a premise. Since the
+ * order of the premises of a clause is fixed, it is known ahead of time
+ * whether each argument is a constant, a variable that is already bound, or a
+ * variable that is bound for the first time. Matching a fact therefore
+ * reduces to reference comparisons on (interned) constants and writes into the
+ * substitution. Arguments that the fact index already guarantees to match are
+ * not checked at all.
+ *
+ */
+final class PremisePlan {
+	/**
+	 * The argument is a constant that has to be checked.
+	 */
+	static final byte CONST = 0;
+	/**
+	 * The argument is a bound variable that has to be checked.
+	 */
+	static final byte CHECK = 1;
+	/**
+	 * The argument is a variable that is bound for the first time.
+	 */
+	static final byte BIND = 2;
+	/**
+	 * The argument is guaranteed to match.
+	 */
+	static final byte SKIP = 3;
+
+	final byte[] kinds;
+	final int[] slots;
+	final Constant[] consts;
+	/**
+	 * Whether every fact returned for the premise matches it.
+	 */
+	private final boolean trivial;
+
+	/**
+	 * Creates a plan for the arguments of the given conjunct of a clause.
+	 * 
+	 * @param args
+	 *            the arguments
+	 * @param substTemplate
+	 *            the substitution for the clause
+	 * @param conj
+	 *            the index of the conjunct in the clause body
+	 * @param exact
+	 *            whether the facts that are matched against the arguments
+	 *            agree with them on every position that is bound before the
+	 *            conjunct, as is the case for exact indices (see
+	 *            {@link edu.harvard.seas.pl.abcdatalog.util.datastructures.IndexableFactCollection#isExact()})
+	 */
+	PremisePlan(Term[] args, ClauseSubstitution substTemplate, int conj, boolean exact) {
+		this.kinds = new byte[args.length];
+		this.slots = new int[args.length];
+		this.consts = new Constant[args.length];
+		int start = substTemplate.getStartIndex(conj);
+		int next = start;
+		boolean trivial = true;
+		for (int j = 0; j < args.length; ++j) {
+			Term t = args[j];
+			if (t instanceof Constant) {
+				this.kinds[j] = exact ? SKIP : CONST;
+				this.consts[j] = (Constant) t;
+			} else {
+				int slot = substTemplate.getIndex((Variable) t);
+				assert slot >= 0;
+				this.slots[j] = slot;
+				if (slot < start) {
+					this.kinds[j] = exact ? SKIP : CHECK;
+				} else if (slot < next) {
+					// Repeated in this premise, which the index cannot know.
+					this.kinds[j] = CHECK;
+				} else {
+					assert slot == next;
+					this.kinds[j] = BIND;
+					++next;
+				}
+			}
+			trivial &= this.kinds[j] == SKIP;
+		}
+		this.trivial = trivial;
+	}
+
+	/**
+	 * Matches the arguments of a fact against this plan, extending the
+	 * substitution with the variables that are bound for the first time.
+	 * 
+	 * @param factArgs
+	 *            the arguments of the fact
+	 * @param s
+	 *            the substitution
+	 * @return whether the fact matches
+	 */
+	boolean match(Term[] factArgs, ClauseSubstitution s) {
+		if (this.trivial) {
+			return true;
+		}
+		byte[] ks = this.kinds;
+		for (int j = 0; j < ks.length; ++j) {
+			switch (ks[j]) {
+			case CONST:
+				if (factArgs[j] != this.consts[j]) {
+					return false;
+				}
+				break;
+			case CHECK:
+				if (factArgs[j] != s.get(this.slots[j])) {
+					return false;
+				}
+				break;
+			case BIND:
+				s.push((Constant) factArgs[j]);
+				break;
+			default:
+				// Nothing to check.
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the constant for an argument that is a constant or a bound
+	 * variable.
+	 * 
+	 * @param j
+	 *            the argument position
+	 * @param s
+	 *            the substitution
+	 * @return the constant
+	 */
+	Constant value(int j, ClauseSubstitution s) {
+		if (this.kinds[j] == CONST) {
+			return this.consts[j];
+		}
+		return s.get(this.slots[j]);
+	}
+
+}
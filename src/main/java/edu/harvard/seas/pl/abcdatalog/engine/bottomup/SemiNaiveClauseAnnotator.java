@@ -39,6 +39,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.function.ToDoubleBiFunction;
 
 import edu.harvard.seas.pl.abcdatalog.ast.BinaryDisunifier;
 import edu.harvard.seas.pl.abcdatalog.ast.BinaryUnifier;
@@ -115,7 +116,7 @@ public class SemiNaiveClauseAnnotator {
 			if (edbPos.value == null) {
 				edbPos.value = 0;
 			}
-			return Collections.singleton(sort(new Clause(original.getHead(), body), edbPos.value));
+			return Collections.singleton(sort(new Clause(original.getHead(), body), edbPos.value, null));
 		}
 
 		Set<SemiNaiveClause> r = new HashSet<>();
@@ -137,7 +138,7 @@ public class SemiNaiveClauseAnnotator {
 			while (it.hasNext()) {
 				it.next().accept(annotator, AnnotatedAtom.Annotation.IDB_PREV);
 			}
-			r.add(sort(new Clause(original.getHead(), newBody), i));
+			r.add(sort(new Clause(original.getHead(), newBody), i, null));
 		}
 		return r;
 	}
@@ -150,7 +151,27 @@ public class SemiNaiveClauseAnnotator {
 		return r;
 	}
 
-	private static SemiNaiveClause sort(Clause original, int firstConjunctPos) {
+	/**
+	 * Returns a copy of an annotated clause whose body has been reordered
+	 * using the given cost estimates. The first atom of the body stays in
+	 * place, and the remaining premises are ordered greedily so that the atom
+	 * estimated to match the fewest facts is evaluated next (premises that do
+	 * not look up facts are still placed as soon as they can be evaluated).
+	 * 
+	 * @param cl
+	 *            the annotated clause
+	 * @param estimator
+	 *            a function that estimates how many facts match an atom when
+	 *            the given argument positions are bound
+	 * @return the reordered clause
+	 */
+	public static SemiNaiveClause reorder(SemiNaiveClause cl,
+			ToDoubleBiFunction<AnnotatedAtom, Set<Integer>> estimator) {
+		return sort(cl, 0, estimator);
+	}
+
+	private static SemiNaiveClause sort(Clause original, int firstConjunctPos,
+			ToDoubleBiFunction<AnnotatedAtom, Set<Integer>> estimator) {
 		List<Premise> body = new ArrayList<>(original.getBody());
 		if (body.isEmpty()) {
 			return new SemiNaiveClause(original.getHead(), body);
@@ -180,14 +201,20 @@ public class SemiNaiveClauseAnnotator {
 		PremiseVisitor<Set<Variable>, Double> scorer = new CrashPremiseVisitor<Set<Variable>, Double>() {
 			@Override
 			public Double visit(AnnotatedAtom atom, Set<Variable> boundVars) {
-				int count = 0, total = 0;
-				for (Term t : atom.getArgs()) {
+				Term[] args = atom.getArgs();
+				Set<Integer> boundPositions = new HashSet<>();
+				for (int i = 0; i < args.length; ++i) {
+					Term t = args[i];
 					if (t instanceof Constant || boundVars.contains(t)) {
-						++count;
+						boundPositions.add(i);
 					}
-					++total;
 				}
-				return (total == 0) ? 1.0 : count / total;
+				if (estimator != null) {
+					// Cheaper atoms get higher (less negative) scores; the
+					// score must stay finite so that some premise is picked.
+					return -Math.min(estimator.applyAsDouble(atom, boundPositions), Double.MAX_VALUE);
+				}
+				return (args.length == 0) ? 1.0 : boundPositions.size() / args.length;
 			}
 
 			@Override
@@ -33,7 +33,10 @@ package edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent;
  * #L%
  */
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ForkJoinPool;
@@ -45,12 +48,14 @@ import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidationException;
 import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidator;
 import edu.harvard.seas.pl.abcdatalog.ast.validation.UnstratifiedProgram;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.AnnotatedAtom;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BindingPatterns;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.ClauseEvaluator;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.EvalManager;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
 import edu.harvard.seas.pl.abcdatalog.util.ExecutorServiceCounter;
 import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactSet;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactTrie;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexer;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
@@ -65,11 +70,135 @@ import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
 public class BottomUpEvalManager implements EvalManager {
 
 	protected final Map<PredicateSym, Set<ClauseEvaluator>> predToEvalMap = new HashMap<>();
-	protected final ExecutorServiceCounter exec = new ExecutorServiceCounter(
-			new ForkJoinPool(Utilities.concurrency, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true));
-	protected final FactIndexer facts = FactIndexerFactory.createConcurrentQueueFactIndexer();
+	protected final ExecutorServiceCounter exec;
+	/**
+	 * Whether the pool was created by this evaluation manager, in which case
+	 * it is shut down once evaluation is over.
+	 */
+	private final boolean ownsPool;
+	protected final FactIndexer facts;
 	protected final Set<PositiveAtom> initialFacts = Utilities.createConcurrentSet();
-	protected final ConcurrentFactTrie trie = new ConcurrentFactTrie();
+	protected final ConcurrentFactSet trie;
+	protected final boolean compileClauses;
+	/**
+	 * Whether derived facts are buffered and published in batches.
+	 */
+	protected final boolean bufferDerivations;
+	/**
+	 * The buffer that the current thread adds derived facts to, if it is
+	 * evaluating a batch of facts.
+	 */
+	private final ThreadLocal<Set<PositiveAtom>> buffer = new ThreadLocal<>();
+
+	/**
+	 * The maximum number of facts that are buffered before they are
+	 * published.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	public BottomUpEvalManager() {
+		this(FactIndexerFactory.createConcurrentQueueFactIndexer());
+	}
+
+	/**
+	 * Constructs an evaluation manager that stores the derived facts in the
+	 * given (empty) fact indexer.
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 */
+	public BottomUpEvalManager(FactIndexer facts) {
+		this(facts, new ConcurrentFactTrie());
+	}
+
+	/**
+	 * Constructs an evaluation manager that stores the derived facts in the
+	 * given (empty) fact indexer and uses the given (empty) fact set to detect
+	 * redundant derivations.
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 * @param trie
+	 *            the fact set
+	 */
+	public BottomUpEvalManager(FactIndexer facts, ConcurrentFactSet trie) {
+		this(facts, trie, false);
+	}
+
+	/**
+	 * Constructs an evaluation manager that stores the derived facts in the
+	 * given (empty) fact indexer and uses the given (empty) fact set to detect
+	 * redundant derivations.
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 * @param trie
+	 *            the fact set
+	 * @param compileClauses
+	 *            whether to evaluate rules using compiled clauses
+	 */
+	public BottomUpEvalManager(FactIndexer facts, ConcurrentFactSet trie, boolean compileClauses) {
+		this(facts, trie, compileClauses, false);
+	}
+
+	/**
+	 * Constructs an evaluation manager that stores the derived facts in the
+	 * given (empty) fact indexer and uses the given (empty) fact set to detect
+	 * redundant derivations. If derivations are buffered, facts are evaluated
+	 * in batches, each of which is a single task. The facts derived while
+	 * evaluating a batch are buffered by the thread that derives them and are
+	 * only added to the fact set and the fact indexer, as a new batch, once
+	 * there are enough of them or the batch is over. This saves most of the
+	 * contention on the shared data structures and the task overhead of
+	 * evaluating each new fact against each rule separately.
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 * @param trie
+	 *            the fact set
+	 * @param compileClauses
+	 *            whether to evaluate rules using compiled clauses
+	 * @param bufferDerivations
+	 *            whether to buffer derived facts and publish them in batches
+	 */
+	public BottomUpEvalManager(FactIndexer facts, ConcurrentFactSet trie, boolean compileClauses,
+			boolean bufferDerivations) {
+		this(facts, trie, compileClauses, bufferDerivations, Utilities.createPool(Utilities.concurrency), true);
+	}
+
+	/**
+	 * Constructs an evaluation manager that evaluates rules on the given pool
+	 * (see
+	 * {@link #BottomUpEvalManager(FactIndexer, ConcurrentFactSet, boolean, boolean)}).
+	 * The pool is not shut down by the evaluation manager, and so can be
+	 * shared by several evaluation managers (e.g., the one returned by
+	 * {@link Utilities#getSharedPool()}).
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 * @param trie
+	 *            the fact set
+	 * @param compileClauses
+	 *            whether to evaluate rules using compiled clauses
+	 * @param bufferDerivations
+	 *            whether to buffer derived facts and publish them in batches
+	 * @param pool
+	 *            the pool
+	 */
+	public BottomUpEvalManager(FactIndexer facts, ConcurrentFactSet trie, boolean compileClauses,
+			boolean bufferDerivations, ForkJoinPool pool) {
+		this(facts, trie, compileClauses, bufferDerivations, pool, false);
+	}
+
+	private BottomUpEvalManager(FactIndexer facts, ConcurrentFactSet trie, boolean compileClauses,
+			boolean bufferDerivations, ForkJoinPool pool, boolean ownsPool) {
+		this.exec = new ExecutorServiceCounter(pool);
+		this.ownsPool = ownsPool;
+		this.facts = facts;
+		this.trie = trie;
+		this.compileClauses = compileClauses;
+		this.bufferDerivations = bufferDerivations;
+	}
 
 	@Override
 	public synchronized void initialize(Set<Clause> program) throws DatalogValidationException {
@@ -81,8 +210,10 @@ public class BottomUpEvalManager implements EvalManager {
 		// set up map from predicate sym to rules. this depends on the first
 		// atom in the annotated rule body being the "delta" atom
 		for (SemiNaiveClause cl : annotator.annotate(prog.getRules())) {
+			BindingPatterns.forEachLookup(cl, (atom, positions) -> this.facts.addBindingPattern(atom.getPred(), positions));
 			Utilities.getSetFromMap(this.predToEvalMap, cl.getFirstAtom().getPred())
-					.add(new ClauseEvaluator(cl, this::newFact, this::getFacts));
+					.add(new ClauseEvaluator(cl, this::newFact, this::getFacts, this.compileClauses,
+							atom -> this.facts.isExact()));
 		}
 	}
 
@@ -93,17 +224,94 @@ public class BottomUpEvalManager implements EvalManager {
 			this.trie.add(fact);
 		}
 		this.processInitialFacts(this.initialFacts);
-		this.exec.blockUntilFinished();
-		this.exec.shutdownAndAwaitTermination();
+		this.awaitTasks();
 		return this.facts;
 	}
 
+	/**
+	 * Blocks until all tasks have finished, and shuts down the pool if it was
+	 * created by this evaluation manager.
+	 */
+	protected void awaitTasks() {
+		try {
+			this.exec.blockUntilFinished();
+		} finally {
+			if (this.ownsPool) {
+				this.exec.shutdownAndAwaitTermination();
+			}
+		}
+	}
+
 	protected void processInitialFacts(Set<PositiveAtom> facts) {
+		if (this.bufferDerivations) {
+			List<PositiveAtom> batch = new ArrayList<>(BATCH_SIZE);
+			for (PositiveAtom fact : facts) {
+				batch.add(fact);
+				if (batch.size() == BATCH_SIZE) {
+					this.processNewFacts(batch);
+					batch = new ArrayList<>(BATCH_SIZE);
+				}
+			}
+			if (!batch.isEmpty()) {
+				this.processNewFacts(batch);
+			}
+			return;
+		}
 		for (PositiveAtom fact : facts) {
 			this.processNewFact(fact);
 		}
 	}
 
+	/**
+	 * Submits a single task that evaluates a batch of new facts, which have
+	 * already been added to the fact indexer.
+	 * 
+	 * @param batch
+	 *            the facts
+	 */
+	private void processNewFacts(List<PositiveAtom> batch) {
+		this.exec.submitTask(() -> {
+			this.buffer.set(new HashSet<>());
+			try {
+				Map<PredicateSym, List<PositiveAtom>> byPred = new HashMap<>();
+				for (PositiveAtom fact : batch) {
+					byPred.computeIfAbsent(fact.getPred(), k -> new ArrayList<>()).add(fact);
+				}
+				for (Map.Entry<PredicateSym, List<PositiveAtom>> e : byPred.entrySet()) {
+					Set<ClauseEvaluator> evals = this.predToEvalMap.get(e.getKey());
+					if (evals != null) {
+						for (ClauseEvaluator ce : evals) {
+							ce.evaluate(e.getValue());
+						}
+					}
+				}
+				this.publish(this.buffer.get());
+			} finally {
+				this.buffer.remove();
+			}
+		});
+	}
+
+	/**
+	 * Adds the buffered facts that are new to the fact set and the fact
+	 * indexer, and submits them as a batch.
+	 * 
+	 * @param buffered
+	 *            the facts
+	 */
+	private void publish(Set<PositiveAtom> buffered) {
+		List<PositiveAtom> batch = new ArrayList<>(buffered.size());
+		for (PositiveAtom fact : buffered) {
+			if (this.trie.add(fact)) {
+				batch.add(fact);
+			}
+		}
+		if (!batch.isEmpty()) {
+			this.facts.addAll(batch);
+			this.processNewFacts(batch);
+		}
+	}
+
 	protected void processNewFact(PositiveAtom newFact) {
 		Set<ClauseEvaluator> evals = this.predToEvalMap.get(newFact.getPred());
 		if (evals != null) {
@@ -125,6 +333,15 @@ public class BottomUpEvalManager implements EvalManager {
 	}
 
 	protected void newFact(PositiveAtom atom, ClauseSubstitution s) {
+		Set<PositiveAtom> buffered = this.buffer.get();
+		if (buffered != null) {
+			buffered.add(atom.applySubst(s));
+			if (buffered.size() == BATCH_SIZE) {
+				this.publish(buffered);
+				this.buffer.set(new HashSet<>());
+			}
+			return;
+		}
 		if (trie.add(atom, s)) {
 			PositiveAtom f = atom.applySubst(s);
 			facts.add(f);
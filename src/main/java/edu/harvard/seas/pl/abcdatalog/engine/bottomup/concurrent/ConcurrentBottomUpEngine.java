@@ -34,8 +34,12 @@ package edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent;
  */
 
 
+import java.util.concurrent.ForkJoinPool;
+
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BottomUpEngineFrame;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.EvalManager;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactSet;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexer;
 
 /**
  * A concurrent bottom-up Datalog engine that employs a saturation algorithm
@@ -48,4 +52,87 @@ public class ConcurrentBottomUpEngine extends BottomUpEngineFrame<EvalManager> {
 	public ConcurrentBottomUpEngine() {
 		super(new BottomUpEvalManager());
 	}
+
+	/**
+	 * Constructs an engine that stores the derived facts in the given (empty)
+	 * fact indexer.
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 */
+	public ConcurrentBottomUpEngine(FactIndexer facts) {
+		super(new BottomUpEvalManager(facts));
+	}
+
+	/**
+	 * Constructs an engine that stores the derived facts in the given (empty)
+	 * fact indexer and uses the given (empty) fact set to detect redundant
+	 * derivations.
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 * @param redundancySet
+	 *            the fact set
+	 */
+	public ConcurrentBottomUpEngine(FactIndexer facts, ConcurrentFactSet redundancySet) {
+		super(new BottomUpEvalManager(facts, redundancySet));
+	}
+
+	/**
+	 * Constructs an engine that stores the derived facts in the given (empty)
+	 * fact indexer and uses the given (empty) fact set to detect redundant
+	 * derivations.
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 * @param redundancySet
+	 *            the fact set
+	 * @param compileClauses
+	 *            whether to evaluate rules using compiled clauses
+	 */
+	public ConcurrentBottomUpEngine(FactIndexer facts, ConcurrentFactSet redundancySet, boolean compileClauses) {
+		super(new BottomUpEvalManager(facts, redundancySet, compileClauses));
+	}
+
+	/**
+	 * Constructs an engine that stores the derived facts in the given (empty)
+	 * fact indexer and uses the given (empty) fact set to detect redundant
+	 * derivations, optionally buffering derived facts and publishing them in
+	 * batches (see
+	 * {@link BottomUpEvalManager#BottomUpEvalManager(FactIndexer, ConcurrentFactSet, boolean, boolean)}).
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 * @param redundancySet
+	 *            the fact set
+	 * @param compileClauses
+	 *            whether to evaluate rules using compiled clauses
+	 * @param bufferDerivations
+	 *            whether to buffer derived facts and publish them in batches
+	 */
+	public ConcurrentBottomUpEngine(FactIndexer facts, ConcurrentFactSet redundancySet, boolean compileClauses,
+			boolean bufferDerivations) {
+		super(new BottomUpEvalManager(facts, redundancySet, compileClauses, bufferDerivations));
+	}
+
+	/**
+	 * Constructs an engine that evaluates rules on the given pool, which it
+	 * does not shut down (see
+	 * {@link BottomUpEvalManager#BottomUpEvalManager(FactIndexer, ConcurrentFactSet, boolean, boolean, ForkJoinPool)}).
+	 *
+	 * @param facts
+	 *            the fact indexer
+	 * @param redundancySet
+	 *            the fact set
+	 * @param compileClauses
+	 *            whether to evaluate rules using compiled clauses
+	 * @param bufferDerivations
+	 *            whether to buffer derived facts and publish them in batches
+	 * @param pool
+	 *            the pool
+	 */
+	public ConcurrentBottomUpEngine(FactIndexer facts, ConcurrentFactSet redundancySet, boolean compileClauses,
+			boolean bufferDerivations, ForkJoinPool pool) {
+		super(new BottomUpEvalManager(facts, redundancySet, compileClauses, bufferDerivations, pool));
+	}
 }
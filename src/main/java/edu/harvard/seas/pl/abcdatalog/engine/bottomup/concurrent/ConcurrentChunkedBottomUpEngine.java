@@ -34,8 +34,8 @@ package edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent;
  */
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -51,6 +51,7 @@ import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidationException;
 import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidator;
 import edu.harvard.seas.pl.abcdatalog.ast.validation.UnstratifiedProgram;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.AnnotatedAtom;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BindingPatterns;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BottomUpEngineFrame;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.ClauseEvaluator;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.EvalManager;
@@ -59,8 +60,9 @@ import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.S
 import edu.harvard.seas.pl.abcdatalog.util.Box;
 import edu.harvard.seas.pl.abcdatalog.util.ExecutorServiceCounter;
 import edu.harvard.seas.pl.abcdatalog.util.Utilities;
-import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactIndexer;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactSet;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactTrie;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexer;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.IndexableFactCollection;
 import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
@@ -70,28 +72,214 @@ import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
  * A concurrent bottom-up Datalog engine that employs a saturation algorithm
  * similar to semi-naive evaluation. It supports explicit unification. The
  * client can set the size of the work item (i.e., number of facts that are
- * bundled together during evaluation).
+ * bundled together during evaluation), or let the engine adjust it at runtime.
  *
  */
 
 public class ConcurrentChunkedBottomUpEngine extends BottomUpEngineFrame<EvalManager> {
+	/**
+	 * The work item size that selects adaptive mode.
+	 */
+	public static final int ADAPTIVE_CHUNK_SIZE = 0;
 
+	/**
+	 * Constructs an engine that adjusts the size of the work item at runtime.
+	 * The size is chosen so that each work item takes long enough to amortize
+	 * the cost of scheduling it, and is reduced when workers are idle and
+	 * there are few queued work items, so that the remaining work is spread
+	 * across the pool.
+	 */
+	public ConcurrentChunkedBottomUpEngine() {
+		this(ADAPTIVE_CHUNK_SIZE);
+	}
+
+	/**
+	 * Constructs an engine with the given work item size.
+	 * 
+	 * @param chunkSize
+	 *            the number of facts bundled into a work item, or
+	 *            {@link #ADAPTIVE_CHUNK_SIZE} to adjust it at runtime
+	 */
 	public ConcurrentChunkedBottomUpEngine(int chunkSize) {
-		super(new ChunkedEvalManager(chunkSize));
+		this(chunkSize, FactIndexerFactory.createConcurrentQueueFactIndexer());
+	}
+
+	/**
+	 * Constructs an engine that stores the derived facts in the given (empty)
+	 * fact indexer.
+	 *
+	 * @param chunkSize
+	 *            the number of facts bundled into a work item, or
+	 *            {@link #ADAPTIVE_CHUNK_SIZE} to adjust it at runtime
+	 * @param index
+	 *            the fact indexer
+	 */
+	public ConcurrentChunkedBottomUpEngine(int chunkSize, FactIndexer index) {
+		this(chunkSize, index, new ConcurrentFactTrie());
+	}
+
+	/**
+	 * Constructs an engine that stores the derived facts in the given (empty)
+	 * fact indexer and uses the given (empty) fact set to detect redundant
+	 * derivations.
+	 *
+	 * @param chunkSize
+	 *            the number of facts bundled into a work item, or
+	 *            {@link #ADAPTIVE_CHUNK_SIZE} to adjust it at runtime
+	 * @param index
+	 *            the fact indexer
+	 * @param redundancySet
+	 *            the fact set
+	 */
+	public ConcurrentChunkedBottomUpEngine(int chunkSize, FactIndexer index, ConcurrentFactSet redundancySet) {
+		this(chunkSize, index, redundancySet, false);
+	}
+
+	/**
+	 * Constructs an engine that stores the derived facts in the given (empty)
+	 * fact indexer and uses the given (empty) fact set to detect redundant
+	 * derivations. If derivations are buffered, the facts derived while
+	 * evaluating a work item are kept locally and are only added to the fact
+	 * set and the fact indexer when a new work item is formed from them,
+	 * instead of one at a time as they are derived.
+	 *
+	 * @param chunkSize
+	 *            the number of facts bundled into a work item, or
+	 *            {@link #ADAPTIVE_CHUNK_SIZE} to adjust it at runtime
+	 * @param index
+	 *            the fact indexer
+	 * @param redundancySet
+	 *            the fact set
+	 * @param bufferDerivations
+	 *            whether to buffer derived facts and publish them in batches
+	 */
+	public ConcurrentChunkedBottomUpEngine(int chunkSize, FactIndexer index, ConcurrentFactSet redundancySet,
+			boolean bufferDerivations) {
+		super(new ChunkedEvalManager(chunkSize, index, redundancySet, bufferDerivations,
+				Utilities.createPool(Utilities.concurrency), true));
+	}
+
+	/**
+	 * Constructs an engine that evaluates work items on the given pool, which
+	 * it does not shut down, and so can be shared by several engines (e.g.,
+	 * the one returned by {@link Utilities#getSharedPool()}).
+	 *
+	 * @param chunkSize
+	 *            the number of facts bundled into a work item, or
+	 *            {@link #ADAPTIVE_CHUNK_SIZE} to adjust it at runtime
+	 * @param index
+	 *            the fact indexer
+	 * @param redundancySet
+	 *            the fact set
+	 * @param bufferDerivations
+	 *            whether to buffer derived facts and publish them in batches
+	 * @param pool
+	 *            the pool
+	 */
+	public ConcurrentChunkedBottomUpEngine(int chunkSize, FactIndexer index, ConcurrentFactSet redundancySet,
+			boolean bufferDerivations, ForkJoinPool pool) {
+		super(new ChunkedEvalManager(chunkSize, index, redundancySet, bufferDerivations, pool, false));
+	}
+
+	/**
+	 * Chooses the work item size at runtime. It keeps a moving average of the
+	 * time it takes to evaluate a fact, from which it derives the size at
+	 * which a work item takes about {@link #TARGET_NANOS}. When some workers
+	 * of the pool are idle and there are fewer queued work items than
+	 * workers, it shrinks the size instead, so that the work that is left is
+	 * split across more work items. The size changes by at most a factor of
+	 * two per work item.
+	 */
+	private static class ChunkSizer {
+		private static final int MIN_CHUNK_SIZE = 1;
+		private static final int MAX_CHUNK_SIZE = 1 << 14;
+		private static final int INITIAL_CHUNK_SIZE = 64;
+		private static final long TARGET_NANOS = 200_000;
+		/**
+		 * The weight of the latest work item in the moving average.
+		 */
+		private static final double ALPHA = 0.2;
+
+		private final ForkJoinPool pool;
+		/**
+		 * These fields are updated without synchronization; a lost update
+		 * only delays the adjustment.
+		 */
+		private volatile int chunkSize = INITIAL_CHUNK_SIZE;
+		private volatile double nanosPerFact = -1;
+
+		public ChunkSizer(ForkJoinPool pool) {
+			this.pool = pool;
+		}
+
+		public int getChunkSize() {
+			return this.chunkSize;
+		}
+
+		/**
+		 * Records the time it took to evaluate a work item and adjusts the
+		 * work item size.
+		 * 
+		 * @param nfacts
+		 *            the number of facts in the work item
+		 * @param nanos
+		 *            the time it took, in nanoseconds
+		 */
+		public void record(int nfacts, long nanos) {
+			if (nfacts == 0) {
+				return;
+			}
+			double sample = Math.max(1.0, (double) nanos / nfacts);
+			double prev = this.nanosPerFact;
+			double cost = prev < 0 ? sample : prev + ALPHA * (sample - prev);
+			this.nanosPerFact = cost;
+
+			int current = this.chunkSize;
+			long target = Math.max(1, (long) (TARGET_NANOS / cost));
+			int parallelism = this.pool.getParallelism();
+			int idle = parallelism - this.pool.getActiveThreadCount();
+			long queued = this.pool.getQueuedTaskCount() + this.pool.getQueuedSubmissionCount();
+			if (idle > 0 && queued < parallelism) {
+				target = Math.min(target, current / 2);
+			}
+			target = Math.max(target, current / 2);
+			target = Math.min(target, 2L * current);
+			this.chunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, target));
+		}
 	}
 
 	private static class ChunkedEvalManager implements EvalManager {
 		private UnstratifiedProgram program;
-		private final ConcurrentFactTrie redundancyTrie = new ConcurrentFactTrie();
-		private final ConcurrentFactIndexer<Queue<PositiveAtom>> index = FactIndexerFactory
-				.createConcurrentQueueFactIndexer();
+		private final ConcurrentFactSet redundancyTrie;
+		private final FactIndexer index;
 		private final Map<PredicateSym, Set<SemiNaiveClause>> predToRuleMap = new HashMap<>();
-		private final ExecutorServiceCounter exec = new ExecutorServiceCounter(
-				new ForkJoinPool(Utilities.concurrency, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true));
+		private final ForkJoinPool pool;
+		private final ExecutorServiceCounter exec;
+		/**
+		 * Whether the pool was created for this engine, in which case it is
+		 * shut down once evaluation is over.
+		 */
+		private final boolean ownsPool;
 		private final int chunkSize;
+		/**
+		 * The controller for the work item size, or null if it is fixed.
+		 */
+		private final ChunkSizer sizer;
+		private final boolean bufferDerivations;
 
-		public ChunkedEvalManager(int chunkSize) {
+		public ChunkedEvalManager(int chunkSize, FactIndexer index, ConcurrentFactSet redundancyTrie,
+				boolean bufferDerivations, ForkJoinPool pool, boolean ownsPool) {
+			if (chunkSize < 0) {
+				throw new IllegalArgumentException("Chunk size must not be negative.");
+			}
+			this.pool = pool;
+			this.exec = new ExecutorServiceCounter(pool);
+			this.ownsPool = ownsPool;
 			this.chunkSize = chunkSize;
+			this.sizer = chunkSize == ADAPTIVE_CHUNK_SIZE ? new ChunkSizer(pool) : null;
+			this.index = index;
+			this.redundancyTrie = redundancyTrie;
+			this.bufferDerivations = bufferDerivations;
 		}
 
 		@Override
@@ -104,6 +292,7 @@ public class ConcurrentChunkedBottomUpEngine extends BottomUpEngineFrame<EvalMan
 		public IndexableFactCollection eval() {
 			SemiNaiveClauseAnnotator annotator = new SemiNaiveClauseAnnotator(program.getIdbPredicateSyms());
 			for (SemiNaiveClause cl : annotator.annotate(program.getRules())) {
+				BindingPatterns.forEachLookup(cl, (atom, positions) -> index.addBindingPattern(atom.getPred(), positions));
 				Utilities.getSetFromMap(predToRuleMap, cl.getFirstAtom().getPred()).add(cl);
 			}
 
@@ -121,7 +310,7 @@ public class ConcurrentChunkedBottomUpEngine extends BottomUpEngineFrame<EvalMan
 			int size = 0;
 			for (PositiveAtom fact : program.getInitialFacts()) {
 				chunk.add(fact);
-				if (++size == chunkSize) {
+				if (++size >= getChunkSize()) {
 					exec.submitTask(new WorkItem(chunk));
 					chunk = new ConcurrentLinkedQueue<>();
 					size = 0;
@@ -131,12 +320,38 @@ public class ConcurrentChunkedBottomUpEngine extends BottomUpEngineFrame<EvalMan
 				exec.submitTask(new WorkItem(chunk));
 			}
 
-			exec.blockUntilFinished();
-			exec.shutdownAndAwaitTermination();
+			try {
+				exec.blockUntilFinished();
+			} finally {
+				if (ownsPool) {
+					exec.shutdownAndAwaitTermination();
+				}
+			}
 
 			return index;
 		}
 
+		private int getChunkSize() {
+			return sizer == null ? chunkSize : sizer.getChunkSize();
+		}
+
+		/**
+		 * Adds the buffered facts that are new to the fact set and the fact
+		 * indexer, and submits them as a work item.
+		 */
+		private void publish(Set<PositiveAtom> buffered) {
+			Queue<PositiveAtom> chunk = new ConcurrentLinkedQueue<>();
+			for (PositiveAtom fact : buffered) {
+				if (redundancyTrie.add(fact)) {
+					chunk.add(fact);
+				}
+			}
+			if (!chunk.isEmpty()) {
+				index.addAll(chunk);
+				exec.submitTask(new WorkItem(chunk));
+			}
+		}
+
 		private Iterable<PositiveAtom> getFacts(AnnotatedAtom a, ConstOnlySubstitution s) {
 			return index.indexInto(a.asUnannotatedAtom(), s);
 		}
@@ -150,50 +365,67 @@ public class ConcurrentChunkedBottomUpEngine extends BottomUpEngineFrame<EvalMan
 
 			@Override
 			public void run() {
+				long start = sizer == null ? 0 : System.nanoTime();
 				Box<Queue<PositiveAtom>> acc = new Box<>();
 				acc.value = new ConcurrentLinkedQueue<>();
 				Box<Integer> size = new Box<>();
 				size.value = 0;
 
-				BiConsumer<PositiveAtom, ClauseSubstitution> reportFact = (a, s) -> {
-					if (redundancyTrie.add(a, s)) {
-						PositiveAtom fact = a.applySubst(s);
-						index.add(fact);
-						acc.value.add(fact);
-						if (++size.value == chunkSize) {
-							exec.submitTask(new WorkItem(acc.value));
-							acc.value = new ConcurrentLinkedQueue<>();
-							size.value = 0;
-						}
-					}
-				};
-
-				Map<PredicateSym, List<ClauseEvaluator>> predToEvalMap = new HashMap<>();
+				Box<Set<PositiveAtom>> buffered = new Box<>();
+				buffered.value = new HashSet<>();
 
-				for (PositiveAtom fact : facts) {
-					PredicateSym pred = fact.getPred();
-					List<ClauseEvaluator> evals = predToEvalMap.get(pred);
-					if (evals == null) {
-						Iterable<SemiNaiveClause> rules = predToRuleMap.get(pred);
-						if (rules == null) {
-							evals = Collections.emptyList();
-						} else {
-							evals = new ArrayList<>();
-							for (SemiNaiveClause cl : rules) {
-								evals.add(new ClauseEvaluator(cl, reportFact, ChunkedEvalManager.this::getFacts));
+				BiConsumer<PositiveAtom, ClauseSubstitution> reportFact;
+				if (bufferDerivations) {
+					reportFact = (a, s) -> {
+						Set<PositiveAtom> b = buffered.value;
+						b.add(a.applySubst(s));
+						if (b.size() >= getChunkSize()) {
+							publish(b);
+							buffered.value = new HashSet<>();
+						}
+					};
+				} else {
+					reportFact = (a, s) -> {
+						if (redundancyTrie.add(a, s)) {
+							PositiveAtom fact = a.applySubst(s);
+							index.add(fact);
+							acc.value.add(fact);
+							if (++size.value >= getChunkSize()) {
+								exec.submitTask(new WorkItem(acc.value));
+								acc.value = new ConcurrentLinkedQueue<>();
+								size.value = 0;
 							}
 						}
-						predToEvalMap.put(pred, evals);
-					}
+					};
+				}
 
-					for (ClauseEvaluator eval : evals) {
-						eval.evaluate(fact);
+				// Facts are evaluated in batches, one for each predicate
+				// symbol.
+				Map<PredicateSym, List<PositiveAtom>> predToFactsMap = new HashMap<>();
+				int nfacts = 0;
+				for (PositiveAtom fact : facts) {
+					++nfacts;
+					predToFactsMap.computeIfAbsent(fact.getPred(), k -> new ArrayList<>()).add(fact);
+				}
+
+				for (Map.Entry<PredicateSym, List<PositiveAtom>> e : predToFactsMap.entrySet()) {
+					Iterable<SemiNaiveClause> rules = predToRuleMap.get(e.getKey());
+					if (rules != null) {
+						for (SemiNaiveClause cl : rules) {
+							new ClauseEvaluator(cl, reportFact, ChunkedEvalManager.this::getFacts, false,
+									atom -> index.isExact()).evaluate(e.getValue());
+						}
 					}
 				}
 
 				if (size.value != 0) {
 					exec.submitTask(new WorkItem(acc.value));
 				}
+				publish(buffered.value);
+
+				if (sizer != null) {
+					sizer.record(nfacts, System.nanoTime() - start);
+				}
 
 			}
 
@@ -34,6 +34,8 @@ package edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent;
  */
 
 
+import java.util.concurrent.ForkJoinPool;
+
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BottomUpEngineFrame;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.EvalManager;
 
@@ -48,4 +50,31 @@ public class ConcurrentStratifiedNegationBottomUpEngine extends BottomUpEngineFr
 	public ConcurrentStratifiedNegationBottomUpEngine() {
 		super(new StratifiedNegationEvalManager());
 	}
+
+	/**
+	 * Constructs an engine that merges the strongly connected components of
+	 * the predicate dependency graph into coarser strata.
+	 *
+	 * @param maxStratumSize
+	 *            the maximum number of predicate symbols in a merged stratum,
+	 *            or zero to make each component its own stratum
+	 */
+	public ConcurrentStratifiedNegationBottomUpEngine(int maxStratumSize) {
+		super(new StratifiedNegationEvalManager(maxStratumSize));
+	}
+
+	/**
+	 * Constructs an engine that saturates strata on the given pool, which it
+	 * does not shut down (see
+	 * {@link StratifiedNegationEvalManager#StratifiedNegationEvalManager(int, ForkJoinPool)}).
+	 *
+	 * @param maxStratumSize
+	 *            the maximum number of predicate symbols in a merged stratum,
+	 *            or zero to make each component its own stratum
+	 * @param pool
+	 *            the pool
+	 */
+	public ConcurrentStratifiedNegationBottomUpEngine(int maxStratumSize, ForkJoinPool pool) {
+		super(new StratifiedNegationEvalManager(maxStratumSize, pool));
+	}
 }
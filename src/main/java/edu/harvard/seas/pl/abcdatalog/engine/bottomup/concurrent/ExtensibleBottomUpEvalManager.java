@@ -44,6 +44,7 @@ import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
 import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidationException;
 import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidator;
 import edu.harvard.seas.pl.abcdatalog.ast.validation.UnstratifiedProgram;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BindingPatterns;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.ClauseEvaluator;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
@@ -96,8 +97,10 @@ public class ExtensibleBottomUpEvalManager extends BottomUpEvalManager {
 		// set up map from predicate sym to rules. this depends on the first
 		// atom in the annotated rule body being the "delta" atom
 		for (SemiNaiveClause cl : annotator.annotate(prog.getRules())) {
+			BindingPatterns.forEachLookup(cl, (atom, positions) -> this.facts.addBindingPattern(atom.getPred(), positions));
 			Utilities.getSetFromMap(this.predToEvalMap, cl.getFirstAtom().getPred())
-					.add(new ClauseEvaluator(cl, this::newFact, this::getFacts));
+					.add(new ClauseEvaluator(cl, this::newFact, this::getFacts, this.compileClauses,
+							atom -> this.facts.isExact()));
 		}
 
 		this.isInitialized = true;
@@ -156,8 +159,7 @@ public class ExtensibleBottomUpEvalManager extends BottomUpEvalManager {
 			}
 		}
 
-		this.exec.blockUntilFinished();
-		this.exec.shutdownAndAwaitTermination();
+		this.awaitTasks();
 		return this.facts;
 	}
 
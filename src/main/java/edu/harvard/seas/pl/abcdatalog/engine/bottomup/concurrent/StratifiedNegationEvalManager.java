@@ -40,11 +40,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
@@ -63,41 +62,96 @@ import edu.harvard.seas.pl.abcdatalog.ast.visitors.HeadVisitorBuilder;
 import edu.harvard.seas.pl.abcdatalog.ast.visitors.PremiseVisitor;
 import edu.harvard.seas.pl.abcdatalog.ast.visitors.PremiseVisitorBuilder;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.AnnotatedAtom;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BindingPatterns;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.ClauseEvaluator;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.EvalManager;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
 import edu.harvard.seas.pl.abcdatalog.util.ExecutorServiceCounter;
 import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentChunkedBag;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactIndexer;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactTrie;
-import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentLinkedBag;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.IndexableFactCollection;
 import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
 
 public class StratifiedNegationEvalManager implements EvalManager {
-	private final ExecutorServiceCounter handlerExecService = new ExecutorServiceCounter(
-			Executors.newCachedThreadPool());
-	private final ForkJoinPool saturationPool = new ForkJoinPool(Utilities.concurrency,
-			ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
-
-	private final ConcurrentFactIndexer<ConcurrentLinkedBag<PositiveAtom>> facts = new ConcurrentFactIndexer<>(
-			() -> new ConcurrentLinkedBag<>(), (bag, atom) -> bag.add(atom), () -> ConcurrentLinkedBag.emptyBag());
+	private final ForkJoinPool saturationPool;
+	/**
+	 * Whether the saturation pool was created by this evaluation manager, in
+	 * which case it is shut down once evaluation is over.
+	 */
+	private final boolean ownsPool;
+
+	private final ConcurrentFactIndexer<ConcurrentChunkedBag<PositiveAtom>> facts = FactIndexerFactory
+			.createConcurrentBagFactIndexer();
 	private final ConcurrentFactTrie trie = new ConcurrentFactTrie();
 
 	private final Map<PredicateSym, Set<Integer>> relevantStrataByPred = new HashMap<>();
 
 	private final List<StratumHandler> handlers = new ArrayList<>();
 
+	/**
+	 * Completed once the initial facts have been reported to the strata.
+	 */
+	private final CompletableFuture<Void> edbCompletion = new CompletableFuture<>();
+
 	private StratifiedProgram stratProg;
 
 	private final static int EDB_STRATUM = -1;
 
+	private final int maxStratumSize;
+
+	public StratifiedNegationEvalManager() {
+		this(0);
+	}
+
+	/**
+	 * Constructs an evaluation manager that optionally merges the strongly
+	 * connected components of the predicate dependency graph into coarser
+	 * strata, so that fewer stratum handlers are needed (see
+	 * {@link StratifiedNegationValidator#validate(UnstratifiedProgram, int)}).
+	 *
+	 * @param maxStratumSize
+	 *            the maximum number of predicate symbols in a merged stratum,
+	 *            or zero to make each component its own stratum
+	 */
+	public StratifiedNegationEvalManager(int maxStratumSize) {
+		this(maxStratumSize, Utilities.createPool(Utilities.concurrency), true);
+	}
+
+	/**
+	 * Constructs an evaluation manager that saturates strata on the given
+	 * pool (see {@link #StratifiedNegationEvalManager(int)}). The pool is not
+	 * shut down by the evaluation manager, and so can be shared by several
+	 * evaluation managers (e.g., the one returned by
+	 * {@link Utilities#getSharedPool()}).
+	 *
+	 * @param maxStratumSize
+	 *            the maximum number of predicate symbols in a merged stratum,
+	 *            or zero to make each component its own stratum
+	 * @param pool
+	 *            the pool
+	 */
+	public StratifiedNegationEvalManager(int maxStratumSize, ForkJoinPool pool) {
+		this(maxStratumSize, pool, false);
+	}
+
+	private StratifiedNegationEvalManager(int maxStratumSize, ForkJoinPool pool, boolean ownsPool) {
+		if (maxStratumSize < 0) {
+			throw new IllegalArgumentException("Maximum stratum size must not be negative.");
+		}
+		this.maxStratumSize = maxStratumSize;
+		this.saturationPool = pool;
+		this.ownsPool = ownsPool;
+	}
+
 	@Override
 	public void initialize(Set<Clause> program) throws DatalogValidationException {
 		UnstratifiedProgram prog = (new DatalogValidator()).withBinaryDisunificationInRuleBody()
 				.withBinaryUnificationInRuleBody().withAtomNegationInRuleBody().validate(program);
-		stratProg = StratifiedNegationValidator.validate(prog);
+		stratProg = StratifiedNegationValidator.validate(prog, maxStratumSize);
 
 		Map<PredicateSym, Integer> stratumByPred = new HashMap<>(stratProg.getPredToStratumMap());
 		for (PredicateSym p : this.stratProg.getEdbPredicateSyms()) {
@@ -117,6 +171,7 @@ public class StratifiedNegationEvalManager implements EvalManager {
 		}
 		SemiNaiveClauseAnnotator annotator = new SemiNaiveClauseAnnotator(stratProg.getIdbPredicateSyms());
 		for (SemiNaiveClause rule : annotator.annotate(this.stratProg.getRules())) {
+			BindingPatterns.forEachLookup(rule, (atom, positions) -> facts.addBindingPattern(atom.getPred(), positions));
 			PredicateSym headPred = rule.getHead().accept(getHeadPred, null);
 			int stratum = stratumByPred.get(headPred);
 			relevantRulesByStratum[stratum].add(rule);
@@ -130,12 +185,27 @@ public class StratifiedNegationEvalManager implements EvalManager {
 		}
 	}
 
-	private void propagateStratumCompletion(int stratum) {
-		for (StratumHandler handler : this.handlers) {
-			handler.reportCompletedStratum(stratum);
-		}
+	/**
+	 * Returns the future that is completed once the given stratum has been
+	 * saturated.
+	 */
+	private CompletableFuture<Void> getCompletion(int stratum) {
+		return stratum == EDB_STRATUM ? this.edbCompletion : this.handlers.get(stratum).completion;
 	}
 
+	/**
+	 * Evaluates the program. Each stratum is scheduled on the saturation pool
+	 * once the strata it depends on negatively have been saturated, and is
+	 * saturated once the strata it depends on positively have been saturated
+	 * and there are no pending tasks for its rules. No thread blocks waiting
+	 * for another stratum, other than the calling thread, which waits for all
+	 * of them. If a task throws an exception, its stratum and the strata that
+	 * depend on it are completed exceptionally instead, so the evaluation does
+	 * not hang.
+	 * 
+	 * @throws CompletionException
+	 *             if a task has thrown an exception, which is the cause
+	 */
 	@Override
 	public IndexableFactCollection eval() {
 		for (PositiveAtom fact : this.stratProg.getInitialFacts()) {
@@ -144,23 +214,26 @@ public class StratifiedNegationEvalManager implements EvalManager {
 			this.propagateNewFact(fact);
 		}
 
-		for (StratumHandler handler : handlers) {
-			this.handlerExecService.submitTask(handler);
+		for (StratumHandler handler : this.handlers) {
+			handler.schedule();
 		}
-
-		this.propagateStratumCompletion(EDB_STRATUM);
-		this.handlerExecService.blockUntilFinished();
-		this.handlerExecService.shutdownAndAwaitTermination();
-
-		this.saturationPool.shutdown();
-		boolean finished = false;
-		do {
-			try {
-				finished = this.saturationPool.awaitTermination(Long.MAX_VALUE, TimeUnit.HOURS);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		this.edbCompletion.complete(null);
+		try {
+			CompletableFuture.allOf(this.handlers.stream().map(h -> h.completion).toArray(CompletableFuture[]::new))
+					.join();
+		} finally {
+			if (this.ownsPool) {
+				this.saturationPool.shutdown();
+				boolean finished = false;
+				do {
+					try {
+						finished = this.saturationPool.awaitTermination(Long.MAX_VALUE, TimeUnit.HOURS);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				} while (!finished);
 			}
-		} while (!finished);
+		}
 
 		return this.facts;
 	}
@@ -174,7 +247,7 @@ public class StratifiedNegationEvalManager implements EvalManager {
 		}
 	}
 
-	private class StratumHandler implements Runnable {
+	private class StratumHandler {
 		private final Set<Integer> posDependencies;
 		private final Set<Integer> negDependencies;
 		private final Map<PredicateSym, Set<ClauseEvaluator>> clauseEvaluatorsByFirstPred;
@@ -182,7 +255,10 @@ public class StratifiedNegationEvalManager implements EvalManager {
 		private volatile boolean running;
 		private final Queue<PositiveAtom> queuedFacts = new ConcurrentLinkedQueue<>();
 		private final ExecutorServiceCounter exec = new ExecutorServiceCounter(saturationPool);
-		private final BlockingQueue<Integer> completedStrataFeed = new LinkedBlockingQueue<>();
+		/**
+		 * Completed once this stratum has been saturated.
+		 */
+		private final CompletableFuture<Void> completion = new CompletableFuture<>();
 
 		public StratumHandler(int stratum, Set<SemiNaiveClause> relevantRules,
 				Map<PredicateSym, Integer> stratumByPred) {
@@ -224,35 +300,40 @@ public class StratifiedNegationEvalManager implements EvalManager {
 			}
 		}
 
-		@Override
-		public void run() {
-			while (!this.negDependencies.isEmpty()) {
-				try {
-					int n = this.completedStrataFeed.take();
-					this.negDependencies.remove(n);
-					this.posDependencies.remove(n);
-				} catch (InterruptedException e) {
-					// do nothing
-				}
-			}
+		/**
+		 * Links this stratum into the graph of stratum completions: it starts
+		 * once its negative dependencies have been saturated, and it is
+		 * saturated once it has started, its positive dependencies have been
+		 * saturated, and the tasks for its rules have finished. The steps are
+		 * run asynchronously on the saturation pool, so that completing one
+		 * stratum does not run the others on the same stack.
+		 */
+		public void schedule() {
+			CompletableFuture<Void> started = allOf(this.negDependencies).thenRunAsync(this::start,
+					saturationPool);
+			CompletableFuture.allOf(started, allOf(this.posDependencies))
+					.thenComposeAsync(nothing -> this.exec.whenFinished(), saturationPool)
+					.whenComplete((nothing, e) -> {
+						if (e == null) {
+							this.completion.complete(null);
+						} else {
+							this.completion.completeExceptionally(e);
+						}
+					});
+		}
+
+		private CompletableFuture<Void> allOf(Set<Integer> strata) {
+			return CompletableFuture
+					.allOf(strata.stream().map(StratifiedNegationEvalManager.this::getCompletion)
+							.toArray(CompletableFuture[]::new));
+		}
 
+		private void start() {
 			this.running = true;
 
 			while (!this.queuedFacts.isEmpty()) {
 				this.evaluateWithNewFact(this.queuedFacts.remove());
 			}
-
-			while (!this.posDependencies.isEmpty()) {
-				try {
-					this.posDependencies.remove(this.completedStrataFeed.take());
-				} catch (InterruptedException e) {
-					// do nothing
-				}
-			}
-
-			this.exec.blockUntilFinished();
-
-			propagateStratumCompletion(this.stratum);
 		}
 
 		private void evaluateWithNewFact(PositiveAtom fact) {
@@ -279,14 +360,5 @@ public class StratifiedNegationEvalManager implements EvalManager {
 				this.evaluateWithNewFact(fact);
 			}
 		}
-
-		public void reportCompletedStratum(int stratum) {
-			try {
-				this.completedStrataFeed.put(stratum);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
 	}
 }
@@ -0,0 +1,467 @@
+package edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Clause;
+import edu.harvard.seas.pl.abcdatalog.ast.NegatedAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Premise;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidationException;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidator;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidator.ValidClause;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.UnstratifiedProgram;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.HeadVisitor;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.HeadVisitorBuilder;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.PremiseVisitor;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.PremiseVisitorBuilder;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.AnnotatedAtom;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.ClauseEvaluator;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactIndexer;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexer;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.SubstitutionUtils;
+
+/**
+ * Maintains the facts derived from a stratified program when initial facts
+ * are inserted or deleted, using the delete/rederive (DRed) algorithm. The
+ * strata are maintained in order. For each stratum, the facts that might have
+ * lost a derivation are deleted first: those derived from a deleted fact, or
+ * from the absence of a fact that has been inserted. The deleted facts that
+ * still have a derivation are then rederived, and finally the facts that
+ * follow from the rederived facts, the inserted facts and the absence of the
+ * deleted facts are added. Each of these steps is evaluated a fact at a time,
+ * starting from the facts that changed, so the cost of an update depends on
+ * how many derivations it affects and not on the size of the program's
+ * database.
+ *
+ */
+class DRedMaintainer {
+	/**
+	 * The predicate symbol of the atom that is put first in the body of a
+	 * rule to have it evaluated starting from the arguments of a negated atom
+	 * or of the head. There are no facts for this atom: it only stands for
+	 * the binding of those arguments, so that the rest of the body is planned
+	 * with their variables bound, and the rule is evaluated using
+	 * {@link ClauseEvaluator#evaluateBinding(Term[])}.
+	 */
+	private static final String SEED = "$seed";
+
+	private final FactIndexer allFacts;
+	private final Set<PositiveAtom> initialFacts;
+	private final Map<PredicateSym, Integer> predToStratumMap;
+	private final List<Stratum> strata = new ArrayList<>();
+	private final Map<PositiveAtom, Clause> justifications;
+
+	/**
+	 * The facts that have been deleted from, or inserted into, the strata
+	 * maintained so far during the current update.
+	 */
+	private ConcurrentFactIndexer<Set<PositiveAtom>> deleted;
+	private ConcurrentFactIndexer<Set<PositiveAtom>> inserted;
+
+	private Mode mode;
+	private ConcurrentFactIndexer<Set<PositiveAtom>> deltaNew;
+	private Set<PositiveAtom> overdeleted;
+	private Clause rederivation;
+
+	private enum Mode {
+		OVERDELETE, REDERIVE, INSERT;
+	}
+
+	/**
+	 * Constructs a maintainer for the facts of an evaluated program.
+	 *
+	 * @param rulesByStratum
+	 *            the rules of each stratum
+	 * @param predToStratumMap
+	 *            a map from IDB predicate symbols to strata
+	 * @param initialFacts
+	 *            the initial facts of the program
+	 * @param allFacts
+	 *            the facts derived from the program, which are updated in
+	 *            place
+	 * @param justifications
+	 *            the justifications of the facts, which are updated in place,
+	 *            or null if they are not being collected
+	 */
+	public DRedMaintainer(List<Set<ValidClause>> rulesByStratum, Map<PredicateSym, Integer> predToStratumMap,
+			Set<PositiveAtom> initialFacts, FactIndexer allFacts, Map<PositiveAtom, Clause> justifications) {
+		this.allFacts = allFacts;
+		this.initialFacts = new HashSet<>(initialFacts);
+		this.predToStratumMap = predToStratumMap;
+		this.justifications = justifications;
+		for (Set<ValidClause> rules : rulesByStratum) {
+			this.strata.add(new Stratum(rules));
+		}
+	}
+
+	/**
+	 * Updates the derived facts after some initial facts have been inserted
+	 * and others deleted. Facts that are both inserted and deleted are kept.
+	 *
+	 * @param insertions
+	 *            the inserted facts
+	 * @param deletions
+	 *            the deleted facts
+	 * @throws UnsupportedOperationException
+	 *             if facts are deleted but the fact indexer does not support
+	 *             removal; nothing is changed in that case
+	 */
+	public void update(Set<PositiveAtom> insertions, Set<PositiveAtom> deletions) {
+		if (!deletions.isEmpty() && !this.allFacts.supportsRemoval()) {
+			throw new UnsupportedOperationException(
+					"Facts cannot be deleted, since the fact indexer does not support removal.");
+		}
+		for (PositiveAtom fact : insertions) {
+			checkGround(fact);
+		}
+		for (PositiveAtom fact : deletions) {
+			checkGround(fact);
+		}
+		this.deleted = FactIndexerFactory.createConcurrentSetFactIndexer();
+		this.inserted = FactIndexerFactory.createConcurrentSetFactIndexer();
+		int nstrata = this.strata.size();
+		List<Set<PositiveAtom>> idbDeletions = new ArrayList<>();
+		List<Set<PositiveAtom>> idbInsertions = new ArrayList<>();
+		for (int i = 0; i < nstrata; ++i) {
+			idbDeletions.add(new HashSet<>());
+			idbInsertions.add(new HashSet<>());
+		}
+
+		for (PositiveAtom fact : deletions) {
+			if (insertions.contains(fact) || !this.initialFacts.remove(fact)) {
+				continue;
+			}
+			Integer stratum = this.predToStratumMap.get(fact.getPred());
+			if (stratum != null) {
+				idbDeletions.get(stratum).add(fact);
+			} else if (this.allFacts.remove(fact)) {
+				this.deleted.add(fact);
+				if (this.justifications != null) {
+					this.justifications.remove(fact);
+				}
+			}
+		}
+		for (PositiveAtom fact : insertions) {
+			if (!this.initialFacts.add(fact)) {
+				continue;
+			}
+			Integer stratum = this.predToStratumMap.get(fact.getPred());
+			if (stratum != null) {
+				idbInsertions.get(stratum).add(fact);
+			} else if (!this.contains(this.allFacts, fact)) {
+				this.allFacts.add(fact);
+				this.inserted.add(fact);
+				this.justify(fact, new Clause(fact, Collections.emptyList()));
+			}
+		}
+
+		for (int i = 0; i < nstrata; ++i) {
+			this.maintain(this.strata.get(i), idbDeletions.get(i), idbInsertions.get(i));
+		}
+		this.deleted = null;
+		this.inserted = null;
+		this.deltaNew = null;
+	}
+
+	private static void checkGround(PositiveAtom fact) {
+		if (!fact.isGround()) {
+			throw new IllegalArgumentException("Fact " + fact + " is not ground.");
+		}
+	}
+
+	private void maintain(Stratum stratum, Set<PositiveAtom> idbDeletions, Set<PositiveAtom> idbInsertions) {
+		// Delete every fact that might have lost a derivation.
+		this.mode = Mode.OVERDELETE;
+		this.overdeleted = new HashSet<>();
+		this.deltaNew = FactIndexerFactory.createConcurrentSetFactIndexer();
+		for (PositiveAtom fact : idbDeletions) {
+			if (this.contains(this.allFacts, fact) && this.overdeleted.add(fact)) {
+				this.deltaNew.add(fact);
+			}
+		}
+		feed(stratum.byPositivePred, this.deleted, false);
+		feed(stratum.byNegatedPred, this.inserted, true);
+		while (!this.deltaNew.isEmpty()) {
+			ConcurrentFactIndexer<Set<PositiveAtom>> delta = this.deltaNew;
+			this.deltaNew = FactIndexerFactory.createConcurrentSetFactIndexer();
+			feed(stratum.byPositivePred, delta, false);
+		}
+		for (PositiveAtom fact : this.overdeleted) {
+			this.allFacts.remove(fact);
+			this.deleted.add(fact);
+		}
+
+		// Put back the deleted facts that can still be derived in one step.
+		this.mode = Mode.REDERIVE;
+		List<PositiveAtom> rederived = new ArrayList<>();
+		for (PositiveAtom fact : this.overdeleted) {
+			this.rederivation = null;
+			if (this.initialFacts.contains(fact)) {
+				this.rederivation = new Clause(fact, Collections.emptyList());
+			} else {
+				Set<ClauseEvaluator> evals = stratum.byHeadPred.get(fact.getPred());
+				if (evals != null) {
+					for (ClauseEvaluator eval : evals) {
+						eval.evaluateBinding(fact.getArgs());
+						if (this.rederivation != null) {
+							break;
+						}
+					}
+				}
+			}
+			if (this.rederivation != null) {
+				this.allFacts.add(fact);
+				this.deleted.remove(fact);
+				rederived.add(fact);
+				if (this.justifications != null) {
+					this.justifications.put(fact, this.rederivation);
+				}
+			} else if (this.justifications != null) {
+				this.justifications.remove(fact);
+			}
+		}
+		this.overdeleted = null;
+		this.rederivation = null;
+
+		// Derive the facts that follow from the changes.
+		this.mode = Mode.INSERT;
+		this.deltaNew = FactIndexerFactory.createConcurrentSetFactIndexer();
+		for (PositiveAtom fact : idbInsertions) {
+			if (!this.contains(this.allFacts, fact)) {
+				this.deltaNew.add(fact);
+				this.justify(fact, new Clause(fact, Collections.emptyList()));
+			}
+		}
+		feed(stratum.byPositivePred, this.inserted, false);
+		feed(stratum.byNegatedPred, this.deleted, true);
+		for (PositiveAtom fact : rederived) {
+			Set<ClauseEvaluator> evals = stratum.byPositivePred.get(fact.getPred());
+			if (evals != null) {
+				for (ClauseEvaluator eval : evals) {
+					eval.evaluate(fact);
+				}
+			}
+		}
+		while (!this.deltaNew.isEmpty()) {
+			ConcurrentFactIndexer<Set<PositiveAtom>> delta = this.deltaNew;
+			this.deltaNew = FactIndexerFactory.createConcurrentSetFactIndexer();
+			for (PredicateSym pred : delta.getPreds()) {
+				for (PositiveAtom fact : delta.indexInto(pred)) {
+					this.allFacts.add(fact);
+					// A fact that was deleted and derived again is unchanged.
+					if (!this.deleted.remove(fact)) {
+						this.inserted.add(fact);
+					}
+				}
+			}
+			feed(stratum.byPositivePred, delta, false);
+		}
+	}
+
+	/**
+	 * Evaluates the evaluators on the facts of the predicate symbols they are
+	 * indexed by, either as facts for their first atom or, if they are seeded,
+	 * as bindings for it.
+	 */
+	private static void feed(Map<PredicateSym, Set<ClauseEvaluator>> evalMap,
+			ConcurrentFactIndexer<Set<PositiveAtom>> facts, boolean seeded) {
+		for (PredicateSym pred : facts.getPreds()) {
+			Set<ClauseEvaluator> evals = evalMap.get(pred);
+			if (evals != null) {
+				for (ClauseEvaluator eval : evals) {
+					for (PositiveAtom fact : facts.indexInto(pred)) {
+						if (seeded) {
+							eval.evaluateBinding(fact.getArgs());
+						} else {
+							eval.evaluate(fact);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void newFact(PositiveAtom head, ClauseSubstitution subst, Clause rule) {
+		PositiveAtom fact = head.applySubst(subst);
+		switch (this.mode) {
+		case OVERDELETE:
+			if (this.contains(this.allFacts, fact) && this.overdeleted.add(fact)) {
+				this.deltaNew.add(fact);
+			}
+			break;
+		case REDERIVE:
+			if (this.rederivation == null) {
+				this.rederivation = this.justifications == null ? rule
+						: SubstitutionUtils.applyToClause(subst, rule);
+			}
+			break;
+		case INSERT:
+			if (!this.contains(this.allFacts, fact) && !this.contains(this.deltaNew, fact)) {
+				this.deltaNew.add(fact);
+				if (this.justifications != null) {
+					this.justify(fact, SubstitutionUtils.applyToClause(subst, rule));
+				}
+			}
+			break;
+		default:
+			assert false;
+		}
+	}
+
+	private Iterable<PositiveAtom> getFacts(AnnotatedAtom atom, ClauseSubstitution subst) {
+		PositiveAtom unannotated = atom.asUnannotatedAtom();
+		Iterable<PositiveAtom> current = this.allFacts.indexInto(unannotated, subst);
+		if (this.mode != Mode.OVERDELETE) {
+			return current;
+		}
+		// Derivations that used a deleted fact have to be found as well. The
+		// facts of the stratum being maintained are only deleted once every
+		// fact that depends on them has been found.
+		Iterable<PositiveAtom> old = this.deleted.indexInto(unannotated, subst);
+		return () -> concat(current.iterator(), old.iterator());
+	}
+
+	private static <T> Iterator<T> concat(Iterator<T> first, Iterator<T> second) {
+		return new Iterator<T>() {
+
+			@Override
+			public boolean hasNext() {
+				return first.hasNext() || second.hasNext();
+			}
+
+			@Override
+			public T next() {
+				if (first.hasNext()) {
+					return first.next();
+				}
+				if (second.hasNext()) {
+					return second.next();
+				}
+				throw new NoSuchElementException();
+			}
+
+		};
+	}
+
+	private void justify(PositiveAtom fact, Clause justification) {
+		if (this.justifications != null) {
+			this.justifications.putIfAbsent(fact, justification);
+		}
+	}
+
+	private boolean contains(FactIndexer index, PositiveAtom fact) {
+		Iterable<PositiveAtom> candidates = index.indexInto(fact);
+		if (candidates instanceof Set) {
+			return ((Set<?>) candidates).contains(fact);
+		}
+		for (PositiveAtom other : candidates) {
+			if (other.equals(fact)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The evaluators for the rules of a stratum.
+	 */
+	private final class Stratum {
+		/**
+		 * Evaluators that start from a fact matching a positive atom in the
+		 * body, indexed by the predicate symbol of that atom.
+		 */
+		private final Map<PredicateSym, Set<ClauseEvaluator>> byPositivePred = new HashMap<>();
+		/**
+		 * Evaluators that start from a fact matching a negated atom in the
+		 * body, indexed by the predicate symbol of that atom.
+		 */
+		private final Map<PredicateSym, Set<ClauseEvaluator>> byNegatedPred = new HashMap<>();
+		/**
+		 * Evaluators that start from a fact matching the head, indexed by the
+		 * predicate symbol of the head.
+		 */
+		private final Map<PredicateSym, Set<ClauseEvaluator>> byHeadPred = new HashMap<>();
+
+		public Stratum(Set<ValidClause> rules) {
+			HeadVisitor<Void, PositiveAtom> getHead = (new HeadVisitorBuilder<Void, PositiveAtom>())
+					.onPositiveAtom((atom, nothing) -> atom).orCrash();
+			PremiseVisitor<Void, PredicateSym> getPositivePred = (new PremiseVisitorBuilder<Void, PredicateSym>())
+					.onPositiveAtom((atom, nothing) -> atom.getPred()).orNull();
+			for (ValidClause rule : rules) {
+				PositiveAtom head = rule.getHead().accept(getHead, null);
+				List<Premise> body = rule.getBody();
+
+				Set<PredicateSym> bodyPreds = new HashSet<>();
+				for (Premise p : body) {
+					PredicateSym pred = p.accept(getPositivePred, null);
+					if (pred != null) {
+						bodyPreds.add(pred);
+					}
+				}
+				for (SemiNaiveClause cl : new SemiNaiveClauseAnnotator(bodyPreds).annotate(rule)) {
+					add(this.byPositivePred, cl.getFirstAtom().getPred(), cl, rule);
+				}
+
+				for (int i = 0; i < body.size(); ++i) {
+					if (body.get(i) instanceof NegatedAtom) {
+						NegatedAtom atom = (NegatedAtom) body.get(i);
+						PositiveAtom seed = seed(atom.getArgs());
+						List<Premise> newBody = new ArrayList<>(body);
+						newBody.set(i, seed);
+						add(this.byNegatedPred, atom.getPred(), seeded(head, newBody, seed.getPred()), rule);
+					}
+				}
+
+				PositiveAtom seed = seed(head.getArgs());
+				List<Premise> newBody = new ArrayList<>();
+				newBody.add(seed);
+				newBody.addAll(body);
+				add(this.byHeadPred, head.getPred(), seeded(head, newBody, seed.getPred()), rule);
+			}
+		}
+
+		private PositiveAtom seed(Term[] args) {
+			return PositiveAtom.create(PredicateSym.create(SEED, args.length), args);
+		}
+
+		/**
+		 * Annotates a rule whose body contains a single seed atom so that the
+		 * seed atom comes first.
+		 */
+		private SemiNaiveClause seeded(PositiveAtom head, List<Premise> body, PredicateSym seedPred) {
+			UnstratifiedProgram prog;
+			try {
+				prog = (new DatalogValidator()).withBinaryDisunificationInRuleBody()
+						.withBinaryUnificationInRuleBody().withAtomNegationInRuleBody()
+						.validate(Collections.singleton(new Clause(head, body)));
+			} catch (DatalogValidationException e) {
+				throw new AssertionError("Adding a positive atom cannot make a valid rule invalid.", e);
+			}
+			ValidClause rule = prog.getRules().iterator().next();
+			return new SemiNaiveClauseAnnotator(Collections.singleton(seedPred)).annotate(rule).iterator().next();
+		}
+
+		private void add(Map<PredicateSym, Set<ClauseEvaluator>> evalMap, PredicateSym pred, SemiNaiveClause cl,
+				Clause rule) {
+			ClauseEvaluator eval = new ClauseEvaluator(cl, (head, subst) -> newFact(head, subst, rule),
+					DRedMaintainer.this::getFacts);
+			Utilities.getSetFromMap(evalMap, pred).add(eval);
+		}
+	}
+
+}
@@ -43,12 +43,20 @@ import edu.harvard.seas.pl.abcdatalog.ast.Premise;
 import edu.harvard.seas.pl.abcdatalog.engine.DatalogEngine;
 import edu.harvard.seas.pl.abcdatalog.engine.DatalogEngineWithProvenance;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BottomUpEngineFrameWithProvenance;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.LeapfrogTriejoin;
 import edu.harvard.seas.pl.abcdatalog.parser.DatalogParser;
 import edu.harvard.seas.pl.abcdatalog.parser.DatalogTokenizer;
 
 /**
  * A Datalog engine that implements the classic semi-naive bottom-up evaluation
  * algorithm. It supports explicit unification and stratified negation.
+ * 
+ * By default, rules whose bodies are cyclic (such as triangle queries) are
+ * evaluated using leapfrog triejoin (see {@link LeapfrogTriejoin}), but only
+ * if they are not recursive, i.e., if their bodies do not refer to predicates
+ * of their own stratum. Such rules are evaluated once, in the first round of
+ * their stratum; recursive rules are always evaluated a fact at a time, since
+ * the triejoin would read every premise in full in each round.
  *
  */
 
@@ -61,11 +69,27 @@ public class SemiNaiveEngine extends BottomUpEngineFrameWithProvenance {
 	public static DatalogEngineWithProvenance newEngineWithProvenance() {
 		return new SemiNaiveEngine(true);
 	}
+
+	public static DatalogEngineWithProvenance newParallelEngineWithProvenance() {
+		return new SemiNaiveEngine(true, new SemiNaiveOptions().withParallelRounds());
+	}
 	
 	public SemiNaiveEngine(boolean collectProv) {
 		super(new SemiNaiveEvalManager(collectProv));
 	}
 
+	/**
+	 * Constructs a semi-naive engine with the given options.
+	 *
+	 * @param collectProv
+	 *            whether to collect provenance information
+	 * @param options
+	 *            the options
+	 */
+	public SemiNaiveEngine(boolean collectProv, SemiNaiveOptions options) {
+		super(new SemiNaiveEvalManager(collectProv, options));
+	}
+
 	public static void main(String[] args) throws Exception {
 		String[] lines = {
 				"edge(a, b).",
@@ -34,6 +34,7 @@ package edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential;
  */
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -41,7 +42,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import edu.harvard.seas.pl.abcdatalog.ast.BinaryDisunifier;
 import edu.harvard.seas.pl.abcdatalog.ast.BinaryUnifier;
@@ -60,27 +62,81 @@ import edu.harvard.seas.pl.abcdatalog.ast.visitors.HeadVisitor;
 import edu.harvard.seas.pl.abcdatalog.ast.visitors.PremiseVisitor;
 import edu.harvard.seas.pl.abcdatalog.ast.visitors.PremiseVisitorBuilder;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.AnnotatedAtom;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BindingPatterns;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.ClauseEvaluator;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.EvalManagerWithProvenance;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.HashJoin;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.IncrementalEvalManager;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.LeapfrogTriejoin;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
 import edu.harvard.seas.pl.abcdatalog.util.Utilities;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactIndexer;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexer;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactStatistics;
 import edu.harvard.seas.pl.abcdatalog.util.datastructures.IndexableFactCollection;
 import edu.harvard.seas.pl.abcdatalog.util.substitution.ClauseSubstitution;
 import edu.harvard.seas.pl.abcdatalog.util.substitution.SubstitutionUtils;
 
-public class SemiNaiveEvalManager implements EvalManagerWithProvenance {
-	private final ConcurrentFactIndexer<Set<PositiveAtom>> allFacts = FactIndexerFactory
-			.createConcurrentSetFactIndexer();
+public class SemiNaiveEvalManager implements EvalManagerWithProvenance, IncrementalEvalManager {
+	private final FactIndexer allFacts;
 	private final List<StratumEvaluator> stratumEvals = new ArrayList<>();
 	private final boolean collectProv;
+	private final boolean compileClauses;
+	private final boolean adaptiveJoinOrder;
+	private final boolean parallel;
+	private final int maxStratumSize;
+	private final boolean hashJoins;
+	private final int hashJoinMinFacts;
+	private final int hashJoinFactor;
+	private final boolean leapfrogJoins;
+	/**
+	 * The pool given to this evaluation manager, which it does not shut down,
+	 * or null if it creates a pool for each evaluation.
+	 */
+	private final ForkJoinPool givenPool;
+	/**
+	 * The pool used to evaluate rounds in parallel; only set during
+	 * evaluation.
+	 */
+	private ForkJoinPool pool;
+	/**
+	 * The buffer that the current thread adds derived facts to, if it is
+	 * evaluating part of a round in parallel.
+	 */
+	private final ThreadLocal<List<Derivation>> buffer = new ThreadLocal<>();
 	private final ConcurrentHashMap<PositiveAtom, Clause> justifications = new ConcurrentHashMap<>();
+	private final List<Set<ValidClause>> rulesByStratum = new ArrayList<>();
+	private Map<PredicateSym, Integer> predToStratumMap;
+	private Set<PositiveAtom> initialFacts;
+	private DRedMaintainer maintainer;
 	
 	public SemiNaiveEvalManager(boolean collectProv) {
+		this(collectProv, new SemiNaiveOptions());
+	}
+
+	/**
+	 * Constructs an evaluation manager with the given options.
+	 *
+	 * @param collectProv
+	 *            whether to collect provenance information
+	 * @param options
+	 *            the options
+	 */
+	public SemiNaiveEvalManager(boolean collectProv, SemiNaiveOptions options) {
 		this.collectProv = collectProv;
+		FactIndexer allFacts = options.getFactIndexer();
+		this.allFacts = allFacts != null ? allFacts : FactIndexerFactory.createConcurrentSetFactIndexer();
+		this.compileClauses = options.getCompileClauses();
+		this.adaptiveJoinOrder = options.getAdaptiveJoinOrder();
+		this.parallel = options.getParallel();
+		this.maxStratumSize = options.getMaxStratumSize();
+		this.hashJoins = options.getHashJoins();
+		this.hashJoinMinFacts = options.getHashJoinMinFacts();
+		this.hashJoinFactor = options.getHashJoinFactor();
+		this.givenPool = options.getPool();
+		this.leapfrogJoins = options.getLeapfrogJoins();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -88,13 +144,14 @@ public class SemiNaiveEvalManager implements EvalManagerWithProvenance {
 	public synchronized void initialize(Set<Clause> program) throws DatalogValidationException {
 		UnstratifiedProgram prog = (new DatalogValidator()).withBinaryDisunificationInRuleBody()
 				.withBinaryUnificationInRuleBody().withAtomNegationInRuleBody().validate(program);
-		StratifiedProgram stratProg = StratifiedNegationValidator.validate(prog);
+		StratifiedProgram stratProg = StratifiedNegationValidator.validate(prog, maxStratumSize);
 		List<Set<PredicateSym>> strata = stratProg.getStrata();
 		int nstrata = strata.size();
 		Map<PredicateSym, Set<SemiNaiveClause>>[] firstRoundRules = new HashMap[nstrata];
 		Map<PredicateSym, Set<SemiNaiveClause>>[] laterRoundRules = new HashMap[nstrata];
 		Set<PositiveAtom>[] initialIdbFacts = new HashSet[nstrata];
 		for (int i = 0; i < nstrata; ++i) {
+			rulesByStratum.add(new HashSet<>());
 			firstRoundRules[i] = new HashMap<>();
 			laterRoundRules[i] = new HashMap<>();
 			initialIdbFacts[i] = new HashSet<>();
@@ -112,6 +169,7 @@ public class SemiNaiveEvalManager implements EvalManagerWithProvenance {
 		for (ValidClause clause : prog.getRules()) {
 			PredicateSym pred = clause.getHead().accept(getHeadPred, null);
 			int stratum = predToStratumMap.get(pred);
+			rulesByStratum.get(stratum).add(clause);
 			// Treat IDB predicates from earlier strata as EDB predicates.
 			Set<PredicateSym> idbs = strata.get(stratum);
 			PremiseVisitor<Boolean, Boolean> checkForIdbPred = (new PremiseVisitorBuilder<Boolean, Boolean>())
@@ -144,6 +202,8 @@ public class SemiNaiveEvalManager implements EvalManagerWithProvenance {
 			}
 		}
 
+		this.predToStratumMap = predToStratumMap;
+		this.initialFacts = prog.getInitialFacts();
 		for (int i = 0; i < nstrata; ++i) {
 			stratumEvals.add(new StratumEvaluator(firstRoundRules[i], laterRoundRules[i], initialIdbFacts[i]));
 		}
@@ -151,12 +211,44 @@ public class SemiNaiveEvalManager implements EvalManagerWithProvenance {
 
 	@Override
 	public synchronized IndexableFactCollection eval() {
-		for (StratumEvaluator se : stratumEvals) {
-			se.eval();
+		if (parallel) {
+			pool = givenPool != null ? givenPool : new ForkJoinPool(Utilities.concurrency);
+		}
+		try {
+			for (StratumEvaluator se : stratumEvals) {
+				se.eval();
+			}
+		} finally {
+			if (pool != null) {
+				if (pool != givenPool) {
+					pool.shutdown();
+				}
+				pool = null;
+			}
 		}
 		return allFacts;
 	}
 	
+	/**
+	 * Updates the derived facts using the delete/rederive algorithm (see
+	 * {@link DRedMaintainer}). Deleting facts requires a fact indexer that
+	 * supports removal (see {@link FactIndexer#supportsRemoval()}); otherwise,
+	 * an {@link UnsupportedOperationException} is thrown before anything is
+	 * changed.
+	 */
+	@Override
+	public synchronized IndexableFactCollection update(Set<PositiveAtom> insertions, Set<PositiveAtom> deletions) {
+		if (initialFacts == null) {
+			throw new IllegalStateException("Manager must be initialized before it can be updated.");
+		}
+		if (maintainer == null) {
+			maintainer = new DRedMaintainer(rulesByStratum, predToStratumMap, initialFacts, allFacts,
+					collectProv ? justifications : null);
+		}
+		maintainer.update(insertions, deletions);
+		return allFacts;
+	}
+
 	@Override
 	public Clause getJustification(PositiveAtom fact) {
 		return justifications.get(fact);
@@ -197,6 +289,57 @@ public class SemiNaiveEvalManager implements EvalManagerWithProvenance {
 		return new Clause(cl.getHead(), newBody);
 	}
 
+	/**
+	 * The factor by which the number of facts in the delta has to change
+	 * before the rules are re-planned.
+	 */
+	private static final int REPLAN_FACTOR = 10;
+
+	/**
+	 * The number of facts in a chunk of a round. Each chunk is handed to the
+	 * clause evaluators as a batch, and is a separate task when the round is
+	 * evaluated in parallel.
+	 */
+	private static final int CHUNK_SIZE = 256;
+
+	/**
+	 * A fact derived while evaluating a chunk, together with its
+	 * justification (if provenance is being collected).
+	 */
+	private static final class Derivation {
+		private final PositiveAtom fact;
+		private final Clause justification;
+
+		public Derivation(PositiveAtom fact, Clause justification) {
+			this.fact = fact;
+			this.justification = justification;
+		}
+	}
+
+	/**
+	 * A part of a round, which buffers the facts it derives.
+	 */
+	@SuppressWarnings("serial")
+	private final class RoundTask extends RecursiveAction {
+		private final Runnable work;
+		private final List<Derivation> derived = new ArrayList<>();
+
+		public RoundTask(Runnable work) {
+			this.work = work;
+		}
+
+		@Override
+		protected void compute() {
+			List<Derivation> prev = buffer.get();
+			buffer.set(derived);
+			try {
+				work.run();
+			} finally {
+				buffer.set(prev);
+			}
+		}
+	}
+
 	private class StratumEvaluator {
 		private ConcurrentFactIndexer<Set<PositiveAtom>> idbsPrev = FactIndexerFactory
 				.createConcurrentSetFactIndexer();
@@ -204,48 +347,179 @@ public class SemiNaiveEvalManager implements EvalManagerWithProvenance {
 				.createConcurrentSetFactIndexer();
 		private ConcurrentFactIndexer<Set<PositiveAtom>> deltaNew = FactIndexerFactory
 				.createConcurrentSetFactIndexer();
-		private final Map<PredicateSym, Set<ClauseEvaluator>> firstRoundEvals;
-		private final Map<PredicateSym, Set<ClauseEvaluator>> laterRoundEvals;
+		private final Map<PredicateSym, Set<SemiNaiveClause>> firstRoundRules;
+		private final Map<PredicateSym, Set<SemiNaiveClause>> laterRoundRules;
+		private Map<PredicateSym, Set<ClauseEvaluator>> firstRoundEvals;
+		private Map<PredicateSym, Set<ClauseEvaluator>> laterRoundEvals;
+		private final List<LeapfrogTriejoin> firstRoundJoins = new ArrayList<>();
 		private final Set<PositiveAtom> initialIdbFacts;
+		private final Map<PredicateSym, Set<Set<Integer>>> deltaPatterns = new HashMap<>();
+		/**
+		 * Whether the rules are planned using live statistics.
+		 */
+		private final boolean adaptive;
+		/**
+		 * The number of facts in the delta when the later round rules were
+		 * last planned, or -1 if they have not been planned yet.
+		 */
+		private int plannedDeltaSize = -1;
+		/**
+		 * The hash join for each evaluator, if rules can be evaluated
+		 * set-at-a-time.
+		 */
+		private final Map<ClauseEvaluator, HashJoin> hashJoinMap = new HashMap<>();
 
 		public StratumEvaluator(Map<PredicateSym, Set<SemiNaiveClause>> firstRoundRules,
 				Map<PredicateSym, Set<SemiNaiveClause>> laterRoundRules, Set<PositiveAtom> initialIdbFacts) {
-			Function<Map<PredicateSym, Set<SemiNaiveClause>>, Map<PredicateSym, Set<ClauseEvaluator>>> translate = (
-					clauseMap) -> {
-				Map<PredicateSym, Set<ClauseEvaluator>> evalMap = new HashMap<>();
-				for (Map.Entry<PredicateSym, Set<SemiNaiveClause>> entry : clauseMap.entrySet()) {
-					Set<ClauseEvaluator> s = new HashSet<>();
-					for (SemiNaiveClause cl : entry.getValue()) {
+			this.adaptive = adaptiveJoinOrder && allFacts instanceof FactStatistics;
+			this.firstRoundRules = splitJoins(firstRoundRules, firstRoundJoins);
+			this.laterRoundRules = laterRoundRules;
+			if (!this.adaptive) {
+				firstRoundEvals = translate(this.firstRoundRules);
+				laterRoundEvals = translate(this.laterRoundRules);
+			}
+			this.initialIdbFacts = initialIdbFacts;
+		}
+
+		/**
+		 * Removes the clauses with cyclic bodies, which are evaluated a round
+		 * at a time using leapfrog triejoin instead of a fact at a time. This
+		 * is only done for the first round, whose clauses are the
+		 * non-recursive ones: the triejoin reads every atom in full, while a
+		 * later round only starts from the new facts. Since the first round is
+		 * evaluated once, the triejoin does not cache its sorted rows.
+		 */
+		private Map<PredicateSym, Set<SemiNaiveClause>> splitJoins(Map<PredicateSym, Set<SemiNaiveClause>> clauseMap,
+				List<LeapfrogTriejoin> joins) {
+			Map<PredicateSym, Set<SemiNaiveClause>> rest = new HashMap<>();
+			for (Map.Entry<PredicateSym, Set<SemiNaiveClause>> entry : clauseMap.entrySet()) {
+				Set<SemiNaiveClause> s = new HashSet<>();
+				for (SemiNaiveClause cl : entry.getValue()) {
+					if (leapfrogJoins && LeapfrogTriejoin.isApplicable(cl) && LeapfrogTriejoin.isCyclic(cl)) {
 						Clause stripped = stripSemiNaiveClause(cl);
-						s.add(new ClauseEvaluator(cl, (fact, subst) -> addFact(fact, subst, stripped), this::getFacts));
+						joins.add(new LeapfrogTriejoin(cl, (fact, subst) -> addFact(fact, subst, stripped),
+								atom -> getFacts(atom, null)));
+					} else {
+						s.add(cl);
 					}
-					evalMap.put(entry.getKey(), s);
 				}
-				return evalMap;
-			};
-			firstRoundEvals = translate.apply(firstRoundRules);
-			laterRoundEvals = translate.apply(laterRoundRules);
-			this.initialIdbFacts = initialIdbFacts;
+				rest.put(entry.getKey(), s);
+			}
+			return rest;
+		}
+
+		/**
+		 * Creates evaluators for the clauses, reordering their bodies using
+		 * the current statistics if adaptive planning is enabled.
+		 */
+		private Map<PredicateSym, Set<ClauseEvaluator>> translate(Map<PredicateSym, Set<SemiNaiveClause>> clauseMap) {
+			Map<PredicateSym, Set<ClauseEvaluator>> evalMap = new HashMap<>();
+			for (Map.Entry<PredicateSym, Set<SemiNaiveClause>> entry : clauseMap.entrySet()) {
+				Set<ClauseEvaluator> s = new HashSet<>();
+				for (SemiNaiveClause cl : entry.getValue()) {
+					// Justifications keep the original order of the body.
+					Clause stripped = stripSemiNaiveClause(cl);
+					SemiNaiveClause planned = adaptive ? SemiNaiveClauseAnnotator.reorder(cl, this::estimateMatches)
+							: cl;
+					BindingPatterns.forEachLookup(planned, this::addBindingPattern);
+					ClauseEvaluator eval = new ClauseEvaluator(planned, (fact, subst) -> addFact(fact, subst, stripped),
+							this::getFacts, compileClauses, this::isExact);
+					s.add(eval);
+					if (hashJoins && allFacts instanceof FactStatistics) {
+						hashJoinMap.put(eval, new HashJoin(planned, (fact, subst) -> addFact(fact, subst, stripped),
+								atom -> getFacts(atom, null)));
+					}
+				}
+				evalMap.put(entry.getKey(), s);
+			}
+			return evalMap;
 		}
-		
+
 		public void eval() {
 			deltaNew.addAll(this.initialIdbFacts);
-			evalOneRound(allFacts, firstRoundEvals);
-			while (evalOneRound(deltaOld, laterRoundEvals)) {
+			if (adaptive) {
+				firstRoundEvals = translate(firstRoundRules);
+			}
+			evalOneRound(allFacts, firstRoundEvals, firstRoundJoins);
+			while (evalOneRound(deltaOld, getLaterRoundEvals(), Collections.emptyList())) {
 				// Loop...
 			}
 		}
 
-		private boolean evalOneRound(FactIndexer index, Map<PredicateSym, Set<ClauseEvaluator>> rules) {
-			for (PredicateSym pred : index.getPreds()) {
-				Set<ClauseEvaluator> evals = rules.get(pred);
-				if (evals != null) {
-					for (ClauseEvaluator eval : evals) {
-						for (PositiveAtom fact : index.indexInto(pred)) {
-							eval.evaluate(fact);
+		/**
+		 * Returns the evaluators for the later rounds. If adaptive planning is
+		 * enabled, the rules are re-planned when the size of the delta has
+		 * changed by at least a factor of {@link #REPLAN_FACTOR} since they
+		 * were last planned.
+		 */
+		private Map<PredicateSym, Set<ClauseEvaluator>> getLaterRoundEvals() {
+			if (!adaptive) {
+				return laterRoundEvals;
+			}
+			int size = 0;
+			for (PredicateSym pred : deltaOld.getPreds()) {
+				size += deltaOld.getCardinality(pred);
+			}
+			long planned = Math.max(1, plannedDeltaSize);
+			long current = Math.max(1, size);
+			if (plannedDeltaSize < 0 || current >= planned * REPLAN_FACTOR || current * REPLAN_FACTOR <= planned) {
+				if (laterRoundEvals != null) {
+					for (Set<ClauseEvaluator> evals : laterRoundEvals.values()) {
+						hashJoinMap.keySet().removeAll(evals);
+					}
+				}
+				laterRoundEvals = translate(laterRoundRules);
+				plannedDeltaSize = size;
+			}
+			return laterRoundEvals;
+		}
+
+		private double estimateMatches(AnnotatedAtom atom, Set<Integer> boundPositions) {
+			FactStatistics stats = null;
+			switch (atom.getAnnotation()) {
+			case EDB:
+				// Fall through...
+			case IDB:
+				stats = (FactStatistics) allFacts;
+				break;
+			case IDB_PREV:
+				stats = idbsPrev;
+				break;
+			case DELTA:
+				stats = deltaOld;
+				break;
+			default:
+				assert false;
+			}
+			return stats.estimateMatches(atom.getPred(), boundPositions);
+		}
+
+		private boolean evalOneRound(FactIndexer index, Map<PredicateSym, Set<ClauseEvaluator>> rules,
+				List<LeapfrogTriejoin> joins) {
+			if (pool != null) {
+				evalOneRoundInParallel(index, rules, joins);
+			} else {
+				for (PredicateSym pred : index.getPreds()) {
+					Set<ClauseEvaluator> evals = rules.get(pred);
+					if (evals == null) {
+						continue;
+					}
+					List<HashJoin> setAtATime = new ArrayList<>();
+					List<ClauseEvaluator> rest = chooseHashJoins(index, pred, evals, setAtATime);
+					for (HashJoin join : setAtATime) {
+						join.evaluate(index.indexInto(pred));
+					}
+					if (!rest.isEmpty()) {
+						for (List<PositiveAtom> chunk : split(index.indexInto(pred))) {
+							for (ClauseEvaluator eval : rest) {
+								eval.evaluate(chunk);
+							}
 						}
 					}
 				}
+				for (LeapfrogTriejoin join : joins) {
+					join.evaluate();
+				}
 			}
 
 			if (deltaNew.isEmpty()) {
@@ -253,27 +527,218 @@ public class SemiNaiveEvalManager implements EvalManagerWithProvenance {
 			}
 
 			idbsPrev.addAll(deltaOld);
-			allFacts.addAll(deltaNew);
+			for (PredicateSym pred : deltaNew.getPreds()) {
+				allFacts.addAll(deltaNew.indexInto(pred));
+			}
 			deltaOld = deltaNew;
 			deltaNew = FactIndexerFactory.createConcurrentSetFactIndexer();
+			for (Map.Entry<PredicateSym, Set<Set<Integer>>> e : deltaPatterns.entrySet()) {
+				for (Set<Integer> positions : e.getValue()) {
+					deltaNew.addBindingPattern(e.getKey(), positions);
+				}
+			}
 			return true;
 		}
 
+		/**
+		 * Evaluates a round on the pool, splitting the facts of each
+		 * predicate symbol into chunks. The indices read during the round do
+		 * not change until it is over: the derived facts are buffered by each
+		 * chunk and only added to the delta afterwards.
+		 */
+		@SuppressWarnings("serial")
+		private void evalOneRoundInParallel(FactIndexer index, Map<PredicateSym, Set<ClauseEvaluator>> rules,
+				List<LeapfrogTriejoin> joins) {
+			List<RoundTask> tasks = new ArrayList<>();
+			for (PredicateSym pred : index.getPreds()) {
+				Set<ClauseEvaluator> evals = rules.get(pred);
+				if (evals == null) {
+					continue;
+				}
+				List<HashJoin> setAtATime = new ArrayList<>();
+				List<ClauseEvaluator> rest = chooseHashJoins(index, pred, evals, setAtATime);
+				Iterable<PositiveAtom> facts = index.indexInto(pred);
+				for (HashJoin join : setAtATime) {
+					tasks.add(new RoundTask(() -> join.evaluate(facts)));
+				}
+				if (!rest.isEmpty()) {
+					for (List<PositiveAtom> chunk : split(facts)) {
+						tasks.add(newChunkTask(rest, chunk));
+					}
+				}
+			}
+			for (LeapfrogTriejoin join : joins) {
+				tasks.add(new RoundTask(join::evaluate));
+			}
+			if (tasks.isEmpty()) {
+				return;
+			}
+			pool.invoke(new RecursiveAction() {
+
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+			for (RoundTask task : tasks) {
+				for (Derivation d : task.derived) {
+					if (!contains(deltaNew, d.fact)) {
+						deltaNew.add(d.fact);
+						if (collectProv) {
+							justifications.put(d.fact, d.justification);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Chooses how to evaluate each of the evaluators for a predicate
+		 * symbol in this round. The hash joins to use are added to the given
+		 * list, and the evaluators that should be handed the facts one
+		 * chunk at a time are returned. A hash join is used when the facts
+		 * the round starts from are numerous compared to the relations that
+		 * the other premises are joined with, since it scans each of those
+		 * relations once instead of probing them once per fact.
+		 */
+		private List<ClauseEvaluator> chooseHashJoins(FactIndexer index, PredicateSym pred,
+				Set<ClauseEvaluator> evals, List<HashJoin> hashJoins) {
+			List<ClauseEvaluator> rest = new ArrayList<>();
+			int nfacts = hashJoinMap.isEmpty() ? 0 : ((FactStatistics) index).getCardinality(pred);
+			for (ClauseEvaluator eval : evals) {
+				HashJoin join = hashJoinMap.get(eval);
+				if (join != null && nfacts >= hashJoinMinFacts
+						&& (double) nfacts * hashJoinFactor >= estimateScan(join.getClause())) {
+					hashJoins.add(join);
+				} else {
+					rest.add(eval);
+				}
+			}
+			return rest;
+		}
+
+		/**
+		 * Estimates the number of facts that a hash join scans for the
+		 * premises of the clause after the first one.
+		 */
+		private double estimateScan(SemiNaiveClause cl) {
+			double r = 0;
+			List<Premise> body = cl.getBody();
+			for (int i = 1; i < body.size(); ++i) {
+				Premise p = body.get(i);
+				if (p instanceof AnnotatedAtom) {
+					r += estimateMatches((AnnotatedAtom) p, Collections.emptySet());
+				} else if (p instanceof NegatedAtom) {
+					r += ((FactStatistics) allFacts).getCardinality(((NegatedAtom) p).getPred());
+				}
+			}
+			return r;
+		}
+
+		private RoundTask newChunkTask(Collection<ClauseEvaluator> evals, List<PositiveAtom> chunk) {
+			return new RoundTask(() -> {
+				for (ClauseEvaluator eval : evals) {
+					eval.evaluate(chunk);
+				}
+			});
+		}
+
+		private List<List<PositiveAtom>> split(Iterable<PositiveAtom> facts) {
+			List<List<PositiveAtom>> chunks = new ArrayList<>();
+			List<PositiveAtom> chunk = new ArrayList<>(CHUNK_SIZE);
+			for (PositiveAtom fact : facts) {
+				chunk.add(fact);
+				if (chunk.size() == CHUNK_SIZE) {
+					chunks.add(chunk);
+					chunk = new ArrayList<>(CHUNK_SIZE);
+				}
+			}
+			if (!chunk.isEmpty()) {
+				chunks.add(chunk);
+			}
+			return chunks;
+		}
+
+		private void addBindingPattern(AnnotatedAtom atom, Set<Integer> boundPositions) {
+			PredicateSym pred = atom.getPred();
+			switch (atom.getAnnotation()) {
+			case EDB:
+				// Fall through...
+			case IDB:
+				allFacts.addBindingPattern(pred, boundPositions);
+				break;
+			case IDB_PREV:
+				idbsPrev.addBindingPattern(pred, boundPositions);
+				break;
+			case DELTA:
+				Utilities.getSetFromMap(deltaPatterns, pred).add(boundPositions);
+				deltaOld.addBindingPattern(pred, boundPositions);
+				deltaNew.addBindingPattern(pred, boundPositions);
+				break;
+			default:
+				assert false;
+			}
+		}
+
+		/**
+		 * Records a derived fact. A fact keeps the justification of its first
+		 * derivation in a round (or its empty-bodied clause, if it is an
+		 * initial fact): a derivation of a fact that is already in the delta
+		 * is dropped, both here and when the buffered derivations of a
+		 * parallel round are merged in chunk order, so that both modes record
+		 * the same justifications.
+		 */
 		private boolean addFact(PositiveAtom fact, ClauseSubstitution subst, Clause stripped) {
 			fact = fact.applySubst(subst);
-			Set<PositiveAtom> set = allFacts.indexInto(fact);
-			if (!set.contains(fact)) {
-				deltaNew.add(fact);
+			if (!isKnown(fact)) {
+				List<Derivation> derived = buffer.get();
+				if (derived != null) {
+					Clause justification = collectProv ? SubstitutionUtils.applyToClause(subst, stripped) : null;
+					derived.add(new Derivation(fact, justification));
+					return true;
+				}
 				if (collectProv) {
+					if (contains(deltaNew, fact)) {
+						return false;
+					}
 					justifications.put(fact, SubstitutionUtils.applyToClause(subst, stripped));
 				}
+				deltaNew.add(fact);
 				return true;
 			}
 			return false;
 		}
 
+		private boolean isKnown(PositiveAtom fact) {
+			return contains(allFacts, fact);
+		}
+
+		private boolean contains(FactIndexer index, PositiveAtom fact) {
+			Iterable<PositiveAtom> candidates = index.indexInto(fact);
+			if (candidates instanceof Set) {
+				return ((Set<?>) candidates).contains(fact);
+			}
+			for (PositiveAtom other : candidates) {
+				if (other.equals(fact)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean isExact(AnnotatedAtom atom) {
+			switch (atom.getAnnotation()) {
+			case EDB:
+				// Fall through...
+			case IDB:
+				return allFacts.isExact();
+			default:
+				return false;
+			}
+		}
+
 		private Iterable<PositiveAtom> getFacts(AnnotatedAtom atom, ClauseSubstitution subst) {
-			Set<PositiveAtom> r = null;
+			Iterable<PositiveAtom> r = null;
 			PositiveAtom unannotated = atom.asUnannotatedAtom();
 			switch (atom.getAnnotation()) {
 			case EDB:
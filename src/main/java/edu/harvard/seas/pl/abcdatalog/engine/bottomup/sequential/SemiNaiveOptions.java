@@ -0,0 +1,265 @@
+package edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Clause;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.StratifiedNegationValidator;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.UnstratifiedProgram;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.HashJoin;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.LeapfrogTriejoin;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexer;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactStatistics;
+
+/**
+ * The options of a {@link SemiNaiveEvalManager} (or {@link SemiNaiveEngine}).
+ * Each method sets an option and returns this object, so that calls can be
+ * chained:
+ *
+ * <pre>
+ * new SemiNaiveEngine(true, new SemiNaiveOptions().withCompiledClauses().withParallelRounds());
+ * </pre>
+ *
+ * The options are read when the evaluation manager is constructed. By default,
+ * the derived facts are stored in a new concurrent set fact indexer, and all
+ * options are off except for leapfrog joins.
+ *
+ */
+public class SemiNaiveOptions {
+	/**
+	 * The default minimum number of facts that a rule has to start from in a
+	 * round to be evaluated using a hash join.
+	 */
+	private static final int HASH_JOIN_MIN_FACTS = 256;
+
+	/**
+	 * By default, a rule is evaluated using a hash join if this many times the
+	 * number of facts it starts from is at least the number of facts it would
+	 * scan.
+	 */
+	private static final int HASH_JOIN_FACTOR = 4;
+
+	private FactIndexer factIndexer;
+	private boolean compileClauses;
+	private boolean adaptiveJoinOrder;
+	private boolean parallel;
+	private ForkJoinPool pool;
+	private int maxStratumSize;
+	private boolean hashJoins;
+	private int hashJoinMinFacts;
+	private int hashJoinFactor;
+	private boolean leapfrogJoins = true;
+
+	/**
+	 * Stores the derived facts in the given (empty) fact indexer.
+	 *
+	 * @param factIndexer
+	 *            the fact indexer
+	 * @return this
+	 */
+	public SemiNaiveOptions withFactIndexer(FactIndexer factIndexer) {
+		this.factIndexer = factIndexer;
+		return this;
+	}
+
+	/**
+	 * Evaluates rules using compiled clauses.
+	 *
+	 * @return this
+	 */
+	public SemiNaiveOptions withCompiledClauses() {
+		this.compileClauses = true;
+		return this;
+	}
+
+	/**
+	 * Orders the premises of rules using live statistics, if the fact indexer
+	 * keeps them (see {@link FactStatistics}). The premises of each rule are
+	 * ordered using the sizes of the relations at the time the rule is first
+	 * evaluated, and the rules are re-planned whenever the number of new
+	 * facts derived in a round changes by an order of magnitude.
+	 *
+	 * @return this
+	 */
+	public SemiNaiveOptions withAdaptiveJoinOrder() {
+		this.adaptiveJoinOrder = true;
+		return this;
+	}
+
+	/**
+	 * Evaluates each round in parallel on a pool that is created for each
+	 * evaluation. The facts that a round starts from are split into chunks
+	 * that are evaluated on the pool. Rounds are still separated by barriers,
+	 * and the facts derived from each chunk are merged in chunk order once
+	 * the round is over, so the facts of each round, as well as the recorded
+	 * justifications, do not depend on how the chunks were scheduled, and are
+	 * the same as those of a sequential evaluation.
+	 *
+	 * @return this
+	 */
+	public SemiNaiveOptions withParallelRounds() {
+		return this.withParallelRounds(null);
+	}
+
+	/**
+	 * Evaluates each round in parallel on the given pool (see
+	 * {@link #withParallelRounds()}). The pool is not shut down by the
+	 * evaluation manager, and so can be shared by several evaluation managers
+	 * (e.g., the one returned by {@link Utilities#getSharedPool()}).
+	 *
+	 * @param pool
+	 *            the pool, or null to create a pool for each evaluation
+	 * @return this
+	 */
+	public SemiNaiveOptions withParallelRounds(ForkJoinPool pool) {
+		this.parallel = true;
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Merges the strongly connected components of the predicate dependency
+	 * graph into strata of at most the given number of predicate symbols (see
+	 * {@link StratifiedNegationValidator#validate(UnstratifiedProgram, int)}).
+	 * Each stratum has its own evaluator, so this cuts the setup cost for
+	 * programs with many small components.
+	 *
+	 * @param maxStratumSize
+	 *            the maximum number of predicate symbols in a merged stratum,
+	 *            or zero to make each component its own stratum
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if the size is negative
+	 */
+	public SemiNaiveOptions withMaxStratumSize(int maxStratumSize) {
+		if (maxStratumSize < 0) {
+			throw new IllegalArgumentException("Maximum stratum size must not be negative.");
+		}
+		this.maxStratumSize = maxStratumSize;
+		return this;
+	}
+
+	/**
+	 * Evaluates rules set-at-a-time (see {@link HashJoin}) in the rounds where
+	 * the facts they start from are numerous compared to the relations they
+	 * join them with, if the fact indexer keeps statistics (see
+	 * {@link FactStatistics}).
+	 *
+	 * @return this
+	 */
+	public SemiNaiveOptions withHashJoins() {
+		return this.withHashJoins(HASH_JOIN_MIN_FACTS, HASH_JOIN_FACTOR);
+	}
+
+	/**
+	 * Evaluates rules set-at-a-time (see {@link #withHashJoins()}), using the
+	 * given thresholds. A rule is evaluated using a hash join in a round if it
+	 * starts from at least the given number of facts, and if the given factor
+	 * times that number is at least the estimated number of facts that the
+	 * hash join scans for the other premises. Passing one and
+	 * {@link Integer#MAX_VALUE} evaluates every rule set-at-a-time.
+	 *
+	 * @param minFacts
+	 *            the minimum number of facts
+	 * @param factor
+	 *            the factor
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if a threshold is not positive
+	 */
+	public SemiNaiveOptions withHashJoins(int minFacts, int factor) {
+		if (minFacts <= 0 || factor <= 0) {
+			throw new IllegalArgumentException("Hash join thresholds must be positive.");
+		}
+		this.hashJoins = true;
+		this.hashJoinMinFacts = minFacts;
+		this.hashJoinFactor = factor;
+		return this;
+	}
+
+	/**
+	 * Does not evaluate rules with cyclic bodies (see
+	 * {@link LeapfrogTriejoin#isCyclic(Clause)}) using leapfrog triejoin. By
+	 * default, it is used for the cyclic rules that are not recursive;
+	 * recursive rules are always evaluated a fact at a time.
+	 *
+	 * @return this
+	 */
+	public SemiNaiveOptions withoutLeapfrogJoins() {
+		this.leapfrogJoins = false;
+		return this;
+	}
+
+	FactIndexer getFactIndexer() {
+		return this.factIndexer;
+	}
+
+	boolean getCompileClauses() {
+		return this.compileClauses;
+	}
+
+	boolean getAdaptiveJoinOrder() {
+		return this.adaptiveJoinOrder;
+	}
+
+	boolean getParallel() {
+		return this.parallel;
+	}
+
+	ForkJoinPool getPool() {
+		return this.pool;
+	}
+
+	int getMaxStratumSize() {
+		return this.maxStratumSize;
+	}
+
+	boolean getHashJoins() {
+		return this.hashJoins;
+	}
+
+	int getHashJoinMinFacts() {
+		return this.hashJoinMinFacts;
+	}
+
+	int getHashJoinFactor() {
+		return this.hashJoinFactor;
+	}
+
+	boolean getLeapfrogJoins() {
+		return this.leapfrogJoins;
+	}
+}
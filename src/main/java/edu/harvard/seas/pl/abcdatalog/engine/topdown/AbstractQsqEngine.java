@@ -51,12 +51,14 @@ import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidator.ValidClaus
 import edu.harvard.seas.pl.abcdatalog.ast.visitors.HeadVisitor;
 import edu.harvard.seas.pl.abcdatalog.engine.DatalogEngine;
 import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.MemoryAccountable;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.MemoryStats;
 
 /**
  * A Datalog engine that uses a variant of the query-subquery evaluation method.
  *
  */
-public abstract class AbstractQsqEngine implements DatalogEngine {
+public abstract class AbstractQsqEngine implements DatalogEngine, MemoryAccountable {
 	/**
 	 * EDB facts mapped by predicate symbol.
 	 */
@@ -93,6 +95,19 @@ public abstract class AbstractQsqEngine implements DatalogEngine {
 	@Override
 	public abstract Set<PositiveAtom> query(PositiveAtom q);
 
+	/**
+	 * Returns an estimate of the memory used by the EDB relation of each
+	 * predicate symbol (see {@link Relation#getMemoryStats()}).
+	 */
+	@Override
+	public Map<PredicateSym, MemoryStats> getMemoryStats() {
+		Map<PredicateSym, MemoryStats> stats = new HashMap<>();
+		for (Map.Entry<PredicateSym, Relation> e : this.edbRelations.entrySet()) {
+			stats.put(e.getKey(), e.getValue().getMemoryStats());
+		}
+		return stats;
+	}
+
 	/**
 	 * Creates a new tuple that is like t except the bound terms of t have been
 	 * replaced by the terms in input.
@@ -56,6 +56,8 @@ import edu.harvard.seas.pl.abcdatalog.ast.visitors.HeadVisitor;
 import edu.harvard.seas.pl.abcdatalog.engine.DatalogEngine;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent.ConcurrentBottomUpEngine;
 import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactTrie;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
 
 /**
  * A Datalog evaluation engine that uses the magic set transformation technique.
@@ -130,8 +132,10 @@ public class MstEngine implements DatalogEngine {
 		Set<Clause> magicProgram = genMagicProgram(adornedQueryPred, input);
 
 		// Initialize a semi-naive evaluation engine with the rewritten program
-		// and process query results.
-		DatalogEngine engine = new ConcurrentBottomUpEngine();
+		// and process query results. The engine runs on the shared pool, since
+		// a new one is needed for every query.
+		DatalogEngine engine = new ConcurrentBottomUpEngine(FactIndexerFactory.createConcurrentQueueFactIndexer(),
+				new ConcurrentFactTrie(), false, false, Utilities.getSharedPool());
 		try {
 			engine.init(magicProgram);
 		} catch (DatalogValidationException e) {
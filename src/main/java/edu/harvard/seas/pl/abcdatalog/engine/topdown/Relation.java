@@ -44,6 +44,8 @@ import java.util.Set;
 import java.util.function.Function;
 
 import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.MemoryAccountable;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.MemoryStats;
 
 /**
  * A relation, i.e., a set of tuples of a fixed arity with an associated
@@ -188,6 +190,22 @@ public class Relation implements Iterable<Tuple> {
 		return this.tuples.isEmpty();
 	}
 
+	/**
+	 * Returns an estimate of the memory used by the tuples of this relation,
+	 * not counting the terms in them. A relation has no indices, so the
+	 * estimate only has bytes for the tuples. Since a relation is not tied to
+	 * a predicate symbol, it does not implement {@link MemoryAccountable}
+	 * itself; a query-subquery engine reports the estimates of its EDB
+	 * relations by predicate symbol (see {@link AbstractQsqEngine}).
+	 * 
+	 * @return the estimate
+	 */
+	public MemoryStats getMemoryStats() {
+		int n = this.tuples.size();
+		long bytes = MemoryStats.hashTableBytes(n) + n * (MemoryStats.objectBytes(1) + MemoryStats.arrayBytes(this.arity));
+		return new MemoryStats(n, bytes, new int[this.arity], new long[this.arity], 0, 0);
+	}
+
 	/**
 	 * Creates a new relation by joining this relation with the other relation
 	 * and projecting onto the supplied attribute schema. If the schema has
@@ -33,25 +33,80 @@ package edu.harvard.seas.pl.abcdatalog.util;
  * #L%
  */
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A wrapper for an executor service that tracks how many tasks are either
  * pending or incomplete, and can be used to block until all tasks have
  * finished.
+ * 
+ * To keep threads that submit and complete tasks at a high rate from
+ * contending on a single counter, tasks are counted in striped counters, one
+ * per group of threads, in the style of a scalable nonzero indicator: a task
+ * is counted in the stripe of the thread that submits it and is discounted in
+ * the same stripe when it completes, and the shared counter only tracks how
+ * many stripes are nonzero. The shared counter is therefore only touched when
+ * a stripe becomes empty or stops being empty, which is rare when threads
+ * mostly run the tasks they submit themselves, as in a fork-join pool.
+ * 
+ * A stripe can briefly be counted as empty while a task is being submitted to
+ * it. This cannot be observed as termination as long as tasks are only
+ * submitted by other tracked tasks, or before blocking until the tasks have
+ * finished, since the submitting task is then still counted.
+ * 
+ * A task that throws an exception still counts as finished. The first such
+ * exception is kept, and is reported by {@link #blockUntilFinished()} and
+ * {@link #whenFinished()} from then on.
+ * 
+ * The executor service may be shared with other ExecutorServiceCounters (and
+ * other clients), in which case each ExecutorServiceCounter only tracks its
+ * own tasks, and the executor service should not be shut down through it.
  */
 public class ExecutorServiceCounter {
 	/**
-	 * Number of pending or incomplete tasks.
+	 * The distance between stripes in {@link #stripes}, so that they lie on
+	 * separate cache lines.
+	 */
+	private static final int PADDING = 16;
+	/**
+	 * Number of pending or incomplete tasks in each stripe.
+	 */
+	private final AtomicLongArray stripes;
+	/**
+	 * The number of stripes minus one; the number of stripes is a power of
+	 * two.
 	 */
-	private final AtomicLong tasks = new AtomicLong(0);
+	private final int mask;
+	/**
+	 * Number of stripes with pending or incomplete tasks.
+	 */
+	private final AtomicLong nonzero = new AtomicLong(0);
 	/**
 	 * The executor service to submit tasks to.
 	 */
 	private final ExecutorService exec;
+	/**
+	 * Futures to complete once there are no pending or incomplete tasks;
+	 * guarded by this ExecutorServiceCounter.
+	 */
+	private final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+	/**
+	 * The first exception thrown by a task, if any.
+	 */
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
 
 	/**
 	 * Constructs an ExecutorServiceCounter backed by the given ExecutorService.
@@ -63,38 +118,96 @@ public class ExecutorServiceCounter {
 	 */
 	public ExecutorServiceCounter(ExecutorService exec) {
 		this.exec = exec;
+		int workers = (exec instanceof ForkJoinPool) ? ((ForkJoinPool) exec).getParallelism() : Utilities.concurrency;
+		int n = Integer.highestOneBit(Math.max(1, 2 * workers - 1)) << 1;
+		this.stripes = new AtomicLongArray(n * PADDING);
+		this.mask = n - 1;
+	}
+
+	/**
+	 * Returns the stripe for the current thread.
+	 */
+	private int getStripe() {
+		Thread t = Thread.currentThread();
+		int h = (t instanceof ForkJoinWorkerThread) ? ((ForkJoinWorkerThread) t).getPoolIndex()
+				: (int) t.getId();
+		return (h & this.mask) * PADDING;
+	}
+
+	/**
+	 * Reports that a task has been submitted.
+	 * 
+	 * @return the stripe the task is counted in
+	 */
+	private int taskSubmitted() {
+		int stripe = this.getStripe();
+		if (this.stripes.getAndIncrement(stripe) == 0) {
+			this.nonzero.incrementAndGet();
+		}
+		return stripe;
 	}
 
 	/**
 	 * Reports that a task has been completed.
+	 * 
+	 * @param stripe
+	 *            the stripe the task is counted in
 	 */
-	private void taskFinished() {
-		if (this.tasks.decrementAndGet() == 0) {
+	private void taskFinished(int stripe) {
+		if (this.stripes.decrementAndGet(stripe) == 0 && this.nonzero.decrementAndGet() == 0) {
+			List<CompletableFuture<Void>> finished;
 			synchronized (this) {
 				this.notifyAll();
+				finished = this.takeWaiters();
+			}
+			for (CompletableFuture<Void> f : finished) {
+				this.complete(f);
 			}
 		}
 	}
 
+	/**
+	 * Runs a task and reports that it has been completed, even if it throws
+	 * an exception.
+	 */
+	private void run(Runnable task, int stripe) {
+		try {
+			task.run();
+		} catch (RuntimeException | Error e) {
+			this.failure.compareAndSet(null, e);
+		} finally {
+			this.taskFinished(stripe);
+		}
+	}
+
+	private void complete(CompletableFuture<Void> f) {
+		Throwable e = this.failure.get();
+		if (e == null) {
+			f.complete(null);
+		} else {
+			f.completeExceptionally(e);
+		}
+	}
+
 	/**
 	 * Adds a task to be tracked by this ExecutorServiceCounter. If this method
-	 * is invoked from a ForkJoinPool worker thread, the task is forked in that
-	 * ForkJoinPool. Otherwise, it is submitted to the ExecutorService backing
-	 * this ExecutorServiceCounter.
+	 * is invoked from a worker thread of the ForkJoinPool backing this
+	 * ExecutorServiceCounter, the task is forked in that ForkJoinPool.
+	 * Otherwise, it is submitted to the ExecutorService backing this
+	 * ExecutorServiceCounter.
 	 * 
 	 * @param task
 	 *            the task
 	 */
 	@SuppressWarnings("serial")
 	public void submitTask(Runnable task) {
-		this.tasks.incrementAndGet();
-		if (RecursiveAction.inForkJoinPool()) {
+		int stripe = this.taskSubmitted();
+		if (ForkJoinTask.getPool() == this.exec) {
 			new RecursiveAction() {
 
 				@Override
 				protected void compute() {
-					task.run();
-					taskFinished();
+					ExecutorServiceCounter.this.run(task, stripe);
 				}
 				
 			}.fork();
@@ -103,8 +216,7 @@ public class ExecutorServiceCounter {
 	
 				@Override
 				public void run() {
-					task.run();
-					taskFinished();
+					ExecutorServiceCounter.this.run(task, stripe);
 				}
 				
 			});
@@ -118,23 +230,85 @@ public class ExecutorServiceCounter {
 	 * @return whether there are any pending or incomplete tasks
 	 */
 	private boolean hasUnfinishedTasks() {
-		return this.tasks.get() > 0;
+		return this.nonzero.get() > 0;
 	}
 
 	/**
 	 * Blocks the calling thread until this ExecutorServiceCounter has no
-	 * pending or incomplete tasks.
+	 * pending or incomplete tasks. If the calling thread is a ForkJoinPool
+	 * worker thread, the pool may activate another worker in the meantime, so
+	 * that blocking does not starve the tasks of a shared pool.
+	 * 
+	 * @throws CompletionException
+	 *             if a task has thrown an exception, which is the cause
 	 */
 	public void blockUntilFinished() {
-		synchronized (this) {
-			while (this.hasUnfinishedTasks()) {
-				try {
-					this.wait();
-				} catch (InterruptedException e) {
-					// we've been interrupted
+		try {
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+
+				@Override
+				public boolean block() {
+					synchronized (ExecutorServiceCounter.this) {
+						while (hasUnfinishedTasks()) {
+							try {
+								ExecutorServiceCounter.this.wait();
+							} catch (InterruptedException e) {
+								// we've been interrupted
+							}
+						}
+					}
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable() {
+					return !hasUnfinishedTasks();
 				}
+
+			});
+		} catch (InterruptedException e) {
+			// cannot happen, since block() does not throw it
+			throw new AssertionError(e);
+		}
+		Throwable e = this.failure.get();
+		if (e != null) {
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * Returns a future that is completed once this ExecutorServiceCounter has
+	 * no pending or incomplete tasks. Unlike
+	 * {@link #blockUntilFinished()}, this does not occupy a thread while
+	 * waiting. The future is completed by the thread that finishes the last
+	 * task (or by the calling thread, if there are no tasks), so dependent
+	 * actions that do much work should be run asynchronously. It is completed
+	 * exceptionally if a task has thrown an exception.
+	 * 
+	 * @return the future
+	 */
+	public CompletableFuture<Void> whenFinished() {
+		CompletableFuture<Void> f = new CompletableFuture<>();
+		List<CompletableFuture<Void>> finished = Collections.emptyList();
+		synchronized (this) {
+			this.waiters.add(f);
+			if (!this.hasUnfinishedTasks()) {
+				finished = this.takeWaiters();
 			}
 		}
+		for (CompletableFuture<Void> g : finished) {
+			this.complete(g);
+		}
+		return f;
+	}
+
+	private List<CompletableFuture<Void>> takeWaiters() {
+		if (this.waiters.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<CompletableFuture<Void>> finished = new ArrayList<>(this.waiters);
+		this.waiters.clear();
+		return finished;
 	}
 
 	/**
@@ -39,6 +39,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * "Static" class containing utility methods.
@@ -53,6 +54,36 @@ public final class Utilities {
 	public static final int concurrency = Runtime.getRuntime()
 			.availableProcessors();
 	
+	/**
+	 * Creates a fork-join pool with the given parallelism that runs forked
+	 * tasks in first-in-first-out order, as the concurrent engines expect.
+	 * 
+	 * @param parallelism
+	 *            the parallelism of the pool
+	 * @return the pool
+	 */
+	public static ForkJoinPool createPool(int parallelism) {
+		return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+	}
+
+	/**
+	 * Returns a fork-join pool, with one thread per available processor, that
+	 * can be shared by any number of engines. It is created when it is first
+	 * needed and is never shut down; its worker threads are daemon threads
+	 * that are retired when they are idle for a while. Engines that are
+	 * created and evaluated at a high rate should use this pool, so that they
+	 * do not start and stop a set of threads in every evaluation.
+	 * 
+	 * @return the shared pool
+	 */
+	public static ForkJoinPool getSharedPool() {
+		return SharedPoolHolder.pool;
+	}
+
+	private static final class SharedPoolHolder {
+		private static final ForkJoinPool pool = createPool(concurrency);
+	}
+
 	public static <T> Set<T> createConcurrentSet() {
 		return Collections.newSetFromMap(createConcurrentMap());
 	}
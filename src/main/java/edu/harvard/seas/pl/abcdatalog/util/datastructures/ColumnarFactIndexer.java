@@ -0,0 +1,548 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
+
+/**
+ * A fact indexer that stores each relation column-wise. The facts of a
+ * predicate are dictionary encoded (see {@link FactEncoding}) and appended to
+ * chunks of primitive integer columns; every column has an open-addressing
+ * hash index from constant ids to the ids of the rows that hold them. A
+ * relation has set
+ * semantics: adding a fact that is already present has no effect.
+ *
+ * Facts are only materialized as atoms while the collections returned by the
+ * indexInto methods are being iterated. Those collections are filtered on all
+ * the positions that are bound in the query atom, so they contain exactly the
+ * matching facts.
+ *
+ * Adds to the same predicate are serialized, while lookups never block. Once
+ * the add method returns having been invoked with a fact f, f is visible to
+ * all threads. Iterators are weakly consistent: they reflect the facts present
+ * when the iterator was created, and possibly some that were added later.
+ *
+ */
+public class ColumnarFactIndexer implements FactIndexer, FactStatistics, MemoryAccountable {
+	private final ConcurrentMap<PredicateSym, Relation> relations = Utilities.createConcurrentMap();
+
+	@Override
+	public void add(PositiveAtom fact) {
+		Relation r = this.relations.get(fact.getPred());
+		if (r == null) {
+			r = new Relation(fact.getPred());
+			Relation existing = this.relations.putIfAbsent(fact.getPred(), r);
+			if (existing != null) {
+				r = existing;
+			}
+		}
+		r.add(FactEncoding.encode(fact));
+	}
+
+	@Override
+	public void addAll(Iterable<PositiveAtom> facts) {
+		for (PositiveAtom fact : facts) {
+			this.add(fact);
+		}
+	}
+
+	/**
+	 * Returns whether this indexer contains the given fact.
+	 *
+	 * @param fact
+	 *            the fact
+	 * @return whether the fact is present
+	 */
+	public boolean contains(PositiveAtom fact) {
+		return this.indexInto(fact).iterator().hasNext();
+	}
+
+	/**
+	 * Returns the number of facts with the given predicate symbol.
+	 *
+	 * @param pred
+	 *            the predicate symbol
+	 * @return the number of facts
+	 */
+	public int size(PredicateSym pred) {
+		Relation r = this.relations.get(pred);
+		return r == null ? 0 : r.size;
+	}
+
+	@Override
+	public int getCardinality(PredicateSym pred) {
+		return this.size(pred);
+	}
+
+	@Override
+	public int getDistinctCount(PredicateSym pred, int pos) {
+		Relation r = this.relations.get(pred);
+		return r == null ? 0 : r.colIdx[pos].count;
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PositiveAtom atom) {
+		return this.indexInto(atom, null);
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PositiveAtom atom, ConstOnlySubstitution subst) {
+		Relation r = this.relations.get(atom.getPred());
+		if (r == null) {
+			return Collections.emptyList();
+		}
+		return r.lookup(FactEncoding.encode(atom, subst));
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PredicateSym pred) {
+		Relation r = this.relations.get(pred);
+		if (r == null) {
+			return Collections.emptyList();
+		}
+		return r.scan();
+	}
+
+	@Override
+	public boolean isExact() {
+		return true;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.relations.isEmpty();
+	}
+
+	@Override
+	public Set<PredicateSym> getPreds() {
+		return this.relations.keySet();
+	}
+
+	/**
+	 * Clears this index.
+	 */
+	public void clear() {
+		this.relations.clear();
+	}
+
+	/**
+	 * Returns an estimate of the memory used for each predicate symbol. The
+	 * facts are the allocated column chunks and the deduplication table; the
+	 * buckets of a position are the distinct constant ids in its column index.
+	 */
+	@Override
+	public Map<PredicateSym, MemoryStats> getMemoryStats() {
+		Map<PredicateSym, MemoryStats> stats = new HashMap<>();
+		for (Map.Entry<PredicateSym, Relation> e : this.relations.entrySet()) {
+			stats.put(e.getKey(), e.getValue().getMemoryStats());
+		}
+		return stats;
+	}
+
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_ROWS = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_ROWS - 1;
+
+	/**
+	 * The facts of a single predicate, stored as append-only chunks of
+	 * columns. Row r of the relation is stored in chunk r / CHUNK_ROWS.
+	 */
+	private static class Relation {
+		private final PredicateSym pred;
+		private final int arity;
+		/**
+		 * Chunks of columns, indexed by chunk and then by position.
+		 */
+		private volatile int[][][] chunks;
+		/**
+		 * Number of rows; written only while holding the lock on this
+		 * relation, after the row itself and its index entries have been
+		 * written.
+		 */
+		private volatile int size;
+		/**
+		 * For each position, an index from constant ids to the rows holding
+		 * that constant at that position.
+		 */
+		private final ColumnIndex[] colIdx;
+		/**
+		 * Open-addressing hash set of row ids (plus one) used to deduplicate
+		 * rows. Guarded by the lock on this relation.
+		 */
+		private int[] dedup = new int[16];
+
+		public Relation(PredicateSym pred) {
+			this.pred = pred;
+			this.arity = pred.getArity();
+			this.chunks = new int[4][][];
+			this.colIdx = new ColumnIndex[this.arity];
+			for (int i = 0; i < this.arity; ++i) {
+				this.colIdx[i] = new ColumnIndex();
+			}
+		}
+
+		public synchronized void add(int[] row) {
+			int n = this.size;
+			if (this.arity == 0) {
+				if (n == 0) {
+					this.size = 1;
+				}
+				return;
+			}
+			if (this.findDup(row) >= 0) {
+				return;
+			}
+
+			int[][][] cs = this.chunks;
+			int chunkIdx = n >>> CHUNK_BITS;
+			if (chunkIdx == cs.length) {
+				int[][][] bigger = new int[cs.length * 2][][];
+				System.arraycopy(cs, 0, bigger, 0, cs.length);
+				cs = bigger;
+			}
+			if (cs[chunkIdx] == null) {
+				cs[chunkIdx] = new int[this.arity][CHUNK_ROWS];
+			}
+			int[][] chunk = cs[chunkIdx];
+			int offset = n & CHUNK_MASK;
+			for (int i = 0; i < this.arity; ++i) {
+				chunk[i][offset] = row[i];
+			}
+			this.chunks = cs;
+			this.insertDup(row, n);
+			for (int i = 0; i < this.arity; ++i) {
+				this.colIdx[i].add(row[i], n);
+			}
+			this.size = n + 1;
+		}
+
+		private int get(int[][][] cs, int row, int pos) {
+			return cs[row >>> CHUNK_BITS][pos][row & CHUNK_MASK];
+		}
+
+		private static int hash(int[] row) {
+			int h = 1;
+			for (int v : row) {
+				h = 31 * h + v;
+			}
+			return h ^ (h >>> 16);
+		}
+
+		private boolean rowEquals(int[][][] cs, int r, int[] row) {
+			for (int i = 0; i < this.arity; ++i) {
+				if (get(cs, r, i) != row[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int findDup(int[] row) {
+			int[] table = this.dedup;
+			int mask = table.length - 1;
+			int[][][] cs = this.chunks;
+			for (int i = hash(row) & mask;; i = (i + 1) & mask) {
+				int r = table[i] - 1;
+				if (r < 0) {
+					return -1;
+				}
+				if (rowEquals(cs, r, row)) {
+					return r;
+				}
+			}
+		}
+
+		private void insertDup(int[] row, int r) {
+			if ((r + 1) * 2 > this.dedup.length) {
+				int[] old = this.dedup;
+				this.dedup = new int[old.length * 2];
+				int[] tmp = new int[this.arity];
+				for (int entry : old) {
+					if (entry != 0) {
+						for (int i = 0; i < this.arity; ++i) {
+							tmp[i] = get(this.chunks, entry - 1, i);
+						}
+						placeDup(tmp, entry);
+					}
+				}
+			}
+			placeDup(row, r + 1);
+		}
+
+		private void placeDup(int[] row, int entry) {
+			int[] table = this.dedup;
+			int mask = table.length - 1;
+			int i = hash(row) & mask;
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = entry;
+		}
+
+		public MemoryStats getMemoryStats() {
+			int n = this.size;
+			int[][][] cs = this.chunks;
+			long factBytes = MemoryStats.arrayBytes(cs.length) + MemoryStats.arrayBytes(this.dedup.length);
+			for (int[][] chunk : cs) {
+				if (chunk != null) {
+					factBytes += MemoryStats.arrayBytes(this.arity) + this.arity * MemoryStats.arrayBytes(CHUNK_ROWS);
+				}
+			}
+			int[] bucketCounts = new int[this.arity];
+			long[] indexBytes = new long[this.arity];
+			for (int i = 0; i < this.arity; ++i) {
+				AtomicReferenceArray<RowList> table = this.colIdx[i].table;
+				long bytes = MemoryStats.objectBytes(2) + MemoryStats.objectBytes(1)
+						+ MemoryStats.arrayBytes(table.length());
+				int buckets = 0;
+				for (int j = 0; j < table.length(); ++j) {
+					RowList rows = table.get(j);
+					if (rows != null) {
+						bytes += MemoryStats.objectBytes(3) + MemoryStats.arrayBytes(rows.rows.length);
+						++buckets;
+					}
+				}
+				bucketCounts[i] = buckets;
+				indexBytes[i] = bytes;
+			}
+			return new MemoryStats(n, factBytes, bucketCounts, indexBytes, 0, 0);
+		}
+
+		public Iterable<PositiveAtom> scan() {
+			return () -> new RowIterator(null, this.size, null);
+		}
+
+		public Iterable<PositiveAtom> lookup(int[] key) {
+			if (this.arity == 0) {
+				return scan();
+			}
+			// Probe the column indices and pick the smallest candidate list.
+			RowList best = null;
+			boolean anyBound = false;
+			for (int i = 0; i < this.arity; ++i) {
+				if (key[i] != FactEncoding.UNBOUND) {
+					anyBound = true;
+					RowList rows = this.colIdx[i].get(key[i]);
+					if (rows == null) {
+						return Collections.emptyList();
+					}
+					if (best == null || rows.size < best.size) {
+						best = rows;
+					}
+				}
+			}
+			if (!anyBound) {
+				return scan();
+			}
+			RowList candidates = best;
+			return () -> {
+				// Read the size first, so that the array holds at least that
+				// many row ids.
+				int n = candidates.size;
+				return new RowIterator(candidates.rows, n, key);
+			};
+		}
+
+		/**
+		 * Iterates over either a prefix of the relation or a list of row ids,
+		 * skipping rows that do not match the key.
+		 */
+		private class RowIterator implements Iterator<PositiveAtom> {
+			private final int[] rowIds;
+			private final int end;
+			private final int[] key;
+			private final int[][][] cs;
+			private int cur = 0;
+			private int next = -1;
+
+			public RowIterator(int[] rowIds, int end, int[] key) {
+				this.rowIds = rowIds;
+				this.end = end;
+				this.key = key;
+				// Read after the size, so that all rows counted are visible.
+				this.cs = chunks;
+			}
+
+			private boolean matches(int r) {
+				if (this.key == null) {
+					return true;
+				}
+				for (int i = 0; i < arity; ++i) {
+					int k = this.key[i];
+					if (k != FactEncoding.UNBOUND && get(this.cs, r, i) != k) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public boolean hasNext() {
+				while (this.next < 0 && this.cur < this.end) {
+					int r = this.rowIds == null ? this.cur : this.rowIds[this.cur];
+					++this.cur;
+					if (matches(r)) {
+						this.next = r;
+					}
+				}
+				return this.next >= 0;
+			}
+
+			@Override
+			public PositiveAtom next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int r = this.next;
+				this.next = -1;
+				int[] row = new int[arity];
+				for (int i = 0; i < arity; ++i) {
+					row[i] = get(this.cs, r, i);
+				}
+				return FactEncoding.decode(pred, row);
+			}
+		}
+	}
+
+	/**
+	 * An open-addressing hash table from the constant ids of a column to the
+	 * rows that hold them, which are found by probing for the list whose key
+	 * is the id, so that the ids are never boxed. It is only written while
+	 * holding the lock on the owning relation, and lookups do not lock: a
+	 * list is filled in before it is put in the table, and a table is filled
+	 * in before it replaces a smaller one.
+	 */
+	private static class ColumnIndex {
+		private volatile AtomicReferenceArray<RowList> table = new AtomicReferenceArray<>(16);
+		/**
+		 * Number of distinct ids; written only while holding the lock on the
+		 * owning relation.
+		 */
+		private volatile int count;
+
+		private static int hash(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		public RowList get(int key) {
+			AtomicReferenceArray<RowList> t = this.table;
+			int mask = t.length() - 1;
+			for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+				RowList rows = t.get(i);
+				if (rows == null || rows.key == key) {
+					return rows;
+				}
+			}
+		}
+
+		public void add(int key, int r) {
+			RowList rows = this.get(key);
+			if (rows != null) {
+				rows.add(r);
+				return;
+			}
+			rows = new RowList(key);
+			rows.add(r);
+			int n = this.count + 1;
+			AtomicReferenceArray<RowList> t = this.table;
+			if (n * 2 > t.length()) {
+				AtomicReferenceArray<RowList> bigger = new AtomicReferenceArray<>(t.length() * 2);
+				for (int i = 0; i < t.length(); ++i) {
+					RowList old = t.get(i);
+					if (old != null) {
+						place(bigger, old);
+					}
+				}
+				place(bigger, rows);
+				this.table = bigger;
+			} else {
+				place(t, rows);
+			}
+			this.count = n;
+		}
+
+		private static void place(AtomicReferenceArray<RowList> t, RowList rows) {
+			int mask = t.length() - 1;
+			int i = hash(rows.key) & mask;
+			while (t.get(i) != null) {
+				i = (i + 1) & mask;
+			}
+			t.set(i, rows);
+		}
+	}
+
+	/**
+	 * An append-only list of row ids. It is only appended to while holding
+	 * the lock on the owning relation.
+	 */
+	private static class RowList {
+		/**
+		 * The constant id that the rows hold.
+		 */
+		private final int key;
+		private volatile int[] rows = new int[2];
+		private volatile int size;
+
+		public RowList(int key) {
+			this.key = key;
+		}
+
+		public void add(int r) {
+			int n = this.size;
+			int[] rs = this.rows;
+			if (n == rs.length) {
+				int[] bigger = new int[rs.length * 2];
+				System.arraycopy(rs, 0, bigger, 0, rs.length);
+				rs = bigger;
+				this.rows = rs;
+			}
+			rs[n] = r;
+			this.size = n + 1;
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bag backed by a linked list of array chunks that supports a minimal number
+ * of operations. Chunks start small and double in size up to a limit, so small
+ * bags stay small while large bags need one object per chunk rather than one
+ * per element.
+ * 
+ * An element is added by atomically claiming the next index of the last chunk
+ * and then storing the element in that slot. Operations are thread-safe, and
+ * any number of threads can iterate over the bag while it is being added to.
+ * Iterators are weakly consistent: they return every element whose add
+ * completed before the iterator was created, and possibly some that were added
+ * later. An individual iterator should only be used by one thread.
+ *
+ * @param <T>
+ *            the type of the element of the bag
+ */
+public class ConcurrentChunkedBag<T> implements Iterable<T> {
+	private static final int INITIAL_CHUNK_SIZE = 4;
+	private static final int MAX_CHUNK_SIZE = 4096;
+
+	private final Chunk<T> head;
+	private final AtomicReference<Chunk<T>> tail;
+
+	public ConcurrentChunkedBag() {
+		this.head = new Chunk<>(INITIAL_CHUNK_SIZE);
+		this.tail = new AtomicReference<>(this.head);
+	}
+
+	private static class Chunk<T> {
+		private final AtomicReferenceArray<T> slots;
+		private final AtomicInteger claimed = new AtomicInteger();
+		private final AtomicReference<Chunk<T>> next = new AtomicReference<>();
+
+		public Chunk(int size) {
+			this.slots = new AtomicReferenceArray<>(size);
+		}
+
+		/**
+		 * Returns the number of slots that have been claimed.
+		 */
+		public int filled() {
+			return Math.min(this.claimed.get(), this.slots.length());
+		}
+	}
+
+	/**
+	 * Add an element to the bag.
+	 * 
+	 * @param e
+	 *            the element
+	 */
+	public void add(T e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		while (true) {
+			Chunk<T> c = this.tail.get();
+			int i = c.claimed.getAndIncrement();
+			if (i < c.slots.length()) {
+				c.slots.set(i, e);
+				return;
+			}
+			Chunk<T> n = c.next.get();
+			if (n == null) {
+				n = new Chunk<>(Math.min(c.slots.length() * 2, MAX_CHUNK_SIZE));
+				if (!c.next.compareAndSet(null, n)) {
+					n = c.next.get();
+				}
+			}
+			this.tail.compareAndSet(c, n);
+		}
+	}
+
+	/**
+	 * Returns the number of elements in the bag, including those whose add is
+	 * still in progress. This takes time proportional to the number of chunks.
+	 * 
+	 * @return the number of elements
+	 */
+	public int size() {
+		int size = 0;
+		for (Chunk<T> c = this.head; c != null; c = c.next.get()) {
+			size += c.filled();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns an iterator over elements of type T. The iterator is weakly
+	 * consistent and should only be used by one thread.
+	 * 
+	 * @return an iterator
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		return new ChunkIterator();
+	}
+
+	private class ChunkIterator implements Iterator<T> {
+		private Chunk<T> chunk = head;
+		private int end = head.filled();
+		private int pos = 0;
+		private T next = null;
+
+		@Override
+		public boolean hasNext() {
+			while (this.next == null) {
+				if (this.pos < this.end) {
+					// Skip slots that have been claimed but not yet written.
+					this.next = this.chunk.slots.get(this.pos++);
+				} else {
+					Chunk<T> n = this.chunk.next.get();
+					if (n == null) {
+						return false;
+					}
+					this.chunk = n;
+					this.end = n.filled();
+					this.pos = 0;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T v = this.next;
+			this.next = null;
+			return v;
+		}
+
+	}
+
+	// Static fields and methods for empty instance.
+
+	@SuppressWarnings("rawtypes")
+	private static final ConcurrentChunkedBag EMPTY_BAG = new EmptyBag();
+
+	private static class EmptyBag<T> extends ConcurrentChunkedBag<T> {
+		@Override
+		public void add(T e) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public static final <T> ConcurrentChunkedBag<T> emptyBag() {
+		return EMPTY_BAG;
+	}
+}
@@ -33,8 +33,18 @@ package edu.harvard.seas.pl.abcdatalog.util.datastructures;
  * #L%
  */
 
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.BiConsumer;
 import java.util.function.Supplier;
@@ -59,17 +69,38 @@ import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
  * with a fact f, the indexer will be consistent with respect to f, meaning that
  * f is properly indexed and that it is visible as such to all threads. (This
  * only holds, of course, if the provided container type is thread safe.)
+ * 
+ * Besides the per-position indices, the indexer can maintain composite indices
+ * on combinations of argument positions that are registered through
+ * {@link #addBindingPattern(PredicateSym, Set)}. A lookup that binds all the
+ * positions of a composite index is answered by a single hash lookup on the
+ * combined key.
+ * 
+ * If the containers are sets, a lookup that binds several positions can
+ * return a read-only set view of the facts that are in both of the two
+ * smallest matching containers. Such an indexer should therefore be
+ * parameterized by {@link Set} itself rather than by a subtype of it.
  *
  * @param <T>
  *            the container type
  */
-public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements FactIndexer {
+public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements FactIndexer, MemoryAccountable, FactStatistics {
 	private final Supplier<T> generator;
 	private final BiConsumer<T,PositiveAtom> addFunc;
 	private final Supplier<T> empty;
+	/**
+	 * Whether the containers are collections, from which facts can be
+	 * removed.
+	 */
+	private final boolean removable;
+	/**
+	 * Whether the containers are sets, so that lookups can intersect them.
+	 */
+	private final boolean sets;
 	
-	private final ConcurrentMap<PredicateSym, AtomicReferenceArray<ConcurrentMap<Constant, T>>> fineIdx = Utilities.createConcurrentMap();
-	private final ConcurrentMap<PredicateSym, T> coarseIdx = Utilities.createConcurrentMap();
+	private final ConcurrentMap<PredicateSym, AtomicReferenceArray<ConcurrentMap<Constant, Bucket<T>>>> fineIdx = Utilities.createConcurrentMap();
+	private final ConcurrentMap<PredicateSym, Bucket<T>> coarseIdx = Utilities.createConcurrentMap();
+	private final ConcurrentMap<PredicateSym, List<CompositeIndex<T>>> compositeIdx = Utilities.createConcurrentMap();
 
 	/**
 	 * Creates a new fact indexer.
@@ -98,6 +129,9 @@ public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements
 		this.generator = generator;
 		this.addFunc = addFunc;
 		this.empty = empty;
+		T container = generator.get();
+		this.removable = container instanceof Collection;
+		this.sets = container instanceof Set;
 	}
 	
 	/**
@@ -108,20 +142,12 @@ public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements
 	 */
 	public void add(PositiveAtom fact) {
 		assert fact.isGround();
-		T rough = this.coarseIdx.get(fact.getPred());
-		if (rough == null) {
-			rough = this.generator.get();
-			T existing = this.coarseIdx.putIfAbsent(fact.getPred(), rough);
-			if (existing != null) {
-				rough = existing;
-			}
-		}
-		this.addFunc.accept(rough, fact);
+		this.addToBucket(this.getBucket(this.coarseIdx, fact.getPred()), fact);
 		
-		AtomicReferenceArray<ConcurrentMap<Constant, T>> byPos = this.fineIdx.get(fact.getPred());
+		AtomicReferenceArray<ConcurrentMap<Constant, Bucket<T>>> byPos = this.fineIdx.get(fact.getPred());
 		if (byPos == null) {
 			byPos = new AtomicReferenceArray<>(fact.getPred().getArity());
-			AtomicReferenceArray<ConcurrentMap<Constant, T>> existing = this.fineIdx.putIfAbsent(fact.getPred(), byPos);
+			AtomicReferenceArray<ConcurrentMap<Constant, Bucket<T>>> existing = this.fineIdx.putIfAbsent(fact.getPred(), byPos);
 			if (existing != null) {
 				byPos = existing;
 			}
@@ -130,24 +156,172 @@ public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements
 		
 		Term[] args = fact.getArgs();
 		for (int i = 0; i < args.length; ++i) {
-			ConcurrentMap<Constant, T> byConstant = byPos.get(i);
+			ConcurrentMap<Constant, Bucket<T>> byConstant = byPos.get(i);
 			if (byConstant == null) {
 				byConstant = Utilities.createConcurrentMap();
 				if (!byPos.compareAndSet(i, null, byConstant)) {
 					byConstant = byPos.get(i);
 				}
 			}
-			Constant key = (Constant) args[i];
-			T n = byConstant.get(key);
-			if (n == null) {
-				n = this.generator.get();
-				T existing = byConstant.putIfAbsent(key, n);
-				if (existing != null) {
-					n = existing;
+			this.addToBucket(this.getBucket(byConstant, (Constant) args[i]), fact);
+		}
+		
+		List<CompositeIndex<T>> composites = this.compositeIdx.get(fact.getPred());
+		if (composites != null) {
+			for (int i = 0; i < composites.size(); ++i) {
+				this.addToComposite(composites.get(i), fact);
+			}
+		}
+	}
+	
+	private <K> Bucket<T> getBucket(ConcurrentMap<K, Bucket<T>> map, K key) {
+		Bucket<T> b = map.get(key);
+		if (b == null) {
+			b = new Bucket<>(this.generator.get());
+			Bucket<T> existing = map.putIfAbsent(key, b);
+			if (existing != null) {
+				b = existing;
+			}
+		}
+		return b;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void addToBucket(Bucket<T> b, PositiveAtom fact) {
+		// Collections report whether the fact was new, so that duplicates are
+		// not counted.
+		if (this.removable) {
+			if (((Collection<PositiveAtom>) b.facts).add(fact)) {
+				Bucket.SIZE.incrementAndGet(b);
+			}
+		} else {
+			this.addFunc.accept(b.facts, fact);
+			Bucket.SIZE.incrementAndGet(b);
+		}
+	}
+	
+	private void addToComposite(CompositeIndex<T> ci, PositiveAtom fact) {
+		CompositeKey k = ci.keyOf(fact.getArgs());
+		T n = ci.map.get(k);
+		if (n == null) {
+			n = this.generator.get();
+			T existing = ci.map.putIfAbsent(k, n);
+			if (existing != null) {
+				n = existing;
+			}
+		}
+		this.addFunc.accept(n, fact);
+	}
+	
+	/**
+	 * Returns whether facts can be removed from this indexer, which is the
+	 * case if the containers are collections.
+	 */
+	@Override
+	public boolean supportsRemoval() {
+		return this.removable;
+	}
+	
+	/**
+	 * Removes a fact from this indexer. This is only supported if the
+	 * containers are collections. If a fact is removed while it is being
+	 * added concurrently, the indices might end up disagreeing about whether
+	 * it is present.
+	 * 
+	 * @param fact
+	 *            the fact
+	 * @return whether the fact was present
+	 * @throws UnsupportedOperationException
+	 *             if the containers are not collections
+	 */
+	@Override
+	public boolean remove(PositiveAtom fact) {
+		if (!this.removable) {
+			throw new UnsupportedOperationException("Containers of this indexer do not support removal.");
+		}
+		Bucket<T> all = this.coarseIdx.get(fact.getPred());
+		if (all == null || !this.removeFromBucket(all, fact)) {
+			return false;
+		}
+		Term[] args = fact.getArgs();
+		AtomicReferenceArray<ConcurrentMap<Constant, Bucket<T>>> byPos = this.fineIdx.get(fact.getPred());
+		if (byPos != null) {
+			for (int i = 0; i < args.length; ++i) {
+				ConcurrentMap<Constant, Bucket<T>> byConstant = byPos.get(i);
+				Bucket<T> b = byConstant == null ? null : byConstant.get(args[i]);
+				if (b != null) {
+					this.removeFromBucket(b, fact);
+				}
+			}
+		}
+		List<CompositeIndex<T>> composites = this.compositeIdx.get(fact.getPred());
+		if (composites != null) {
+			for (CompositeIndex<T> ci : composites) {
+				T facts = ci.map.get(ci.keyOf(args));
+				if (facts != null) {
+					((Collection<?>) facts).remove(fact);
 				}
 			}
-			this.addFunc.accept(n, fact);
 		}
+		return true;
+	}
+	
+	private boolean removeFromBucket(Bucket<T> b, PositiveAtom fact) {
+		if (((Collection<?>) b.facts).remove(fact)) {
+			Bucket.SIZE.decrementAndGet(b);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Registers a composite index on the given argument positions of the
+	 * predicate symbol, and indexes the facts that are already present. Binding
+	 * patterns that cover fewer than two positions are already served by the
+	 * per-position indices and are ignored. This should not be invoked
+	 * concurrently with add.
+	 * 
+	 * @param pred
+	 *            the predicate symbol
+	 * @param boundPositions
+	 *            the bound argument positions
+	 */
+	@Override
+	public synchronized void addBindingPattern(PredicateSym pred, Set<Integer> boundPositions) {
+		if (boundPositions.size() < 2) {
+			return;
+		}
+		int[] positions = new int[boundPositions.size()];
+		int j = 0;
+		for (Integer i : boundPositions) {
+			if (i < 0 || i >= pred.getArity()) {
+				throw new IllegalArgumentException("Position " + i + " is out of bounds for predicate " + pred + ".");
+			}
+			positions[j++] = i;
+		}
+		Arrays.sort(positions);
+		this.addCompositeIndex(pred, positions);
+	}
+	
+	private synchronized void addCompositeIndex(PredicateSym pred, int[] positions) {
+		List<CompositeIndex<T>> composites = this.compositeIdx.get(pred);
+		if (composites == null) {
+			composites = new CopyOnWriteArrayList<>();
+			this.compositeIdx.put(pred, composites);
+		}
+		for (CompositeIndex<T> ci : composites) {
+			if (Arrays.equals(ci.positions, positions)) {
+				return;
+			}
+		}
+		CompositeIndex<T> ci = new CompositeIndex<>(positions);
+		Bucket<T> facts = this.coarseIdx.get(pred);
+		if (facts != null) {
+			for (PositiveAtom fact : facts.facts) {
+				this.addToComposite(ci, fact);
+			}
+		}
+		composites.add(ci);
 	}
 	
 	/**
@@ -177,48 +351,106 @@ public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements
 	
 	@Override
 	public T indexInto(PositiveAtom a, ConstOnlySubstitution s) {
-		AtomicReferenceArray<ConcurrentMap<Constant, T>> byPos = this.fineIdx.get(a.getPred());
+		AtomicReferenceArray<ConcurrentMap<Constant, Bucket<T>>> byPos = this.fineIdx.get(a.getPred());
 		if (byPos == null) {
 			return this.empty.get();
 		}
 		
-		int bestIdx = -1;
-		Term bestConst = null;
-		int maxKeySetSize = -1;
+		List<CompositeIndex<T>> composites = this.compositeIdx.get(a.getPred());
+		if (composites != null) {
+			T r = this.indexIntoComposite(composites, a, s);
+			if (r != null) {
+				return r;
+			}
+		}
+		
+		// Pick the two smallest buckets among the bound positions, and
+		// estimate the number of matching facts assuming that positions are
+		// independent.
+		Bucket<T> all = this.coarseIdx.get(a.getPred());
+		Bucket<T> best = null;
+		Bucket<T> second = null;
+		double estimate = all.size;
 		Term[] args = a.getArgs();
 		for (int i = 0; i < args.length; ++i) {
-			Term t = args[i];
-//			if (!(t instanceof DummyTerm) && (t instanceof Constant || (s != null && (t = s.get((Variable) t)) != null))) {
-			if ((t = t.accept(tv, s)) != null) {
-				ConcurrentMap<Constant, T> byConstant = byPos.get(i);
+			Constant c = args[i].accept(tv, s);
+			if (c != null) {
+				ConcurrentMap<Constant, Bucket<T>> byConstant = byPos.get(i);
 				if (byConstant != null) {
-					if (!byConstant.containsKey(t)) {
+					Bucket<T> b = byConstant.get(c);
+					if (b == null) {
 						return this.empty.get();
 					}
-					int keySetSize = byConstant.size();
-					if (keySetSize > maxKeySetSize) {
-						maxKeySetSize = keySetSize;
-						bestIdx = i;
-						bestConst = t;
+					estimate *= (double) b.size / all.size;
+					if (best == null || b.size < best.size) {
+						second = best;
+						best = b;
+					} else if (second == null || b.size < second.size) {
+						second = b;
 					}
 				}
 			}
 		}
 		
-		if (bestIdx == -1) {
-			return this.coarseIdx.get(a.getPred());
+		if (best == null) {
+			return all.facts;
+		}
+		
+		// If another bound position is likely to rule out most of the facts
+		// in the smallest bucket, return a view that skips the facts missing
+		// from the second smallest bucket, so that the caller does not have
+		// to unify against every fact in the smallest one.
+		if (second != null && this.sets && estimate * 2 < best.size) {
+			@SuppressWarnings("unchecked")
+			T r = (T) new Intersection((Set<PositiveAtom>) best.facts, (Set<PositiveAtom>) second.facts);
+			return r;
+		}
+		
+		return best.facts;
+	}
+	
+	private static final long BUCKET_BYTES = MemoryStats.objectBytes(2);
+	
+	/**
+	 * Looks up the atom in the composite index that covers the most bound
+	 * positions, returning null if no composite index applies.
+	 */
+	private T indexIntoComposite(List<CompositeIndex<T>> composites, PositiveAtom a, ConstOnlySubstitution s) {
+		Term[] args = a.getArgs();
+		Constant[] bound = new Constant[args.length];
+		for (int i = 0; i < args.length; ++i) {
+			bound[i] = args[i].accept(tv, s);
+		}
+		
+		CompositeIndex<T> best = null;
+		for (int i = 0; i < composites.size(); ++i) {
+			CompositeIndex<T> ci = composites.get(i);
+			if ((best == null || ci.positions.length > best.positions.length) && ci.covers(bound)) {
+				best = ci;
+			}
+		}
+		if (best == null) {
+			return null;
 		}
 		
-		return byPos.get(bestIdx).get(bestConst);
+		Constant[] key = new Constant[best.positions.length];
+		for (int i = 0; i < key.length; ++i) {
+			key[i] = bound[best.positions[i]];
+		}
+		T r = best.map.get(new CompositeKey(key));
+		if (r == null) {
+			return this.empty.get();
+		}
+		return r;
 	}
 	
 	@Override
 	public T indexInto(PredicateSym pred) {
-		T t = this.coarseIdx.get(pred);
-		if (t == null) {
-			t = this.empty.get();
+		Bucket<T> b = this.coarseIdx.get(pred);
+		if (b == null) {
+			return this.empty.get();
 		}
-		return t;
+		return b.facts;
 	}
 	
 	/**
@@ -227,6 +459,11 @@ public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements
 	public void clear() {
 		this.fineIdx.clear();
 		this.coarseIdx.clear();
+		for (List<CompositeIndex<T>> composites : this.compositeIdx.values()) {
+			for (CompositeIndex<T> ci : composites) {
+				ci.map.clear();
+			}
+		}
 	}
 	
 	@Override
@@ -240,6 +477,11 @@ public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements
 		// hand, that might end up creating a new fact indexer with an
 		// inconsistent state.
 		ConcurrentFactIndexer<T> r = new ConcurrentFactIndexer<>(this.generator, this.addFunc, this.empty);
+		for (Map.Entry<PredicateSym, List<CompositeIndex<T>>> e : this.compositeIdx.entrySet()) {
+			for (CompositeIndex<T> ci : e.getValue()) {
+				r.addCompositeIndex(e.getKey(), ci.positions);
+			}
+		}
 		for (PredicateSym pred : this.coarseIdx.keySet()) {
 			r.addAll(this.indexInto(pred));
 		}
@@ -251,6 +493,76 @@ public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements
 		return this.coarseIdx.keySet();
 	}
 
+	/**
+	 * Returns an estimate of the memory used for each predicate symbol. Each
+	 * container is assumed to be hash-based. Facts are counted once, together with the container that holds all facts of
+	 * their predicate symbol.
+	 */
+	@Override
+	public Map<PredicateSym, MemoryStats> getMemoryStats() {
+		Map<PredicateSym, MemoryStats> stats = new HashMap<>();
+		for (Map.Entry<PredicateSym, Bucket<T>> e : this.coarseIdx.entrySet()) {
+			stats.put(e.getKey(), this.getMemoryStats(e.getKey(), e.getValue().size));
+		}
+		return stats;
+	}
+	
+	private MemoryStats getMemoryStats(PredicateSym pred, int n) {
+		int arity = pred.getArity();
+		long factBytes = BUCKET_BYTES + MemoryStats.hashTableBytes(n)
+				+ n * (MemoryStats.objectBytes(3) + MemoryStats.arrayBytes(arity));
+		int[] bucketCounts = new int[arity];
+		long[] indexBytes = new long[arity];
+		AtomicReferenceArray<ConcurrentMap<Constant, Bucket<T>>> byPos = this.fineIdx.get(pred);
+		for (int i = 0; byPos != null && i < arity; ++i) {
+			ConcurrentMap<Constant, Bucket<T>> byConstant = byPos.get(i);
+			if (byConstant != null) {
+				long bytes = 0;
+				int buckets = 0;
+				for (Bucket<T> b : byConstant.values()) {
+					bytes += BUCKET_BYTES + MemoryStats.hashTableBytes(b.size);
+					++buckets;
+				}
+				bucketCounts[i] = buckets;
+				indexBytes[i] = bytes + MemoryStats.hashTableBytes(buckets);
+			}
+		}
+		long otherIndexBytes = 0;
+		List<CompositeIndex<T>> composites = this.compositeIdx.get(pred);
+		if (composites != null) {
+			for (CompositeIndex<T> ci : composites) {
+				int keys = ci.map.size();
+				if (keys > 0) {
+					long keyBytes = MemoryStats.objectBytes(2) + MemoryStats.arrayBytes(ci.positions.length);
+					otherIndexBytes += MemoryStats.hashTableBytes(keys)
+							+ keys * (keyBytes + MemoryStats.hashTableBytes(n / keys));
+				}
+			}
+		}
+		return new MemoryStats(n, factBytes, bucketCounts, indexBytes, otherIndexBytes, 0);
+	}
+
+	/**
+	 * Returns the number of facts with the given predicate symbol. If the
+	 * containers are not collections, a fact that has been added several
+	 * times is counted several times.
+	 */
+	@Override
+	public int getCardinality(PredicateSym pred) {
+		Bucket<T> b = this.coarseIdx.get(pred);
+		return b == null ? 0 : b.size;
+	}
+
+	@Override
+	public int getDistinctCount(PredicateSym pred, int pos) {
+		AtomicReferenceArray<ConcurrentMap<Constant, Bucket<T>>> byPos = this.fineIdx.get(pred);
+		if (byPos == null) {
+			return 0;
+		}
+		ConcurrentMap<Constant, Bucket<T>> byConstant = byPos.get(pos);
+		return byConstant == null ? 0 : byConstant.size();
+	}
+
 	/**
 	 * Add all the facts from an indexable fact collection to this index.
 	 * 
@@ -263,4 +575,147 @@ public class ConcurrentFactIndexer<T extends Iterable<PositiveAtom>> implements
 		}
 	}
 	
+	private static class CompositeIndex<T> {
+		/**
+		 * The indexed argument positions, in ascending order.
+		 */
+		private final int[] positions;
+		private final ConcurrentMap<CompositeKey, T> map = Utilities.createConcurrentMap();
+		
+		public CompositeIndex(int[] positions) {
+			this.positions = positions;
+		}
+		
+		public boolean covers(Constant[] bound) {
+			for (int pos : this.positions) {
+				if (bound[pos] == null) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		public CompositeKey keyOf(Term[] args) {
+			Constant[] key = new Constant[this.positions.length];
+			for (int i = 0; i < key.length; ++i) {
+				key[i] = (Constant) args[this.positions[i]];
+			}
+			return new CompositeKey(key);
+		}
+	}
+	
+	/**
+	 * The constants at the positions of a composite index.
+	 */
+	private static final class CompositeKey {
+		private final Constant[] consts;
+		private final int hash;
+		
+		public CompositeKey(Constant[] consts) {
+			this.consts = consts;
+			this.hash = Arrays.hashCode(consts);
+		}
+		
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof CompositeKey)) {
+				return false;
+			}
+			CompositeKey other = (CompositeKey) obj;
+			return this.hash == other.hash && Arrays.equals(this.consts, other.consts);
+		}
+	}
+	
+	/**
+	 * A read-only view of the facts that are in both of two sets, which
+	 * iterates over the smaller set and probes the other one.
+	 */
+	private static final class Intersection extends AbstractSet<PositiveAtom> {
+		private final Set<PositiveAtom> smaller;
+		private final Set<PositiveAtom> larger;
+		
+		public Intersection(Set<PositiveAtom> smaller, Set<PositiveAtom> larger) {
+			this.smaller = smaller;
+			this.larger = larger;
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			return this.smaller.contains(o) && this.larger.contains(o);
+		}
+		
+		@Override
+		public Iterator<PositiveAtom> iterator() {
+			Iterator<PositiveAtom> it = this.smaller.iterator();
+			return new Iterator<PositiveAtom>() {
+				private PositiveAtom next = this.advance();
+				
+				private PositiveAtom advance() {
+					while (it.hasNext()) {
+						PositiveAtom fact = it.next();
+						if (Intersection.this.larger.contains(fact)) {
+							return fact;
+						}
+					}
+					return null;
+				}
+				
+				@Override
+				public boolean hasNext() {
+					return this.next != null;
+				}
+				
+				@Override
+				public PositiveAtom next() {
+					if (this.next == null) {
+						throw new NoSuchElementException();
+					}
+					PositiveAtom r = this.next;
+					this.next = this.advance();
+					return r;
+				}
+			};
+		}
+		
+		@Override
+		public int size() {
+			int n = 0;
+			for (Iterator<PositiveAtom> it = this.iterator(); it.hasNext(); it.next()) {
+				++n;
+			}
+			return n;
+		}
+		
+		@Override
+		public boolean isEmpty() {
+			return !this.iterator().hasNext();
+		}
+	}
+	
+	/**
+	 * A container together with the number of facts that have been added to
+	 * it. Containers that are collections report whether a fact was new, so
+	 * that duplicate facts are not counted.
+	 */
+	private static final class Bucket<T> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<Bucket> SIZE = AtomicIntegerFieldUpdater
+				.newUpdater(Bucket.class, "size");
+		
+		private final T facts;
+		private volatile int size;
+		
+		public Bucket(T facts) {
+			this.facts = facts;
+		}
+	}
+	
 }
@@ -0,0 +1,72 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
+
+/**
+ * A thread-safe set of facts (i.e., ground atoms) that supports adding an atom
+ * under a substitution without first materializing the fact. The bottom-up
+ * engines use it to decide whether a derived fact is new.
+ *
+ */
+public interface ConcurrentFactSet {
+	/**
+	 * Adds an atom a to this set. The atom must be ground once the
+	 * substitution s has been applied. This method returns whether the set has
+	 * changed.
+	 * 
+	 * @param a
+	 *            the atom
+	 * @param s
+	 *            the substitution
+	 * @return whether the set has changed
+	 */
+	public boolean add(PositiveAtom a, ConstOnlySubstitution s);
+
+	/**
+	 * Adds a fact to this set and returns whether the set has changed.
+	 * 
+	 * @param fact
+	 *            the fact
+	 * @return whether the set has changed
+	 */
+	public boolean add(PositiveAtom fact);
+
+	/**
+	 * Clears this set.
+	 */
+	public void clear();
+}
@@ -33,6 +33,8 @@ package edu.harvard.seas.pl.abcdatalog.util.datastructures;
  * #L%
  */
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
 import edu.harvard.seas.pl.abcdatalog.ast.Constant;
@@ -47,7 +49,7 @@ import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
  * A trie that holds a set of facts (i.e., ground atoms).
  *
  */
-public class ConcurrentFactTrie {
+public class ConcurrentFactTrie implements ConcurrentFactSet, MemoryAccountable {
 	private ConcurrentMap<PredicateSym, Object> trie = Utilities.createConcurrentMap();
 
 	/**
@@ -61,6 +63,7 @@ public class ConcurrentFactTrie {
 	 *            the substitution
 	 * @return whether the set has changed
 	 */
+	@Override
 	@SuppressWarnings("unchecked")
 	public boolean add(PositiveAtom a, ConstOnlySubstitution s) {
 		if (a.getPred().getArity() == 0) {
@@ -107,6 +110,7 @@ public class ConcurrentFactTrie {
 	 *            the fact
 	 * @return whether the trie has changed
 	 */
+	@Override
 	public boolean add(PositiveAtom fact) {
 		try {
 			return add(fact, null);
@@ -118,9 +122,49 @@ public class ConcurrentFactTrie {
 		}
 	}
 	
+	/**
+	 * Returns an estimate of the memory used for each predicate symbol. The
+	 * index on argument position i is level i of the trie, and its buckets are
+	 * the distinct prefixes of length i + 1. Every trie node is a hash map.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<PredicateSym, MemoryStats> getMemoryStats() {
+		Map<PredicateSym, MemoryStats> stats = new HashMap<>();
+		for (Map.Entry<PredicateSym, Object> e : this.trie.entrySet()) {
+			int arity = e.getKey().getArity();
+			int[] bucketCounts = new int[arity];
+			long[] indexBytes = new long[arity];
+			long nodes = 0;
+			int facts = 1;
+			if (arity > 0) {
+				nodes = measure((ConcurrentMap<Constant, Object>) e.getValue(), 0, bucketCounts, indexBytes);
+				facts = bucketCounts[arity - 1];
+			}
+			stats.put(e.getKey(), new MemoryStats(facts, 0, bucketCounts, indexBytes, 0, nodes));
+		}
+		return stats;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static long measure(ConcurrentMap<Constant, Object> n, int level, int[] bucketCounts, long[] indexBytes) {
+		long nodes = 1;
+		int entries = 0;
+		for (Object child : n.values()) {
+			if (level + 1 < bucketCounts.length) {
+				nodes += measure((ConcurrentMap<Constant, Object>) child, level + 1, bucketCounts, indexBytes);
+			}
+			++entries;
+		}
+		bucketCounts[level] += entries;
+		indexBytes[level] += MemoryStats.hashTableBytes(entries);
+		return nodes;
+	}
+	
 	/**
 	 * Clears this trie.
 	 */
+	@Override
 	public void clear() {
 		this.trie.clear();
 	}
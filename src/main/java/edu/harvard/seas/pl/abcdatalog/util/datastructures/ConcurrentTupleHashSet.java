@@ -0,0 +1,280 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
+
+/**
+ * A set of facts that keeps, for each predicate symbol, a lock-free
+ * open-addressing hash table of dictionary-encoded tuples (see
+ * {@link FactEncoding}). Compared to {@link ConcurrentFactTrie}, adding a fact
+ * allocates a single integer array rather than a map per distinct prefix.
+ * 
+ * Slots are claimed with a compare-and-set and never change afterwards, except
+ * when a table is resized. Once a table holds more tuples than half its
+ * capacity, the thread that crossed the threshold installs a table twice as
+ * large and starts moving the old slots over; the work is split into chunks
+ * that threads claim as they run into the resize, so no thread ever holds a
+ * lock. A thread that finds that a table has a successor helps to finish the
+ * move and then continues in the successor, without probing the old table
+ * any further. A slot that has been moved, or that was still empty when its
+ * chunk was moved, is marked as such, so that a thread that was already
+ * probing the old table cannot claim it and instead retries in the new table.
+ * This guarantees that exactly one invocation of add returns true for any
+ * given fact.
+ *
+ */
+public class ConcurrentTupleHashSet implements ConcurrentFactSet, MemoryAccountable {
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int TRANSFER_CHUNK = 64;
+	/**
+	 * Marks a slot that has been moved to the next table.
+	 */
+	private static final int[] MOVED = new int[0];
+
+	private final ConcurrentMap<PredicateSym, TupleSet> sets = Utilities.createConcurrentMap();
+
+	@Override
+	public boolean add(PositiveAtom a, ConstOnlySubstitution s) {
+		int[] row = FactEncoding.encode(a, s);
+		for (int id : row) {
+			assert id != FactEncoding.UNBOUND;
+		}
+		return this.getSet(a.getPred()).add(row);
+	}
+
+	@Override
+	public boolean add(PositiveAtom fact) {
+		return this.getSet(fact.getPred()).add(FactEncoding.encode(fact));
+	}
+
+	@Override
+	public void clear() {
+		this.sets.clear();
+	}
+
+	/**
+	 * Returns an estimate of the memory used for each predicate symbol. The
+	 * facts are the encoded tuples and the slots of the current table; the
+	 * set has no indices. While a table is being resized, the estimate
+	 * reflects the table that is being moved.
+	 */
+	@Override
+	public Map<PredicateSym, MemoryStats> getMemoryStats() {
+		Map<PredicateSym, MemoryStats> stats = new HashMap<>();
+		for (Map.Entry<PredicateSym, TupleSet> e : this.sets.entrySet()) {
+			int arity = e.getKey().getArity();
+			Table t = e.getValue().current.get();
+			int n = t.count.get();
+			long bytes = MemoryStats.objectBytes(7) + MemoryStats.arrayBytes(t.slots.length())
+					+ n * MemoryStats.arrayBytes(arity);
+			stats.put(e.getKey(), new MemoryStats(n, bytes, new int[arity], new long[arity], 0, 0));
+		}
+		return stats;
+	}
+
+	private TupleSet getSet(PredicateSym pred) {
+		TupleSet set = this.sets.get(pred);
+		if (set == null) {
+			set = new TupleSet();
+			TupleSet existing = this.sets.putIfAbsent(pred, set);
+			if (existing != null) {
+				set = existing;
+			}
+		}
+		return set;
+	}
+
+	private static int hash(int[] row) {
+		int h = row.length;
+		for (int v : row) {
+			h = 31 * h + v;
+		}
+		// Finalizer from MurmurHash3, since linear probing is sensitive to
+		// clustering.
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * The tuples of a single predicate symbol.
+	 */
+	private static class TupleSet {
+		private final AtomicReference<Table> current = new AtomicReference<>(new Table(INITIAL_CAPACITY));
+
+		public boolean add(int[] row) {
+			return this.insert(this.current.get(), row, hash(row));
+		}
+
+		/**
+		 * Inserts the row into the given table or, if that table is being
+		 * resized, into its successor.
+		 */
+		private boolean insert(Table t, int[] row, int h) {
+			while (true) {
+				if (t.next.get() != null) {
+					// The table is past its threshold; finish moving it rather
+					// than probing it any further.
+					t = this.helpResize(t);
+					continue;
+				}
+				switch (t.tryInsert(row, h)) {
+				case ADDED:
+					if (t.count.incrementAndGet() > t.threshold) {
+						this.helpResize(t);
+					}
+					return true;
+				case PRESENT:
+					return false;
+				default:
+					t = this.helpResize(t);
+				}
+			}
+		}
+
+		/**
+		 * Installs the successor of the table, if there is none yet, and
+		 * returns it.
+		 */
+		private Table startResize(Table t) {
+			Table next = t.next.get();
+			if (next == null) {
+				next = new Table(t.slots.length() * 2);
+				if (!t.next.compareAndSet(null, next)) {
+					next = t.next.get();
+				}
+			}
+			return next;
+		}
+
+		/**
+		 * Helps to move every slot of the table into its successor, and returns
+		 * the successor once all of them have been moved.
+		 */
+		private Table helpResize(Table t) {
+			Table next = this.startResize(t);
+			int n = t.slots.length();
+			int nchunks = (n + TRANSFER_CHUNK - 1) / TRANSFER_CHUNK;
+			int chunk;
+			while ((chunk = t.transferIndex.getAndIncrement()) < nchunks) {
+				int start = chunk * TRANSFER_CHUNK;
+				this.transfer(t, next, start, Math.min(start + TRANSFER_CHUNK, n));
+				t.chunksDone.incrementAndGet();
+			}
+			if (t.chunksDone.get() < nchunks) {
+				// Some chunks have been claimed but not finished yet; rather
+				// than waiting, move whatever is left ourselves.
+				this.transfer(t, next, 0, n);
+			}
+			this.current.compareAndSet(t, next);
+			return next;
+		}
+
+		private void transfer(Table t, Table next, int start, int end) {
+			for (int i = start; i < end; ++i) {
+				while (true) {
+					int[] cur = t.slots.get(i);
+					if (cur == MOVED) {
+						break;
+					}
+					if (cur == null) {
+						if (t.slots.compareAndSet(i, null, MOVED)) {
+							break;
+						}
+						continue;
+					}
+					this.insert(next, cur, hash(cur));
+					t.slots.set(i, MOVED);
+					break;
+				}
+			}
+		}
+	}
+
+	private enum InsertResult {
+		ADDED, PRESENT, RETRY
+	}
+
+	private static class Table {
+		private final AtomicReferenceArray<int[]> slots;
+		private final int mask;
+		private final int threshold;
+		private final AtomicInteger count = new AtomicInteger();
+		private final AtomicReference<Table> next = new AtomicReference<>();
+		private final AtomicInteger transferIndex = new AtomicInteger();
+		private final AtomicInteger chunksDone = new AtomicInteger();
+
+		public Table(int capacity) {
+			this.slots = new AtomicReferenceArray<>(capacity);
+			this.mask = capacity - 1;
+			this.threshold = capacity / 2;
+		}
+
+		public InsertResult tryInsert(int[] row, int h) {
+			for (int i = h & this.mask, probes = 0; probes <= this.mask; i = (i + 1) & this.mask, ++probes) {
+				int[] cur = this.slots.get(i);
+				if (cur == null) {
+					if (this.slots.compareAndSet(i, null, row)) {
+						return InsertResult.ADDED;
+					}
+					cur = this.slots.get(i);
+				}
+				if (cur == MOVED) {
+					return InsertResult.RETRY;
+				}
+				if (Arrays.equals(cur, row)) {
+					return InsertResult.PRESENT;
+				}
+			}
+			// The table is full.
+			return InsertResult.RETRY;
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
+
+/**
+ * A utility class for translating between facts and their dictionary-encoded
+ * representation, i.e., rows of constant ids (see {@link Constant#getId()}).
+ * Data structures that store facts as integer rows use these methods at their
+ * boundaries, so that atoms only need to be materialized when they are handed
+ * back to clients.
+ *
+ */
+public final class FactEncoding {
+
+	private FactEncoding() {
+		// Cannot be instantiated.
+	}
+
+	/**
+	 * The value used in an encoded row for a position that is not bound to a
+	 * constant.
+	 */
+	public static final int UNBOUND = -1;
+
+	/**
+	 * Returns the id of the constant that a term denotes after the
+	 * substitution has been applied, or {@link #UNBOUND} if it is an unbound
+	 * variable.
+	 *
+	 * @param t
+	 *            the term
+	 * @param s
+	 *            the substitution (possibly null)
+	 * @return the constant id, or {@link #UNBOUND}
+	 */
+	public static int encode(Term t, ConstOnlySubstitution s) {
+		if (t instanceof Constant) {
+			return ((Constant) t).getId();
+		}
+		if (s != null) {
+			Constant c = s.get((Variable) t);
+			if (c != null) {
+				return c.getId();
+			}
+		}
+		return UNBOUND;
+	}
+
+	/**
+	 * Encodes the arguments of an atom, once the substitution has been
+	 * applied. Positions that are not bound to a constant are encoded as
+	 * {@link #UNBOUND}.
+	 *
+	 * @param atom
+	 *            the atom
+	 * @param s
+	 *            the substitution (possibly null)
+	 * @return the encoded row
+	 */
+	public static int[] encode(PositiveAtom atom, ConstOnlySubstitution s) {
+		Term[] args = atom.getArgs();
+		int[] row = new int[args.length];
+		for (int i = 0; i < args.length; ++i) {
+			row[i] = encode(args[i], s);
+		}
+		return row;
+	}
+
+	/**
+	 * Encodes the arguments of a fact.
+	 *
+	 * @param fact
+	 *            the fact
+	 * @return the encoded row
+	 * @throws IllegalArgumentException
+	 *             if the atom is not ground
+	 */
+	public static int[] encode(PositiveAtom fact) {
+		Term[] args = fact.getArgs();
+		int[] row = new int[args.length];
+		for (int i = 0; i < args.length; ++i) {
+			Term t = args[i];
+			if (!(t instanceof Constant)) {
+				throw new IllegalArgumentException("Argument atom must be ground.");
+			}
+			row[i] = ((Constant) t).getId();
+		}
+		return row;
+	}
+
+	/**
+	 * Materializes the fact with the given predicate symbol and encoded
+	 * arguments.
+	 *
+	 * @param pred
+	 *            the predicate symbol
+	 * @param row
+	 *            the encoded arguments
+	 * @return the fact
+	 */
+	public static PositiveAtom decode(PredicateSym pred, int[] row) {
+		Term[] args = new Term[row.length];
+		for (int i = 0; i < row.length; ++i) {
+			args[i] = Constant.fromId(row[i]);
+		}
+		return PositiveAtom.create(pred, args);
+	}
+
+}
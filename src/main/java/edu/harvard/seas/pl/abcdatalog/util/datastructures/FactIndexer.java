@@ -33,7 +33,10 @@ package edu.harvard.seas.pl.abcdatalog.util.datastructures;
  * #L%
  */
 
+import java.util.Set;
+
 import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
 
 public interface FactIndexer extends IndexableFactCollection {
 	/**
@@ -51,4 +54,46 @@ public interface FactIndexer extends IndexableFactCollection {
 	 *            some facts
 	 */
 	public void addAll(Iterable<PositiveAtom> facts);
+
+	/**
+	 * Returns whether facts can be removed from the FactIndexer (see
+	 * {@link #remove(PositiveAtom)}). The default implementation returns
+	 * false.
+	 * 
+	 * @return whether removal is supported
+	 */
+	public default boolean supportsRemoval() {
+		return false;
+	}
+
+	/**
+	 * Removes a fact from the FactIndexer. This is only supported if
+	 * {@link #supportsRemoval()} returns true. The default implementation
+	 * throws an {@link UnsupportedOperationException}.
+	 * 
+	 * @param fact
+	 *            a fact
+	 * @return whether the fact was present
+	 * @throws UnsupportedOperationException
+	 *             if removal is not supported
+	 */
+	public default boolean remove(PositiveAtom fact) {
+		throw new UnsupportedOperationException("This fact indexer does not support removal.");
+	}
+
+	/**
+	 * Informs the FactIndexer that it will be queried with atoms of the given
+	 * predicate symbol whose arguments are bound at exactly the given
+	 * positions, so that it can index facts on that combination of positions.
+	 * This should be invoked before facts are added concurrently. The default
+	 * implementation ignores the hint.
+	 * 
+	 * @param pred
+	 *            the predicate symbol
+	 * @param boundPositions
+	 *            the bound argument positions
+	 */
+	public default void addBindingPattern(PredicateSym pred, Set<Integer> boundPositions) {
+		// Ignore by default.
+	}
 }
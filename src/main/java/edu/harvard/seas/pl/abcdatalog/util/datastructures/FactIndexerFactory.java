@@ -33,9 +33,11 @@ package edu.harvard.seas.pl.abcdatalog.util.datastructures;
  * #L%
  */
 
+import java.nio.file.Path;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
 
 import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
 import edu.harvard.seas.pl.abcdatalog.util.Utilities;
@@ -71,4 +73,74 @@ public final class FactIndexerFactory {
 				fact) -> queue.add(fact));
 	}
 
+	/**
+	 * Creates a fact indexer that uses concurrent chunked bags for the base
+	 * container.
+	 * 
+	 * @return the fact indexer
+	 */
+	public static ConcurrentFactIndexer<ConcurrentChunkedBag<PositiveAtom>> createConcurrentBagFactIndexer() {
+		return new ConcurrentFactIndexer<>(() -> new ConcurrentChunkedBag<>(), (bag, fact) -> bag.add(fact),
+				() -> ConcurrentChunkedBag.emptyBag());
+	}
+
+	/**
+	 * Creates a fact indexer that stores facts as dictionary-encoded columns
+	 * of primitive integers.
+	 *
+	 * @return the fact indexer
+	 */
+	public static ColumnarFactIndexer createColumnarFactIndexer() {
+		return new ColumnarFactIndexer();
+	}
+
+	/**
+	 * Creates a fact indexer that stores facts off the heap, in memory mapped
+	 * files in the given scratch directory.
+	 *
+	 * @param scratchDir
+	 *            the directory
+	 * @return the fact indexer
+	 */
+	public static MappedFactIndexer createMappedFactIndexer(Path scratchDir) {
+		return new MappedFactIndexer(scratchDir);
+	}
+
+	/**
+	 * Creates a fact indexer that keeps every relation sorted.
+	 *
+	 * @return the fact indexer
+	 */
+	public static SortedFactIndexer createSortedFactIndexer() {
+		return new SortedFactIndexer();
+	}
+
+	/**
+	 * Creates a fact indexer that partitions the facts of each predicate
+	 * symbol into the given number of shards, each of which uses concurrent
+	 * sets for the base container.
+	 *
+	 * @param nshards
+	 *            the number of shards
+	 * @return the fact indexer
+	 */
+	public static ShardedFactIndexer createShardedFactIndexer(int nshards) {
+		return createShardedFactIndexer(nshards, FactIndexerFactory::createConcurrentSetFactIndexer);
+	}
+
+	/**
+	 * Creates a fact indexer that partitions the facts of each predicate
+	 * symbol into the given number of shards.
+	 *
+	 * @param nshards
+	 *            the number of shards
+	 * @param shardFactory
+	 *            a supplier of the (empty) fact indexers used as shards
+	 * @return the fact indexer
+	 */
+	public static ShardedFactIndexer createShardedFactIndexer(int nshards,
+			Supplier<? extends FactIndexer> shardFactory) {
+		return new ShardedFactIndexer(nshards, shardFactory);
+	}
+
 }
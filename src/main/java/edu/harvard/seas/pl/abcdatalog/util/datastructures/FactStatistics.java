@@ -0,0 +1,90 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Set;
+
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+
+/**
+ * A data structure that keeps statistics about the facts it holds, so that
+ * evaluation algorithms can estimate the cost of looking up facts. The
+ * statistics can be requested while facts are being added concurrently, in
+ * which case they reflect some recent state of the data structure.
+ *
+ */
+public interface FactStatistics {
+
+	/**
+	 * Returns the number of facts with the given predicate symbol. The count
+	 * may be an overestimate.
+	 * 
+	 * @param pred
+	 *            the predicate symbol
+	 * @return the number of facts
+	 */
+	int getCardinality(PredicateSym pred);
+
+	/**
+	 * Returns the number of distinct constants that occur at the given
+	 * argument position in facts with the given predicate symbol.
+	 * 
+	 * @param pred
+	 *            the predicate symbol
+	 * @param pos
+	 *            the argument position
+	 * @return the number of distinct constants
+	 */
+	int getDistinctCount(PredicateSym pred, int pos);
+
+	/**
+	 * Estimates how many facts with the given predicate symbol match a lookup
+	 * in which the given argument positions are bound, assuming that the
+	 * positions are independent and their values uniformly distributed.
+	 * 
+	 * @param pred
+	 *            the predicate symbol
+	 * @param boundPositions
+	 *            the bound argument positions
+	 * @return the estimated number of matching facts
+	 */
+	default double estimateMatches(PredicateSym pred, Set<Integer> boundPositions) {
+		double estimate = getCardinality(pred);
+		for (Integer pos : boundPositions) {
+			estimate /= Math.max(1, getDistinctCount(pred, pos));
+		}
+		return estimate;
+	}
+
+}
@@ -85,6 +85,19 @@ public interface IndexableFactCollection {
 	 */
 	public boolean isEmpty();
 
+	/**
+	 * Returns whether the atoms returned by
+	 * {@link #indexInto(PositiveAtom, ConstOnlySubstitution)} are guaranteed
+	 * to agree with the provided atom on every argument that is a constant
+	 * once the substitution has been applied, so that callers do not need to
+	 * check those arguments again. The default implementation returns false.
+	 * 
+	 * @return whether lookups are exact
+	 */
+	public default boolean isExact() {
+		return false;
+	}
+
 	/**
 	 * Returns the set of the predicate symbols represented in this collection.
 	 * 
@@ -0,0 +1,604 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
+
+/**
+ * A fact indexer that keeps its facts outside of the Java heap, in memory
+ * mapped files in a scratch directory. It can therefore hold relations that
+ * are larger than the heap without adding to the work of the garbage
+ * collector.
+ * 
+ * Each predicate is stored as a sequence of fixed-width records holding the
+ * dictionary-encoded arguments of a fact (see {@link FactEncoding}) and, for
+ * every argument position, a link to the previous record with the same
+ * constant at that position. A hash table per position maps each constant to
+ * the most recent record holding it and to the number of such records; another
+ * hash table over whole records is used to deduplicate facts. The hash tables
+ * are rebuilt at twice the size as they fill up. A relation has set semantics.
+ * 
+ * Lookups follow the chain of the bound position with the fewest records and
+ * return exactly the matching facts. Adds to the same predicate are serialized,
+ * and are excluded while a lookup is reading from the files; iterators read
+ * records in small batches, so they do not block adds for long. Once the add
+ * method returns having been invoked with a fact f, f is visible to all
+ * threads. Iterators reflect the facts present when the collection returned by
+ * indexInto was created.
+ * 
+ * The files are deleted as soon as they are superseded by larger ones, and the
+ * rest when the indexer is closed (or when the virtual machine exits); the
+ * indexer must not be used after it has been closed. An engine that is given
+ * this indexer does not close it: the caller owns it, and should close it once
+ * it is done with the engine, since the files otherwise stay around until the
+ * virtual machine exits.
+ *
+ */
+public class MappedFactIndexer implements FactIndexer, Closeable, MemoryAccountable {
+	private final Path scratchDir;
+	/**
+	 * Whether the scratch directory was created by this indexer, and so is
+	 * deleted when it is closed.
+	 */
+	private final boolean ownsDir;
+	private final ConcurrentMap<PredicateSym, Relation> relations = Utilities.createConcurrentMap();
+
+	/**
+	 * Creates a fact indexer that stores its files in a new temporary
+	 * directory.
+	 */
+	public MappedFactIndexer() {
+		this(createTempDir(), true);
+	}
+
+	/**
+	 * Creates a fact indexer that stores its files in the given directory.
+	 * 
+	 * @param scratchDir
+	 *            the directory
+	 */
+	public MappedFactIndexer(Path scratchDir) {
+		this(scratchDir, false);
+	}
+
+	private MappedFactIndexer(Path scratchDir, boolean ownsDir) {
+		this.scratchDir = scratchDir;
+		this.ownsDir = ownsDir;
+	}
+
+	private static Path createTempDir() {
+		try {
+			Path dir = Files.createTempDirectory("abcdatalog");
+			MappedIntArray.deleteOnExit(dir);
+			return dir;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void add(PositiveAtom fact) {
+		Relation r = this.relations.get(fact.getPred());
+		if (r == null) {
+			r = new Relation(fact.getPred());
+			Relation existing = this.relations.putIfAbsent(fact.getPred(), r);
+			if (existing != null) {
+				r.close();
+				r = existing;
+			}
+		}
+		r.add(FactEncoding.encode(fact));
+	}
+
+	@Override
+	public void addAll(Iterable<PositiveAtom> facts) {
+		for (PositiveAtom fact : facts) {
+			this.add(fact);
+		}
+	}
+
+	/**
+	 * Returns whether this indexer contains the given fact.
+	 *
+	 * @param fact
+	 *            the fact
+	 * @return whether the fact is present
+	 */
+	public boolean contains(PositiveAtom fact) {
+		return this.indexInto(fact).iterator().hasNext();
+	}
+
+	/**
+	 * Returns the number of facts with the given predicate symbol.
+	 *
+	 * @param pred
+	 *            the predicate symbol
+	 * @return the number of facts
+	 */
+	public int size(PredicateSym pred) {
+		Relation r = this.relations.get(pred);
+		return r == null ? 0 : r.size;
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PositiveAtom atom) {
+		return this.indexInto(atom, null);
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PositiveAtom atom, ConstOnlySubstitution subst) {
+		Relation r = this.relations.get(atom.getPred());
+		if (r == null) {
+			return Collections.emptyList();
+		}
+		return r.lookup(FactEncoding.encode(atom, subst));
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PredicateSym pred) {
+		Relation r = this.relations.get(pred);
+		if (r == null) {
+			return Collections.emptyList();
+		}
+		return r.lookup(null);
+	}
+
+	@Override
+	public boolean isExact() {
+		return true;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.relations.isEmpty();
+	}
+
+	@Override
+	public Set<PredicateSym> getPreds() {
+		return this.relations.keySet();
+	}
+
+	/**
+	 * Removes all facts from this indexer and deletes their files.
+	 */
+	public void clear() {
+		for (PredicateSym pred : this.relations.keySet()) {
+			Relation r = this.relations.remove(pred);
+			if (r != null) {
+				r.close();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of this indexer, as well as its scratch directory if
+	 * the indexer created it.
+	 */
+	@Override
+	public void close() {
+		this.clear();
+		if (this.ownsDir) {
+			MappedIntArray.deleteScratch(this.scratchDir);
+		}
+	}
+
+	/**
+	 * Returns an estimate of the memory used for each predicate symbol. Since
+	 * the facts and their indices are kept in memory mapped files, the bytes
+	 * are those of the files rather than of the Java heap: the facts are the
+	 * records and the deduplication table, and the index on a position is its
+	 * hash table, whose buckets are the distinct constants at the position.
+	 */
+	@Override
+	public Map<PredicateSym, MemoryStats> getMemoryStats() {
+		Map<PredicateSym, MemoryStats> stats = new HashMap<>();
+		for (Map.Entry<PredicateSym, Relation> e : this.relations.entrySet()) {
+			stats.put(e.getKey(), e.getValue().getMemoryStats());
+		}
+		return stats;
+	}
+
+	private static final int INITIAL_TABLE_SIZE = 1024;
+	private static final int BATCH_SIZE = 256;
+
+	private static int hash(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * The facts of a single predicate symbol. Record r starts at offset r *
+	 * recordInts in the record array; it consists of the arguments followed,
+	 * for each position, by one plus the index of the previous record with the
+	 * same argument at that position (or zero).
+	 */
+	private class Relation {
+		private final PredicateSym pred;
+		private final int arity;
+		private final int recordInts;
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+		private volatile int size;
+
+		private MappedIntArray records;
+		/**
+		 * For each position, an open-addressing table of entries of three
+		 * integers: one plus the constant id, one plus the most recent record
+		 * index, and the number of records.
+		 */
+		private final MappedIntArray[] colTables;
+		private final int[] colTableSizes;
+		private final int[] colTableCounts;
+		/**
+		 * An open-addressing table of one plus record indices.
+		 */
+		private MappedIntArray dedup;
+		private int dedupSize;
+
+		public Relation(PredicateSym pred) {
+			this.pred = pred;
+			this.arity = pred.getArity();
+			this.recordInts = 2 * this.arity;
+			this.colTables = new MappedIntArray[this.arity];
+			this.colTableSizes = new int[this.arity];
+			this.colTableCounts = new int[this.arity];
+			if (this.arity > 0) {
+				this.records = new MappedIntArray(scratchDir, (long) INITIAL_TABLE_SIZE * this.recordInts);
+				for (int i = 0; i < this.arity; ++i) {
+					this.colTables[i] = new MappedIntArray(scratchDir, 3L * INITIAL_TABLE_SIZE);
+					this.colTableSizes[i] = INITIAL_TABLE_SIZE;
+				}
+				this.dedup = new MappedIntArray(scratchDir, INITIAL_TABLE_SIZE);
+				this.dedupSize = INITIAL_TABLE_SIZE;
+			}
+		}
+
+		public void add(int[] row) {
+			this.lock.writeLock().lock();
+			try {
+				int n = this.size;
+				if (this.arity == 0) {
+					this.size = 1;
+					return;
+				}
+				if (this.findRecord(row) >= 0) {
+					return;
+				}
+				long base = (long) n * this.recordInts;
+				this.records.ensureCapacity(base + this.recordInts);
+				for (int i = 0; i < this.arity; ++i) {
+					this.records.set(base + i, row[i]);
+					long entry = this.findEntry(i, row[i], true);
+					MappedIntArray table = this.colTables[i];
+					this.records.set(base + this.arity + i, table.get(entry + 1));
+					table.set(entry + 1, n + 1);
+					table.set(entry + 2, table.get(entry + 2) + 1);
+				}
+				if ((n + 1) * 2 > this.dedupSize) {
+					this.rehashDedup();
+				}
+				this.placeRecord(this.dedup, this.dedupSize, row, n);
+				this.size = n + 1;
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+
+		public MemoryStats getMemoryStats() {
+			int[] bucketCounts = new int[this.arity];
+			long[] indexBytes = new long[this.arity];
+			this.lock.readLock().lock();
+			try {
+				if (this.arity == 0) {
+					return new MemoryStats(this.size, 0, bucketCounts, indexBytes, 0, 0);
+				}
+				long factBytes = 4 * (this.records.capacity() + this.dedup.capacity());
+				for (int i = 0; i < this.arity; ++i) {
+					bucketCounts[i] = this.colTableCounts[i];
+					indexBytes[i] = 4 * this.colTables[i].capacity();
+				}
+				return new MemoryStats(this.size, factBytes, bucketCounts, indexBytes, 0, 0);
+			} finally {
+				this.lock.readLock().unlock();
+			}
+		}
+
+		private int recordHash(int[] row) {
+			int h = 1;
+			for (int v : row) {
+				h = 31 * h + v;
+			}
+			return hash(h);
+		}
+
+		private boolean recordEquals(int r, int[] row) {
+			long base = (long) r * this.recordInts;
+			for (int i = 0; i < this.arity; ++i) {
+				if (this.records.get(base + i) != row[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int findRecord(int[] row) {
+			int mask = this.dedupSize - 1;
+			for (int i = recordHash(row) & mask;; i = (i + 1) & mask) {
+				int r = this.dedup.get(i) - 1;
+				if (r < 0) {
+					return -1;
+				}
+				if (recordEquals(r, row)) {
+					return r;
+				}
+			}
+		}
+
+		private void placeRecord(MappedIntArray table, int tableSize, int[] row, int r) {
+			int mask = tableSize - 1;
+			int i = recordHash(row) & mask;
+			while (table.get(i) != 0) {
+				i = (i + 1) & mask;
+			}
+			table.set(i, r + 1);
+		}
+
+		private void rehashDedup() {
+			int newSize = this.dedupSize * 2;
+			MappedIntArray table = new MappedIntArray(scratchDir, newSize);
+			int[] row = new int[this.arity];
+			for (int r = 0; r < this.size; ++r) {
+				long base = (long) r * this.recordInts;
+				for (int i = 0; i < this.arity; ++i) {
+					row[i] = this.records.get(base + i);
+				}
+				this.placeRecord(table, newSize, row, r);
+			}
+			this.dedup.delete();
+			this.dedup = table;
+			this.dedupSize = newSize;
+		}
+
+		/**
+		 * Returns the offset of the entry for the constant id in the table of
+		 * the given position, or -1 if there is none and create is false.
+		 */
+		private long findEntry(int pos, int id, boolean create) {
+			MappedIntArray table = this.colTables[pos];
+			int mask = this.colTableSizes[pos] - 1;
+			for (int i = hash(id) & mask;; i = (i + 1) & mask) {
+				long entry = 3L * i;
+				int key = table.get(entry) - 1;
+				if (key == id) {
+					return entry;
+				}
+				if (key < 0) {
+					if (!create) {
+						return -1;
+					}
+					if ((this.colTableCounts[pos] + 1) * 2 > this.colTableSizes[pos]) {
+						this.rehashColumn(pos);
+						return this.findEntry(pos, id, true);
+					}
+					table.set(entry, id + 1);
+					++this.colTableCounts[pos];
+					return entry;
+				}
+			}
+		}
+
+		private void rehashColumn(int pos) {
+			MappedIntArray old = this.colTables[pos];
+			int oldSize = this.colTableSizes[pos];
+			int newSize = oldSize * 2;
+			int mask = newSize - 1;
+			MappedIntArray table = new MappedIntArray(scratchDir, 3L * newSize);
+			for (int j = 0; j < oldSize; ++j) {
+				int key = old.get(3L * j);
+				if (key != 0) {
+					int i = hash(key - 1) & mask;
+					while (table.get(3L * i) != 0) {
+						i = (i + 1) & mask;
+					}
+					for (int k = 0; k < 3; ++k) {
+						table.set(3L * i + k, old.get(3L * j + k));
+					}
+				}
+			}
+			old.delete();
+			this.colTables[pos] = table;
+			this.colTableSizes[pos] = newSize;
+		}
+
+		/**
+		 * Returns the matching facts, or all facts if the key is null.
+		 */
+		public Iterable<PositiveAtom> lookup(int[] key) {
+			if (this.arity == 0 || key == null) {
+				int n = this.size;
+				return () -> new RecordIterator(n, -1, null);
+			}
+			this.lock.readLock().lock();
+			try {
+				int bestPos = -1;
+				int bestCount = Integer.MAX_VALUE;
+				int bestHead = 0;
+				for (int i = 0; i < this.arity; ++i) {
+					if (key[i] != FactEncoding.UNBOUND) {
+						long entry = this.findEntry(i, key[i], false);
+						if (entry < 0) {
+							return Collections.emptyList();
+						}
+						int count = this.colTables[i].get(entry + 2);
+						if (count < bestCount) {
+							bestPos = i;
+							bestCount = count;
+							bestHead = this.colTables[i].get(entry + 1);
+						}
+					}
+				}
+				if (bestPos == -1) {
+					int n = this.size;
+					return () -> new RecordIterator(n, -1, null);
+				}
+				int head = bestHead;
+				int pos = bestPos;
+				return () -> new RecordIterator(head, pos, key);
+			} finally {
+				this.lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Iterates over either the first records of the relation (when pos is
+		 * -1) or the chain of records that share the constant at position pos,
+		 * reading them in batches while holding the read lock.
+		 */
+		private class RecordIterator implements Iterator<PositiveAtom> {
+			private final int pos;
+			private final int[] key;
+			/**
+			 * When scanning, the number of records left; otherwise, one plus
+			 * the index of the next record in the chain.
+			 */
+			private int remaining;
+			private int next = 0;
+			private final int[][] batch = new int[BATCH_SIZE][];
+			private int batchPos = 0;
+			private int batchLen = 0;
+
+			public RecordIterator(int start, int pos, int[] key) {
+				this.pos = pos;
+				this.key = key;
+				this.remaining = start;
+			}
+
+			private void fill() {
+				this.batchPos = 0;
+				this.batchLen = 0;
+				if (arity == 0) {
+					if (this.remaining > 0) {
+						this.batch[this.batchLen++] = new int[0];
+						this.remaining = 0;
+					}
+					return;
+				}
+				lock.readLock().lock();
+				try {
+					while (this.remaining > 0 && this.batchLen < BATCH_SIZE) {
+						int r;
+						if (this.pos == -1) {
+							r = this.next++;
+							--this.remaining;
+						} else {
+							r = this.remaining - 1;
+							this.remaining = records.get((long) r * recordInts + arity + this.pos);
+						}
+						int[] row = new int[arity];
+						long base = (long) r * recordInts;
+						boolean matches = true;
+						for (int i = 0; i < arity; ++i) {
+							row[i] = records.get(base + i);
+							if (this.key != null && this.key[i] != FactEncoding.UNBOUND && this.key[i] != row[i]) {
+								matches = false;
+								break;
+							}
+						}
+						if (matches) {
+							this.batch[this.batchLen++] = row;
+						}
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				while (this.batchPos == this.batchLen) {
+					if (this.remaining == 0) {
+						return false;
+					}
+					this.fill();
+				}
+				return true;
+			}
+
+			@Override
+			public PositiveAtom next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int[] row = this.batch[this.batchPos];
+				this.batch[this.batchPos++] = null;
+				return FactEncoding.decode(pred, row);
+			}
+		}
+
+		public void close() {
+			this.lock.writeLock().lock();
+			try {
+				if (this.arity > 0) {
+					this.records.delete();
+					for (MappedIntArray table : this.colTables) {
+						table.delete();
+					}
+					this.dedup.delete();
+				}
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+	}
+
+}
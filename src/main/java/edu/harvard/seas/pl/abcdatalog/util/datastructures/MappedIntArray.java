@@ -0,0 +1,200 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A growable array of integers that lives outside of the Java heap, in a file
+ * that is memory mapped in segments. Small arrays use a single segment that is
+ * remapped at twice the size as they grow; past a certain size, more segments
+ * of that size are mapped. Newly mapped memory is zeroed. This class is not
+ * thread safe.
+ * 
+ * Backing files that have not been deleted by the time the virtual machine
+ * exits are deleted then. Unlike {@link java.io.File#deleteOnExit()}, a file
+ * is forgotten once it is deleted, so the bookkeeping does not grow with the
+ * number of files created over time.
+ *
+ */
+class MappedIntArray {
+	private static final int MIN_SEGMENT_BITS = 10;
+	private static final int MAX_SEGMENT_BITS = 24;
+
+	/**
+	 * The scratch files and directories that still exist.
+	 */
+	private static final Set<Path> scratch = ConcurrentHashMap.newKeySet();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			List<Path> paths = new ArrayList<>(scratch);
+			// Delete the files in a directory before the directory.
+			paths.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+			for (Path p : paths) {
+				try {
+					Files.deleteIfExists(p);
+				} catch (IOException e) {
+					// Nothing we can do about it now.
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Makes sure that the file or directory is deleted when the virtual
+	 * machine exits, unless it is deleted through {@link #deleteScratch(Path)}
+	 * before then.
+	 * 
+	 * @param p
+	 *            the path
+	 */
+	static void deleteOnExit(Path p) {
+		scratch.add(p);
+	}
+
+	/**
+	 * Deletes a file or (empty) directory that was passed to
+	 * {@link #deleteOnExit(Path)}.
+	 * 
+	 * @param p
+	 *            the path
+	 */
+	static void deleteScratch(Path p) {
+		try {
+			Files.deleteIfExists(p);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		scratch.remove(p);
+	}
+
+	private final Path file;
+	private IntBuffer[] segments = new IntBuffer[0];
+	private int segmentBits = MIN_SEGMENT_BITS;
+
+	/**
+	 * Creates an array in a new file in the given directory, with room for at
+	 * least the given number of integers.
+	 * 
+	 * @param dir
+	 *            the directory
+	 * @param capacity
+	 *            the initial capacity
+	 */
+	public MappedIntArray(Path dir, long capacity) {
+		try {
+			this.file = Files.createTempFile(dir, "abc", ".dat");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		deleteOnExit(this.file);
+		this.ensureCapacity(capacity);
+	}
+
+	public int get(long i) {
+		return this.segments[(int) (i >>> this.segmentBits)].get((int) (i & ((1 << this.segmentBits) - 1)));
+	}
+
+	public void set(long i, int v) {
+		this.segments[(int) (i >>> this.segmentBits)].put((int) (i & ((1 << this.segmentBits) - 1)), v);
+	}
+
+	public long capacity() {
+		return (long) this.segments.length << this.segmentBits;
+	}
+
+	/**
+	 * Maps more of the file if needed, so that the array can hold at least the
+	 * given number of integers.
+	 * 
+	 * @param capacity
+	 *            the capacity
+	 */
+	public void ensureCapacity(long capacity) {
+		if (capacity <= this.capacity()) {
+			return;
+		}
+		int bits = this.segmentBits;
+		while (bits < MAX_SEGMENT_BITS && capacity > (1L << bits)) {
+			++bits;
+		}
+		IntBuffer[] bigger;
+		if (bits != this.segmentBits) {
+			// The contents are in the file, so we can simply map it again.
+			this.segmentBits = bits;
+			bigger = new IntBuffer[(int) ((capacity + (1L << bits) - 1) >>> bits)];
+		} else {
+			bigger = Arrays.copyOf(this.segments, (int) ((capacity + (1L << bits) - 1) >>> bits));
+		}
+		long bytes = 4L << bits;
+		try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// The mappings remain valid after the channel is closed.
+			for (int i = 0; i < bigger.length; ++i) {
+				if (bigger[i] == null) {
+					bigger[i] = channel.map(MapMode.READ_WRITE, i * bytes, bytes).order(ByteOrder.nativeOrder())
+							.asIntBuffer();
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.segments = bigger;
+	}
+
+	/**
+	 * Deletes the backing file. The array must not be used afterwards; the
+	 * mapped memory is released once the buffers are garbage collected.
+	 */
+	public void delete() {
+		this.segments = new IntBuffer[0];
+		deleteScratch(this.file);
+	}
+
+}
@@ -0,0 +1,226 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * An estimate of the memory used to store a single relation, broken down by
+ * argument position. Estimates assume a 64-bit JVM with compressed object
+ * pointers and hash-based containers; they are meant for sizing heaps and
+ * comparing storage backends, not for exact accounting. Instances are
+ * immutable.
+ *
+ */
+public final class MemoryStats {
+	private final int factCount;
+	private final long factBytes;
+	private final int[] bucketCounts;
+	private final long[] indexBytes;
+	private final long otherIndexBytes;
+	private final long nodeCount;
+
+	/**
+	 * Creates a new memory estimate.
+	 * 
+	 * @param factCount
+	 *            the number of facts
+	 * @param factBytes
+	 *            the estimated bytes of the facts themselves and of the
+	 *            container that holds all of them
+	 * @param bucketCounts
+	 *            the number of index buckets for each argument position
+	 * @param indexBytes
+	 *            the estimated bytes of the index on each argument position
+	 * @param otherIndexBytes
+	 *            the estimated bytes of indices that are not on a single
+	 *            argument position (such as composite indices)
+	 * @param nodeCount
+	 *            the number of internal nodes (such as trie nodes)
+	 */
+	public MemoryStats(int factCount, long factBytes, int[] bucketCounts, long[] indexBytes, long otherIndexBytes,
+			long nodeCount) {
+		if (bucketCounts.length != indexBytes.length) {
+			throw new IllegalArgumentException("Expected one bucket count and one byte estimate per position.");
+		}
+		this.factCount = factCount;
+		this.factBytes = factBytes;
+		this.bucketCounts = bucketCounts.clone();
+		this.indexBytes = indexBytes.clone();
+		this.otherIndexBytes = otherIndexBytes;
+		this.nodeCount = nodeCount;
+	}
+
+	/**
+	 * Returns the number of facts.
+	 * 
+	 * @return the number of facts
+	 */
+	public int getFactCount() {
+		return this.factCount;
+	}
+
+	/**
+	 * Returns the estimated bytes of the facts themselves and of the container
+	 * that holds all of them.
+	 * 
+	 * @return the estimated bytes
+	 */
+	public long getFactBytes() {
+		return this.factBytes;
+	}
+
+	/**
+	 * Returns the number of argument positions that are accounted for.
+	 * 
+	 * @return the number of positions
+	 */
+	public int getArity() {
+		return this.bucketCounts.length;
+	}
+
+	/**
+	 * Returns the number of index buckets (i.e., distinct keys) for the given
+	 * argument position.
+	 * 
+	 * @param pos
+	 *            the argument position
+	 * @return the number of buckets
+	 */
+	public int getBucketCount(int pos) {
+		return this.bucketCounts[pos];
+	}
+
+	/**
+	 * Returns the estimated bytes of the index on the given argument position.
+	 * 
+	 * @param pos
+	 *            the argument position
+	 * @return the estimated bytes
+	 */
+	public long getIndexBytes(int pos) {
+		return this.indexBytes[pos];
+	}
+
+	/**
+	 * Returns the estimated bytes of indices that are not on a single argument
+	 * position.
+	 * 
+	 * @return the estimated bytes
+	 */
+	public long getOtherIndexBytes() {
+		return this.otherIndexBytes;
+	}
+
+	/**
+	 * Returns the number of internal nodes, such as trie nodes.
+	 * 
+	 * @return the number of nodes
+	 */
+	public long getNodeCount() {
+		return this.nodeCount;
+	}
+
+	/**
+	 * Returns the total estimated bytes.
+	 * 
+	 * @return the estimated bytes
+	 */
+	public long getEstimatedBytes() {
+		long total = this.factBytes + this.otherIndexBytes;
+		for (long b : this.indexBytes) {
+			total += b;
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return "MemoryStats [factCount=" + factCount + ", factBytes=" + factBytes + ", bucketCounts="
+				+ Arrays.toString(bucketCounts) + ", indexBytes=" + Arrays.toString(indexBytes) + ", otherIndexBytes="
+				+ otherIndexBytes + ", nodeCount=" + nodeCount + ", estimatedBytes=" + getEstimatedBytes() + "]";
+	}
+
+	// Static methods for estimating the size of common objects.
+
+	private static final int HEADER = 12;
+	private static final int REFERENCE = 4;
+	private static final long HASH_NODE = align(HEADER + 4 + 3 * REFERENCE);
+	private static final int HASH_MAP = 64;
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * Returns the estimated bytes of a hash map or set with the given number of
+	 * entries, not counting the keys and values themselves.
+	 * 
+	 * @param entries
+	 *            the number of entries
+	 * @return the estimated bytes
+	 */
+	public static long hashTableBytes(long entries) {
+		long capacity = 16;
+		while (capacity * 3 < entries * 4) {
+			capacity <<= 1;
+		}
+		return HASH_MAP + arrayBytes(capacity) + HASH_NODE * entries;
+	}
+
+	/**
+	 * Returns the estimated bytes of an object with the given number of
+	 * reference or int fields.
+	 * 
+	 * @param fields
+	 *            the number of fields
+	 * @return the estimated bytes
+	 */
+	public static long objectBytes(int fields) {
+		return align(HEADER + 4 * fields);
+	}
+
+	/**
+	 * Returns the estimated bytes of an array of references with the given
+	 * length, not counting the referenced objects.
+	 * 
+	 * @param length
+	 *            the length of the array
+	 * @return the estimated bytes
+	 */
+	public static long arrayBytes(long length) {
+		return align(16 + REFERENCE * length);
+	}
+
+}
@@ -0,0 +1,478 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An immutable hash map implemented as a hash array mapped trie. Adding or
+ * removing an entry returns a new map that shares all but the path to the
+ * entry with the old one, so both take time logarithmic in the size of the map
+ * and old versions stay valid. Keys must not be null.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+final class PersistentHashMap<K, V> {
+	private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+	/**
+	 * The maximum depth of a path, counting the collision node at the bottom.
+	 */
+	private static final int MAX_DEPTH = 32 / BITS + 2;
+
+	private final Node root;
+	private final int size;
+
+	private PersistentHashMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the empty map.
+	 *
+	 * @return the empty map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentHashMap<K, V> empty() {
+		return (PersistentHashMap<K, V>) EMPTY;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		if (this.root == null) {
+			return null;
+		}
+		return (V) this.root.get(key, hash(key), 0);
+	}
+
+	public boolean containsKey(Object key) {
+		return this.get(key) != null;
+	}
+
+	/**
+	 * Returns a map that additionally maps the key to the value. If the key
+	 * is already mapped to the same value (by identity), this map is returned.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value, which must not be null
+	 * @return the new map
+	 */
+	public PersistentHashMap<K, V> plus(K key, V value) {
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(value);
+		boolean[] added = new boolean[1];
+		Node r = this.root == null ? new BitmapNode(0, new Object[0]) : this.root;
+		Node n = r.plus(key, value, hash(key), 0, added);
+		if (n == this.root) {
+			return this;
+		}
+		return new PersistentHashMap<>(n, added[0] ? this.size + 1 : this.size);
+	}
+
+	/**
+	 * Returns a map without the key. If the key is not mapped, this map is
+	 * returned.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the new map
+	 */
+	public PersistentHashMap<K, V> minus(Object key) {
+		if (this.root == null) {
+			return this;
+		}
+		Node n = this.root.minus(key, hash(key), 0);
+		if (n == this.root) {
+			return this;
+		}
+		if (n == null) {
+			return empty();
+		}
+		return new PersistentHashMap<>(n, this.size - 1);
+	}
+
+	/**
+	 * Returns an unmodifiable set view of the keys.
+	 *
+	 * @return the keys
+	 */
+	public Set<K> keySet() {
+		return new AbstractSet<K>() {
+
+			@Override
+			public Iterator<K> iterator() {
+				return new Iter<>(root, true);
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return o != null && containsKey(o);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the values, in no particular order.
+	 *
+	 * @return the values
+	 */
+	public Iterable<V> values() {
+		return () -> new Iter<>(this.root, false);
+	}
+
+	/**
+	 * Returns the number of trie nodes.
+	 *
+	 * @return the number of nodes
+	 */
+	public int getNodeCount() {
+		return this.root == null ? 0 : this.root.getNodeCount();
+	}
+
+	/**
+	 * Returns an estimate of the bytes used by this map, not counting the keys
+	 * and values themselves.
+	 *
+	 * @return the estimated bytes
+	 */
+	public long getEstimatedBytes() {
+		int nodes = this.getNodeCount();
+		if (nodes == 0) {
+			return 0;
+		}
+		// Every entry and every child node but the root takes two slots of a
+		// node array.
+		return MemoryStats.objectBytes(2) + nodes * (MemoryStats.objectBytes(2) + MemoryStats.arrayBytes(0))
+				+ 8L * (this.size + nodes - 1);
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * A trie node. Its array holds a key and a value for each entry; an entry
+	 * whose key is null stands for a child node, which is in place of the
+	 * value.
+	 */
+	private static abstract class Node {
+		protected final Object[] array;
+
+		protected Node(Object[] array) {
+			this.array = array;
+		}
+
+		public abstract Object get(Object key, int hash, int shift);
+
+		public abstract Node plus(Object key, Object value, int hash, int shift, boolean[] added);
+
+		/**
+		 * Returns the node without the key, this node if the key is absent,
+		 * or null if the node would be empty.
+		 */
+		public abstract Node minus(Object key, int hash, int shift);
+
+		public int getNodeCount() {
+			int n = 1;
+			for (int i = 0; i < this.array.length; i += 2) {
+				if (this.array[i] == null) {
+					n += ((Node) this.array[i + 1]).getNodeCount();
+				}
+			}
+			return n;
+		}
+	}
+
+	private static final class BitmapNode extends Node {
+		private final int bitmap;
+
+		public BitmapNode(int bitmap, Object[] array) {
+			super(array);
+			this.bitmap = bitmap;
+		}
+
+		private int index(int bit) {
+			return 2 * Integer.bitCount(this.bitmap & (bit - 1));
+		}
+
+		@Override
+		public Object get(Object key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((this.bitmap & bit) == 0) {
+				return null;
+			}
+			int idx = this.index(bit);
+			Object k = this.array[idx];
+			if (k == null) {
+				return ((Node) this.array[idx + 1]).get(key, hash, shift + BITS);
+			}
+			return key.equals(k) ? this.array[idx + 1] : null;
+		}
+
+		@Override
+		public Node plus(Object key, Object value, int hash, int shift, boolean[] added) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			int idx = this.index(bit);
+			if ((this.bitmap & bit) == 0) {
+				Object[] a = new Object[this.array.length + 2];
+				System.arraycopy(this.array, 0, a, 0, idx);
+				a[idx] = key;
+				a[idx + 1] = value;
+				System.arraycopy(this.array, idx, a, idx + 2, this.array.length - idx);
+				added[0] = true;
+				return new BitmapNode(this.bitmap | bit, a);
+			}
+			Object k = this.array[idx];
+			Object v = this.array[idx + 1];
+			Object n;
+			if (k == null) {
+				n = ((Node) v).plus(key, value, hash, shift + BITS, added);
+			} else if (key.equals(k)) {
+				n = value;
+			} else {
+				added[0] = true;
+				n = pair(k, v, hash(k), key, value, hash, shift + BITS);
+				k = null;
+			}
+			if (n == v) {
+				return this;
+			}
+			Object[] a = this.array.clone();
+			a[idx] = k;
+			a[idx + 1] = n;
+			return new BitmapNode(this.bitmap, a);
+		}
+
+		@Override
+		public Node minus(Object key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((this.bitmap & bit) == 0) {
+				return this;
+			}
+			int idx = this.index(bit);
+			Object k = this.array[idx];
+			if (k == null) {
+				Node child = (Node) this.array[idx + 1];
+				Node n = child.minus(key, hash, shift + BITS);
+				if (n == child) {
+					return this;
+				}
+				if (n != null) {
+					Object[] a = this.array.clone();
+					if (n.array.length == 2 && n.array[0] != null) {
+						// Pull a single remaining entry up into this node.
+						a[idx] = n.array[0];
+						a[idx + 1] = n.array[1];
+					} else {
+						a[idx + 1] = n;
+					}
+					return new BitmapNode(this.bitmap, a);
+				}
+			} else if (!key.equals(k)) {
+				return this;
+			}
+			if (this.bitmap == bit) {
+				return null;
+			}
+			Object[] a = new Object[this.array.length - 2];
+			System.arraycopy(this.array, 0, a, 0, idx);
+			System.arraycopy(this.array, idx + 2, a, idx, a.length - idx);
+			return new BitmapNode(this.bitmap & ~bit, a);
+		}
+
+		private static Node pair(Object k1, Object v1, int h1, Object k2, Object v2, int h2, int shift) {
+			if (h1 == h2) {
+				return new CollisionNode(h1, new Object[] { k1, v1, k2, v2 });
+			}
+			int b1 = (h1 >>> shift) & MASK;
+			int b2 = (h2 >>> shift) & MASK;
+			if (b1 == b2) {
+				return new BitmapNode(1 << b1, new Object[] { null, pair(k1, v1, h1, k2, v2, h2, shift + BITS) });
+			}
+			Object[] a = b1 < b2 ? new Object[] { k1, v1, k2, v2 } : new Object[] { k2, v2, k1, v1 };
+			return new BitmapNode((1 << b1) | (1 << b2), a);
+		}
+	}
+
+	/**
+	 * A node for keys that have the same hash.
+	 */
+	private static final class CollisionNode extends Node {
+		private final int hash;
+
+		public CollisionNode(int hash, Object[] array) {
+			super(array);
+			this.hash = hash;
+		}
+
+		private int find(Object key) {
+			for (int i = 0; i < this.array.length; i += 2) {
+				if (key.equals(this.array[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public Object get(Object key, int hash, int shift) {
+			int i = this.find(key);
+			return i < 0 ? null : this.array[i + 1];
+		}
+
+		@Override
+		public Node plus(Object key, Object value, int hash, int shift, boolean[] added) {
+			if (hash != this.hash) {
+				Node n = new BitmapNode(1 << ((this.hash >>> shift) & MASK), new Object[] { null, this });
+				return n.plus(key, value, hash, shift, added);
+			}
+			int i = this.find(key);
+			Object[] a;
+			if (i < 0) {
+				a = new Object[this.array.length + 2];
+				System.arraycopy(this.array, 0, a, 0, this.array.length);
+				a[this.array.length] = key;
+				a[this.array.length + 1] = value;
+				added[0] = true;
+			} else if (this.array[i + 1] == value) {
+				return this;
+			} else {
+				a = this.array.clone();
+				a[i + 1] = value;
+			}
+			return new CollisionNode(hash, a);
+		}
+
+		@Override
+		public Node minus(Object key, int hash, int shift) {
+			int i = this.find(key);
+			if (i < 0) {
+				return this;
+			}
+			if (this.array.length == 2) {
+				return null;
+			}
+			Object[] a = new Object[this.array.length - 2];
+			System.arraycopy(this.array, 0, a, 0, i);
+			System.arraycopy(this.array, i + 2, a, i, a.length - i);
+			return new CollisionNode(this.hash, a);
+		}
+	}
+
+	private static final class Iter<T> implements Iterator<T> {
+		private final boolean keys;
+		private final Object[][] arrays = new Object[MAX_DEPTH][];
+		private final int[] indices = new int[MAX_DEPTH];
+		private int depth = -1;
+		private Object next;
+
+		public Iter(Node root, boolean keys) {
+			this.keys = keys;
+			if (root != null) {
+				this.push(root);
+			}
+			this.advance();
+		}
+
+		private void push(Node n) {
+			++this.depth;
+			this.arrays[this.depth] = n.array;
+			this.indices[this.depth] = 0;
+		}
+
+		private void advance() {
+			this.next = null;
+			while (this.depth >= 0) {
+				Object[] a = this.arrays[this.depth];
+				int i = this.indices[this.depth];
+				if (i >= a.length) {
+					this.arrays[this.depth] = null;
+					--this.depth;
+				} else {
+					this.indices[this.depth] = i + 2;
+					if (a[i] == null) {
+						this.push((Node) a[i + 1]);
+					} else {
+						this.next = this.keys ? a[i] : a[i + 1];
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.next != null;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T next() {
+			if (this.next == null) {
+				throw new NoSuchElementException();
+			}
+			Object r = this.next;
+			this.advance();
+			return (T) r;
+		}
+	}
+
+}
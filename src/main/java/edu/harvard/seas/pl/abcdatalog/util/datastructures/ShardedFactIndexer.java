@@ -0,0 +1,363 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
+
+/**
+ * A fact indexer that partitions the facts of each predicate symbol into a
+ * fixed number of independent shards, each of which is a fact indexer of its
+ * own. A fact is stored in the shard given by the hash of the constant at the
+ * shard column of its predicate symbol, so threads that add facts with
+ * different values in that column do not contend on the same maps. A lookup
+ * in which the shard column is bound is routed to a single shard; any other
+ * lookup fans out to every shard.
+ *
+ * The shard column of a predicate symbol can be set explicitly. Otherwise, it
+ * is the argument position that is bound in the most binding patterns
+ * registered for the predicate symbol (see
+ * {@link #addBindingPattern(PredicateSym, Set)}), or the first position if
+ * there are none. The shard column is fixed once the first fact with the
+ * predicate symbol is added or looked up.
+ *
+ */
+public class ShardedFactIndexer implements FactIndexer, FactStatistics, MemoryAccountable {
+	private final FactIndexer[] shards;
+	/**
+	 * The shard column of each predicate symbol that has been fixed.
+	 */
+	private final ConcurrentMap<PredicateSym, Integer> shardColumns = Utilities.createConcurrentMap();
+	/**
+	 * For each predicate symbol, the number of registered binding patterns in
+	 * which each argument position is bound.
+	 */
+	private final Map<PredicateSym, int[]> patternCounts = new HashMap<>();
+
+	/**
+	 * Constructs a sharded fact indexer.
+	 *
+	 * @param nshards
+	 *            the number of shards
+	 * @param shardFactory
+	 *            a supplier of the (empty) fact indexers used as shards
+	 */
+	public ShardedFactIndexer(int nshards, Supplier<? extends FactIndexer> shardFactory) {
+		if (nshards < 1) {
+			throw new IllegalArgumentException("There must be at least one shard.");
+		}
+		this.shards = new FactIndexer[nshards];
+		for (int i = 0; i < nshards; ++i) {
+			this.shards[i] = shardFactory.get();
+		}
+	}
+
+	/**
+	 * Sets the argument position whose value determines the shard of a fact
+	 * with the given predicate symbol. This should be invoked before any facts
+	 * with the predicate symbol are added.
+	 *
+	 * @param pred
+	 *            the predicate symbol
+	 * @param column
+	 *            the argument position
+	 * @throws IllegalStateException
+	 *             if the shard column of the predicate symbol has already been
+	 *             fixed to another position
+	 */
+	public void setShardColumn(PredicateSym pred, int column) {
+		if (column < 0 || column >= pred.getArity()) {
+			throw new IllegalArgumentException("Position " + column + " is out of range for " + pred + ".");
+		}
+		Integer prev = this.shardColumns.putIfAbsent(pred, column);
+		if (prev != null && prev != column) {
+			throw new IllegalStateException("Shard column of " + pred + " has already been fixed.");
+		}
+	}
+
+	private int getShardColumn(PredicateSym pred) {
+		Integer column = this.shardColumns.get(pred);
+		if (column == null) {
+			column = this.shardColumns.computeIfAbsent(pred, this::chooseShardColumn);
+		}
+		return column;
+	}
+
+	private int chooseShardColumn(PredicateSym pred) {
+		synchronized (this.patternCounts) {
+			int[] counts = this.patternCounts.get(pred);
+			int best = 0;
+			for (int i = 1; counts != null && i < counts.length; ++i) {
+				if (counts[i] > counts[best]) {
+					best = i;
+				}
+			}
+			return best;
+		}
+	}
+
+	private FactIndexer getShard(Constant c) {
+		int h = c.hashCode();
+		h ^= h >>> 16;
+		return this.shards[Math.floorMod(h, this.shards.length)];
+	}
+
+	private FactIndexer getShard(PositiveAtom fact) {
+		Term[] args = fact.getArgs();
+		if (args.length == 0) {
+			return this.shards[0];
+		}
+		return this.getShard((Constant) args[this.getShardColumn(fact.getPred())]);
+	}
+
+	@Override
+	public void add(PositiveAtom fact) {
+		this.getShard(fact).add(fact);
+	}
+
+	@Override
+	public void addAll(Iterable<PositiveAtom> facts) {
+		for (PositiveAtom fact : facts) {
+			this.add(fact);
+		}
+	}
+
+	@Override
+	public boolean supportsRemoval() {
+		for (FactIndexer shard : this.shards) {
+			if (!shard.supportsRemoval()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean remove(PositiveAtom fact) {
+		return this.getShard(fact).remove(fact);
+	}
+
+	@Override
+	public void addBindingPattern(PredicateSym pred, Set<Integer> boundPositions) {
+		synchronized (this.patternCounts) {
+			int[] counts = this.patternCounts.computeIfAbsent(pred, k -> new int[pred.getArity()]);
+			for (Integer pos : boundPositions) {
+				++counts[pos];
+			}
+		}
+		for (FactIndexer shard : this.shards) {
+			shard.addBindingPattern(pred, boundPositions);
+		}
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PositiveAtom atom) {
+		return this.indexInto(atom, null);
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PositiveAtom atom, ConstOnlySubstitution subst) {
+		Term[] args = atom.getArgs();
+		if (args.length == 0) {
+			return this.shards[0].indexInto(atom, subst);
+		}
+		Term t = args[this.getShardColumn(atom.getPred())];
+		Constant c = null;
+		if (t instanceof Constant) {
+			c = (Constant) t;
+		} else if (subst != null) {
+			c = subst.get((Variable) t);
+		}
+		if (c != null) {
+			return this.getShard(c).indexInto(atom, subst);
+		}
+		List<Iterable<PositiveAtom>> parts = new ArrayList<>(this.shards.length);
+		for (FactIndexer shard : this.shards) {
+			parts.add(shard.indexInto(atom, subst));
+		}
+		return concat(parts);
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PredicateSym pred) {
+		List<Iterable<PositiveAtom>> parts = new ArrayList<>(this.shards.length);
+		for (FactIndexer shard : this.shards) {
+			parts.add(shard.indexInto(pred));
+		}
+		return concat(parts);
+	}
+
+	private static Iterable<PositiveAtom> concat(List<Iterable<PositiveAtom>> parts) {
+		return () -> new Iterator<PositiveAtom>() {
+			private int next = 0;
+			private Iterator<PositiveAtom> current = null;
+
+			@Override
+			public boolean hasNext() {
+				while (this.current == null || !this.current.hasNext()) {
+					if (this.next == parts.size()) {
+						return false;
+					}
+					this.current = parts.get(this.next++).iterator();
+				}
+				return true;
+			}
+
+			@Override
+			public PositiveAtom next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return this.current.next();
+			}
+		};
+	}
+
+	@Override
+	public Set<PredicateSym> getPreds() {
+		Set<PredicateSym> preds = Utilities.createConcurrentSet();
+		for (FactIndexer shard : this.shards) {
+			preds.addAll(shard.getPreds());
+		}
+		return preds;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (FactIndexer shard : this.shards) {
+			if (!shard.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isExact() {
+		for (FactIndexer shard : this.shards) {
+			if (!shard.isExact()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns an estimate of the memory used for each predicate symbol, which
+	 * adds up the estimates of the shards. Bucket counts are exact for the
+	 * shard column and may be overestimates for the other positions. Shards
+	 * that cannot estimate their memory are left out.
+	 */
+	@Override
+	public Map<PredicateSym, MemoryStats> getMemoryStats() {
+		Map<PredicateSym, MemoryStats> stats = new HashMap<>();
+		for (FactIndexer shard : this.shards) {
+			if (shard instanceof MemoryAccountable) {
+				for (Map.Entry<PredicateSym, MemoryStats> e : ((MemoryAccountable) shard).getMemoryStats().entrySet()) {
+					stats.merge(e.getKey(), e.getValue(), ShardedFactIndexer::add);
+				}
+			}
+		}
+		return stats;
+	}
+
+	private static MemoryStats add(MemoryStats s1, MemoryStats s2) {
+		int arity = s1.getArity();
+		int[] bucketCounts = new int[arity];
+		long[] indexBytes = new long[arity];
+		for (int i = 0; i < arity; ++i) {
+			bucketCounts[i] = s1.getBucketCount(i) + s2.getBucketCount(i);
+			indexBytes[i] = s1.getIndexBytes(i) + s2.getIndexBytes(i);
+		}
+		return new MemoryStats(s1.getFactCount() + s2.getFactCount(), s1.getFactBytes() + s2.getFactBytes(),
+				bucketCounts, indexBytes, s1.getOtherIndexBytes() + s2.getOtherIndexBytes(),
+				s1.getNodeCount() + s2.getNodeCount());
+	}
+
+	/**
+	 * {@inheritDoc} Shards that do not keep statistics are counted.
+	 */
+	@Override
+	public int getCardinality(PredicateSym pred) {
+		int n = 0;
+		for (FactIndexer shard : this.shards) {
+			if (shard instanceof FactStatistics) {
+				n += ((FactStatistics) shard).getCardinality(pred);
+			} else {
+				for (@SuppressWarnings("unused")
+				PositiveAtom fact : shard.indexInto(pred)) {
+					++n;
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * {@inheritDoc} The counts of the shards are added up, which is exact for
+	 * the shard column and may be an overestimate for the other positions.
+	 * Shards that do not keep statistics contribute their number of facts.
+	 */
+	@Override
+	public int getDistinctCount(PredicateSym pred, int pos) {
+		int n = 0;
+		for (FactIndexer shard : this.shards) {
+			if (shard instanceof FactStatistics) {
+				n += ((FactStatistics) shard).getDistinctCount(pred, pos);
+			} else {
+				for (@SuppressWarnings("unused")
+				PositiveAtom fact : shard.indexInto(pred)) {
+					++n;
+				}
+			}
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,312 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.TermVisitor;
+import edu.harvard.seas.pl.abcdatalog.ast.visitors.TermVisitorBuilder;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
+
+/**
+ * A fact indexer that can hand out point-in-time snapshots of itself in
+ * constant time. Like {@link ConcurrentFactIndexer}, it indexes facts by
+ * predicate symbol and then by the constant in each argument position, but
+ * the indices are persistent hash maps: adding or removing a fact builds new
+ * versions of the maps it changes, sharing everything else with the old ones,
+ * and then publishes them. A snapshot keeps the version that is current when
+ * it is taken, so it is never copied, and later changes to either indexer do
+ * not affect the other.
+ *
+ * Lookups do not lock and see the version that was published last; after the
+ * add method returns having been invoked with a fact f, f is visible to all
+ * threads. Adds and removals on the same indexer are serialized, so this
+ * indexer is not meant to be the fact store of a concurrent engine, but to
+ * hand consistent views of a set of facts to readers while facts keep being
+ * added.
+ *
+ */
+public class SnapshotFactIndexer implements FactIndexer, MemoryAccountable {
+	private volatile PersistentHashMap<PredicateSym, Relation> relations;
+
+	/**
+	 * Creates a new, empty fact indexer.
+	 */
+	public SnapshotFactIndexer() {
+		this(PersistentHashMap.empty());
+	}
+
+	private SnapshotFactIndexer(PersistentHashMap<PredicateSym, Relation> relations) {
+		this.relations = relations;
+	}
+
+	@Override
+	public synchronized void add(PositiveAtom fact) {
+		this.relations = plus(this.relations, fact);
+	}
+
+	/**
+	 * Adds the facts to this indexer. They become visible to lookups at once,
+	 * when this method returns.
+	 *
+	 * @param facts
+	 *            the facts
+	 */
+	@Override
+	public synchronized void addAll(Iterable<PositiveAtom> facts) {
+		PersistentHashMap<PredicateSym, Relation> rels = this.relations;
+		for (PositiveAtom fact : facts) {
+			rels = plus(rels, fact);
+		}
+		this.relations = rels;
+	}
+
+	private static PersistentHashMap<PredicateSym, Relation> plus(PersistentHashMap<PredicateSym, Relation> rels,
+			PositiveAtom fact) {
+		assert fact.isGround();
+		PredicateSym pred = fact.getPred();
+		Relation r = rels.get(pred);
+		if (r == null) {
+			r = new Relation(pred.getArity());
+		}
+		Relation n = r.plus(fact);
+		return n == r ? rels : rels.plus(pred, n);
+	}
+
+	@Override
+	public boolean supportsRemoval() {
+		return true;
+	}
+
+	@Override
+	public synchronized boolean remove(PositiveAtom fact) {
+		PredicateSym pred = fact.getPred();
+		Relation r = this.relations.get(pred);
+		if (r == null) {
+			return false;
+		}
+		Relation n = r.minus(fact);
+		if (n == r) {
+			return false;
+		}
+		this.relations = n.all.isEmpty() ? this.relations.minus(pred) : this.relations.plus(pred, n);
+		return true;
+	}
+
+	/**
+	 * Returns a snapshot of this indexer, which contains exactly the facts
+	 * whose add returned before this method was invoked (and possibly some
+	 * that were being added concurrently). This takes constant time. The
+	 * snapshot is itself a fully functional indexer, and changing it does not
+	 * affect this indexer, nor vice versa.
+	 *
+	 * @return the snapshot
+	 */
+	public SnapshotFactIndexer snapshot() {
+		return new SnapshotFactIndexer(this.relations);
+	}
+
+	/**
+	 * Clears this indexer. Snapshots that have been taken of it are
+	 * unaffected.
+	 */
+	public synchronized void clear() {
+		this.relations = PersistentHashMap.empty();
+	}
+
+	@Override
+	public Set<PositiveAtom> indexInto(PositiveAtom atom) {
+		return this.indexInto(atom, null);
+	}
+
+	private static final TermVisitor<ConstOnlySubstitution, Constant> tv = (new TermVisitorBuilder<ConstOnlySubstitution, Constant>())
+			.onConstant((c, s) -> c).onVariable((x, s) -> {
+				if (s != null) {
+					return s.get(x);
+				}
+				return null;
+			}).orCrash();
+
+	@Override
+	public Set<PositiveAtom> indexInto(PositiveAtom atom, ConstOnlySubstitution subst) {
+		Relation r = this.relations.get(atom.getPred());
+		if (r == null) {
+			return Collections.emptySet();
+		}
+		// The sizes of the persistent maps are exact, so pick the smallest
+		// bucket among the bound positions.
+		PersistentHashMap<PositiveAtom, PositiveAtom> best = r.all;
+		Term[] args = atom.getArgs();
+		for (int i = 0; i < args.length; ++i) {
+			Constant c = args[i].accept(tv, subst);
+			if (c != null) {
+				PersistentHashMap<PositiveAtom, PositiveAtom> b = r.byPos[i].get(c);
+				if (b == null) {
+					return Collections.emptySet();
+				}
+				if (b.size() < best.size()) {
+					best = b;
+				}
+			}
+		}
+		return best.keySet();
+	}
+
+	@Override
+	public Set<PositiveAtom> indexInto(PredicateSym pred) {
+		Relation r = this.relations.get(pred);
+		if (r == null) {
+			return Collections.emptySet();
+		}
+		return r.all.keySet();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.relations.isEmpty();
+	}
+
+	@Override
+	public Set<PredicateSym> getPreds() {
+		return this.relations.keySet();
+	}
+
+	/**
+	 * Returns an estimate of the memory used for each predicate symbol by the
+	 * current version of this indexer. Versions share most of their nodes, so
+	 * the estimates of this indexer and of its snapshots overlap. The nodes
+	 * are the trie nodes of all the persistent maps of a predicate symbol.
+	 */
+	@Override
+	public Map<PredicateSym, MemoryStats> getMemoryStats() {
+		PersistentHashMap<PredicateSym, Relation> rels = this.relations;
+		Map<PredicateSym, MemoryStats> stats = new HashMap<>();
+		for (PredicateSym pred : rels.keySet()) {
+			stats.put(pred, rels.get(pred).getMemoryStats());
+		}
+		return stats;
+	}
+
+	/**
+	 * The indices for a single predicate symbol. Instances are immutable.
+	 */
+	private static final class Relation {
+		private final PersistentHashMap<PositiveAtom, PositiveAtom> all;
+		private final PersistentHashMap<Constant, PersistentHashMap<PositiveAtom, PositiveAtom>>[] byPos;
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		public Relation(int arity) {
+			this.all = PersistentHashMap.empty();
+			this.byPos = new PersistentHashMap[arity];
+			for (int i = 0; i < arity; ++i) {
+				this.byPos[i] = PersistentHashMap.empty();
+			}
+		}
+
+		private Relation(PersistentHashMap<PositiveAtom, PositiveAtom> all,
+				PersistentHashMap<Constant, PersistentHashMap<PositiveAtom, PositiveAtom>>[] byPos) {
+			this.all = all;
+			this.byPos = byPos;
+		}
+
+		/**
+		 * Returns the relation with the fact added, or this relation if it
+		 * already holds the fact.
+		 */
+		public Relation plus(PositiveAtom fact) {
+			if (this.all.containsKey(fact)) {
+				return this;
+			}
+			PersistentHashMap<Constant, PersistentHashMap<PositiveAtom, PositiveAtom>>[] idx = this.byPos.clone();
+			Term[] args = fact.getArgs();
+			for (int i = 0; i < args.length; ++i) {
+				Constant c = (Constant) args[i];
+				PersistentHashMap<PositiveAtom, PositiveAtom> b = idx[i].get(c);
+				if (b == null) {
+					b = PersistentHashMap.empty();
+				}
+				idx[i] = idx[i].plus(c, b.plus(fact, fact));
+			}
+			return new Relation(this.all.plus(fact, fact), idx);
+		}
+
+		public MemoryStats getMemoryStats() {
+			int n = this.all.size();
+			int arity = this.byPos.length;
+			long factBytes = this.all.getEstimatedBytes()
+					+ n * (MemoryStats.objectBytes(3) + MemoryStats.arrayBytes(arity));
+			long nodes = this.all.getNodeCount();
+			int[] bucketCounts = new int[arity];
+			long[] indexBytes = new long[arity];
+			for (int i = 0; i < arity; ++i) {
+				PersistentHashMap<Constant, PersistentHashMap<PositiveAtom, PositiveAtom>> idx = this.byPos[i];
+				bucketCounts[i] = idx.size();
+				indexBytes[i] = idx.getEstimatedBytes();
+				nodes += idx.getNodeCount();
+				for (PersistentHashMap<PositiveAtom, PositiveAtom> b : idx.values()) {
+					indexBytes[i] += b.getEstimatedBytes();
+					nodes += b.getNodeCount();
+				}
+			}
+			return new MemoryStats(n, factBytes, bucketCounts, indexBytes, 0, nodes);
+		}
+
+		/**
+		 * Returns the relation with the fact removed, or this relation if it
+		 * does not hold the fact.
+		 */
+		public Relation minus(PositiveAtom fact) {
+			PersistentHashMap<PositiveAtom, PositiveAtom> all = this.all.minus(fact);
+			if (all == this.all) {
+				return this;
+			}
+			PersistentHashMap<Constant, PersistentHashMap<PositiveAtom, PositiveAtom>>[] idx = this.byPos.clone();
+			Term[] args = fact.getArgs();
+			for (int i = 0; i < args.length; ++i) {
+				Constant c = (Constant) args[i];
+				PersistentHashMap<PositiveAtom, PositiveAtom> b = idx[i].get(c).minus(fact);
+				idx[i] = b.isEmpty() ? idx[i].minus(c) : idx[i].plus(c, b);
+			}
+			return new Relation(all, idx);
+		}
+	}
+
+}
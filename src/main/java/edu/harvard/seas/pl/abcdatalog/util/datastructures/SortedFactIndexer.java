@@ -0,0 +1,592 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.ConstOnlySubstitution;
+
+/**
+ * A fact indexer that keeps each relation sorted. A relation can have several
+ * indices, each of which holds the dictionary-encoded facts (see
+ * {@link FactEncoding}) sorted lexicographically by a column order, i.e., a
+ * permutation of the argument positions. Every relation has an index on the
+ * natural column order; more are added through
+ * {@link #addOrder(PredicateSym, int[])} or, for binding patterns, through
+ * {@link #addBindingPattern(PredicateSym, Set)}, which adds an order that
+ * starts with the bound positions.
+ * 
+ * An index answers lookups on any prefix of its column order with a range
+ * scan. A lookup through the indexInto methods uses the index with the longest
+ * bound prefix and returns exactly the matching facts. Clients that want to
+ * merge sorted relations can use the prefix scans, range scans and seeks over
+ * encoded rows that this class provides; rows are then laid out in the column
+ * order of the index, and must not be modified.
+ * 
+ * The indices are concurrent skip lists, so adds never block and iterators are
+ * weakly consistent. Once the add method returns having been invoked with a
+ * fact f, f is visible in all the indices to all threads, even if another
+ * thread was adding f at the same time. A predicate symbol only counts as
+ * present (see {@link #getPreds()}) once a fact has been added for it; column
+ * orders registered before then are kept until its relation is created.
+ *
+ */
+public class SortedFactIndexer implements FactIndexer, MemoryAccountable {
+	private final ConcurrentMap<PredicateSym, Relation> relations = Utilities.createConcurrentMap();
+	/**
+	 * The column orders that have been registered for each predicate symbol,
+	 * besides the natural one. Modified only while holding the lock on this
+	 * indexer.
+	 */
+	private final ConcurrentMap<PredicateSym, List<int[]>> orders = Utilities.createConcurrentMap();
+
+	/**
+	 * Compares encoded rows lexicographically. A row that is a prefix of
+	 * another row comes first.
+	 */
+	public static final Comparator<int[]> ROW_ORDER = (r1, r2) -> {
+		int n = Math.min(r1.length, r2.length);
+		for (int i = 0; i < n; ++i) {
+			int c = Integer.compare(r1[i], r2[i]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return Integer.compare(r1.length, r2.length);
+	};
+
+	private Relation getRelation(PredicateSym pred) {
+		Relation r = this.relations.get(pred);
+		if (r == null) {
+			r = new Relation(pred.getArity());
+			List<int[]> registered = this.orders.get(pred);
+			if (registered != null) {
+				for (int[] order : registered) {
+					r.addOrder(order);
+				}
+			}
+			Relation existing = this.relations.putIfAbsent(pred, r);
+			if (existing != null) {
+				r = existing;
+			}
+		}
+		return r;
+	}
+
+	@Override
+	public void add(PositiveAtom fact) {
+		this.getRelation(fact.getPred()).add(FactEncoding.encode(fact));
+	}
+
+	@Override
+	public void addAll(Iterable<PositiveAtom> facts) {
+		for (PositiveAtom fact : facts) {
+			this.add(fact);
+		}
+	}
+
+	/**
+	 * Adds an index on the given column order of the predicate symbol, and
+	 * indexes the facts that are already present. This should not be invoked
+	 * concurrently with add.
+	 * 
+	 * @param pred
+	 *            the predicate symbol
+	 * @param order
+	 *            a permutation of the argument positions
+	 * @throws IllegalArgumentException
+	 *             if the order is not a permutation of the argument positions
+	 */
+	public synchronized void addOrder(PredicateSym pred, int[] order) {
+		int[] sorted = order.clone();
+		Arrays.sort(sorted);
+		for (int i = 0; i < sorted.length; ++i) {
+			if (sorted[i] != i) {
+				sorted = null;
+				break;
+			}
+		}
+		if (sorted == null || sorted.length != pred.getArity()) {
+			throw new IllegalArgumentException(
+					"Order " + Arrays.toString(order) + " is not a permutation of the positions of " + pred + ".");
+		}
+		this.registerOrder(pred, order.clone());
+	}
+
+	/**
+	 * Records the column order and adds it to the relation if there is one.
+	 * The caller must hold the lock on this indexer.
+	 */
+	private void registerOrder(PredicateSym pred, int[] order) {
+		List<int[]> registered = this.orders.get(pred);
+		if (registered == null) {
+			registered = new CopyOnWriteArrayList<>();
+			this.orders.put(pred, registered);
+		}
+		for (int[] o : registered) {
+			if (Arrays.equals(o, order)) {
+				return;
+			}
+		}
+		registered.add(order);
+		Relation r = this.relations.get(pred);
+		if (r != null) {
+			r.addOrder(order);
+		}
+	}
+
+	/**
+	 * Adds an index whose column order starts with the bound positions (in
+	 * ascending order) and continues with the remaining positions, unless an
+	 * existing index already has the bound positions as a prefix.
+	 */
+	@Override
+	public synchronized void addBindingPattern(PredicateSym pred, Set<Integer> boundPositions) {
+		if (boundPositions.isEmpty()) {
+			return;
+		}
+		int arity = pred.getArity();
+		int[] order = new int[arity];
+		for (int i = 0; i < arity; ++i) {
+			order[i] = i;
+		}
+		if (boundPrefixLength(order, boundPositions) == boundPositions.size()) {
+			return;
+		}
+		List<int[]> registered = this.orders.get(pred);
+		if (registered != null) {
+			for (int[] o : registered) {
+				if (boundPrefixLength(o, boundPositions) == boundPositions.size()) {
+					return;
+				}
+			}
+		}
+		int j = 0;
+		for (int i = 0; i < arity; ++i) {
+			if (boundPositions.contains(i)) {
+				order[j++] = i;
+			}
+		}
+		for (int i = 0; i < arity; ++i) {
+			if (!boundPositions.contains(i)) {
+				order[j++] = i;
+			}
+		}
+		this.registerOrder(pred, order);
+	}
+
+	/**
+	 * Returns the number of leading positions of the order that are bound.
+	 */
+	private static int boundPrefixLength(int[] order, Set<Integer> boundPositions) {
+		int len = 0;
+		while (len < order.length && boundPositions.contains(order[len])) {
+			++len;
+		}
+		return len;
+	}
+
+	/**
+	 * Returns whether this indexer contains the given fact.
+	 *
+	 * @param fact
+	 *            the fact
+	 * @return whether the fact is present
+	 */
+	public boolean contains(PositiveAtom fact) {
+		Relation r = this.relations.get(fact.getPred());
+		return r != null && r.indices.get(0).rows.contains(FactEncoding.encode(fact));
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PositiveAtom atom) {
+		return this.indexInto(atom, null);
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PositiveAtom atom, ConstOnlySubstitution subst) {
+		Relation r = this.relations.get(atom.getPred());
+		if (r == null) {
+			return Collections.emptyList();
+		}
+		int[] key = FactEncoding.encode(atom, subst);
+		SortedIndex best = null;
+		int bestLen = -1;
+		for (SortedIndex idx : r.indices) {
+			int len = idx.boundPrefixLength(key);
+			if (len > bestLen) {
+				best = idx;
+				bestLen = len;
+			}
+		}
+		int[] prefix = new int[bestLen];
+		for (int i = 0; i < bestLen; ++i) {
+			prefix[i] = key[best.order[i]];
+		}
+		// Positions bound beyond the prefix still need to be checked.
+		boolean filter = false;
+		for (int i = bestLen; i < key.length; ++i) {
+			if (key[best.order[i]] != FactEncoding.UNBOUND) {
+				filter = true;
+			}
+		}
+		return best.decode(atom.getPred(), best.prefixScan(prefix), filter ? key : null);
+	}
+
+	@Override
+	public Iterable<PositiveAtom> indexInto(PredicateSym pred) {
+		Relation r = this.relations.get(pred);
+		if (r == null) {
+			return Collections.emptyList();
+		}
+		SortedIndex idx = r.indices.get(0);
+		return idx.decode(pred, idx.rows, null);
+	}
+
+	/**
+	 * Returns, in ascending order, the encoded rows of the index with the given
+	 * column order that start with the given prefix. The rows are laid out in
+	 * the column order of the index.
+	 * 
+	 * @param pred
+	 *            the predicate symbol
+	 * @param order
+	 *            the column order of an existing index
+	 * @param prefix
+	 *            the prefix, in the column order of the index
+	 * @return the rows
+	 * @throws IllegalArgumentException
+	 *             if there is no index with that column order
+	 */
+	public NavigableSet<int[]> prefixScan(PredicateSym pred, int[] order, int[] prefix) {
+		SortedIndex idx = this.getIndex(pred, order);
+		if (idx == null) {
+			return Collections.emptyNavigableSet();
+		}
+		return idx.prefixScan(prefix);
+	}
+
+	/**
+	 * Returns, in ascending order, the encoded rows of the index with the given
+	 * column order that are at least from and less than to. The bounds may be
+	 * shorter than a row; a row that starts with a bound comes after it.
+	 * 
+	 * @param pred
+	 *            the predicate symbol
+	 * @param order
+	 *            the column order of an existing index
+	 * @param from
+	 *            the inclusive lower bound
+	 * @param to
+	 *            the exclusive upper bound
+	 * @return the rows
+	 * @throws IllegalArgumentException
+	 *             if there is no index with that column order
+	 */
+	public NavigableSet<int[]> rangeScan(PredicateSym pred, int[] order, int[] from, int[] to) {
+		SortedIndex idx = this.getIndex(pred, order);
+		if (idx == null || ROW_ORDER.compare(from, to) >= 0) {
+			return Collections.emptyNavigableSet();
+		}
+		return idx.rows.subSet(from, true, to, false);
+	}
+
+	/**
+	 * Returns the least encoded row of the index with the given column order
+	 * that is greater than or equal to the key, or null if there is none. This
+	 * is the seek operation of merge and leapfrog joins.
+	 * 
+	 * @param pred
+	 *            the predicate symbol
+	 * @param order
+	 *            the column order of an existing index
+	 * @param key
+	 *            the key, possibly shorter than a row
+	 * @return the row, or null
+	 * @throws IllegalArgumentException
+	 *             if there is no index with that column order
+	 */
+	public int[] seek(PredicateSym pred, int[] order, int[] key) {
+		SortedIndex idx = this.getIndex(pred, order);
+		if (idx == null) {
+			return null;
+		}
+		return idx.rows.ceiling(key);
+	}
+
+	/**
+	 * Returns the index with the given column order, or null if the predicate
+	 * symbol has no facts.
+	 */
+	private SortedIndex getIndex(PredicateSym pred, int[] order) {
+		Relation r = this.relations.get(pred);
+		if (r == null) {
+			boolean known = order.length == pred.getArity();
+			for (int i = 0; known && i < order.length; ++i) {
+				known = order[i] == i;
+			}
+			List<int[]> registered = this.orders.get(pred);
+			if (!known && registered != null) {
+				for (int[] o : registered) {
+					known |= Arrays.equals(o, order);
+				}
+			}
+			if (!known) {
+				throw new IllegalArgumentException("No index with order " + Arrays.toString(order) + ".");
+			}
+			return null;
+		}
+		for (SortedIndex idx : r.indices) {
+			if (Arrays.equals(idx.order, order)) {
+				return idx;
+			}
+		}
+		throw new IllegalArgumentException("No index with order " + Arrays.toString(order) + ".");
+	}
+
+	@Override
+	public boolean isExact() {
+		return true;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.relations.isEmpty();
+	}
+
+	@Override
+	public Set<PredicateSym> getPreds() {
+		return this.relations.keySet();
+	}
+
+	/**
+	 * Clears this index. Registered column orders are kept.
+	 */
+	public void clear() {
+		this.relations.clear();
+	}
+
+	/**
+	 * Returns an estimate of the memory used for each predicate symbol. The
+	 * facts are the rows of the index on the natural column order; the other
+	 * column orders are not on a single position and are counted as other
+	 * indices, so no position has buckets. The nodes are the skip list nodes
+	 * that hold rows, one per row and index.
+	 */
+	@Override
+	public Map<PredicateSym, MemoryStats> getMemoryStats() {
+		Map<PredicateSym, MemoryStats> stats = new HashMap<>();
+		for (Map.Entry<PredicateSym, Relation> e : this.relations.entrySet()) {
+			int arity = e.getKey().getArity();
+			List<SortedIndex> indices = e.getValue().indices;
+			int n = indices.get(0).rows.size();
+			// Each row has a node, and a quarter of them have an index node
+			// on top of it on average.
+			long perRow = MemoryStats.objectBytes(3) + MemoryStats.objectBytes(3) / 4;
+			long factBytes = MemoryStats.objectBytes(4) + n * (perRow + MemoryStats.arrayBytes(arity));
+			long otherIndexBytes = 0;
+			for (int i = 1; i < indices.size(); ++i) {
+				otherIndexBytes += MemoryStats.objectBytes(4) + n * (perRow + MemoryStats.arrayBytes(arity));
+			}
+			stats.put(e.getKey(), new MemoryStats(n, factBytes, new int[arity], new long[arity], otherIndexBytes,
+					(long) n * indices.size()));
+		}
+		return stats;
+	}
+
+	private static class Relation {
+		/**
+		 * The indices of the relation; the first one has the natural column
+		 * order and only holds a row once all the others do.
+		 */
+		private final List<SortedIndex> indices = new CopyOnWriteArrayList<>();
+
+		public Relation(int arity) {
+			int[] order = new int[arity];
+			for (int i = 0; i < arity; ++i) {
+				order[i] = i;
+			}
+			this.indices.add(new SortedIndex(order));
+		}
+
+		/**
+		 * Adds the row to every index. The natural index is written last, so
+		 * once it holds a row, so do the others; concurrent adds of the same
+		 * row each write the other indices, which is idempotent.
+		 */
+		public void add(int[] row) {
+			ConcurrentSkipListSet<int[]> natural = this.indices.get(0).rows;
+			if (natural.contains(row)) {
+				return;
+			}
+			for (int i = 1; i < this.indices.size(); ++i) {
+				this.indices.get(i).add(row);
+			}
+			natural.add(row);
+		}
+
+		public void addOrder(int[] order) {
+			for (SortedIndex idx : this.indices) {
+				if (Arrays.equals(idx.order, order)) {
+					return;
+				}
+			}
+			SortedIndex idx = new SortedIndex(order);
+			for (int[] row : this.indices.get(0).rows) {
+				idx.add(row);
+			}
+			this.indices.add(idx);
+		}
+	}
+
+	private static class SortedIndex {
+		private final int[] order;
+		private final boolean isNatural;
+		/**
+		 * The rows, with their columns permuted according to the order.
+		 */
+		private final ConcurrentSkipListSet<int[]> rows = new ConcurrentSkipListSet<>(ROW_ORDER);
+
+		public SortedIndex(int[] order) {
+			this.order = order;
+			boolean isNatural = true;
+			for (int i = 0; i < order.length; ++i) {
+				isNatural &= order[i] == i;
+			}
+			this.isNatural = isNatural;
+		}
+
+		public void add(int[] row) {
+			if (this.isNatural) {
+				this.rows.add(row);
+				return;
+			}
+			int[] permuted = new int[row.length];
+			for (int i = 0; i < row.length; ++i) {
+				permuted[i] = row[this.order[i]];
+			}
+			this.rows.add(permuted);
+		}
+
+		/**
+		 * Returns the number of leading positions of the order that are bound
+		 * in the key.
+		 */
+		public int boundPrefixLength(int[] key) {
+			int len = 0;
+			while (len < this.order.length && key[this.order[len]] != FactEncoding.UNBOUND) {
+				++len;
+			}
+			return len;
+		}
+
+		public NavigableSet<int[]> prefixScan(int[] prefix) {
+			if (prefix.length == 0) {
+				return this.rows;
+			}
+			int[] from = prefix;
+			int[] to = prefix.clone();
+			// Identifiers are never negative, so this cannot overflow.
+			++to[to.length - 1];
+			return this.rows.subSet(from, true, to, false);
+		}
+
+		/**
+		 * Returns the facts for some rows of this index, keeping only those
+		 * that match the key if it is not null.
+		 */
+		public Iterable<PositiveAtom> decode(PredicateSym pred, Iterable<int[]> rows, int[] key) {
+			return () -> new Iterator<PositiveAtom>() {
+				private final Iterator<int[]> it = rows.iterator();
+				private int[] next = null;
+
+				@Override
+				public boolean hasNext() {
+					while (this.next == null && this.it.hasNext()) {
+						int[] permuted = this.it.next();
+						int[] row = permuted;
+						if (!isNatural) {
+							row = new int[permuted.length];
+							for (int i = 0; i < permuted.length; ++i) {
+								row[order[i]] = permuted[i];
+							}
+						}
+						if (matches(row, key)) {
+							this.next = row;
+						}
+					}
+					return this.next != null;
+				}
+
+				@Override
+				public PositiveAtom next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					int[] row = this.next;
+					this.next = null;
+					return FactEncoding.decode(pred, row);
+				}
+			};
+		}
+
+		private static boolean matches(int[] row, int[] key) {
+			if (key == null) {
+				return true;
+			}
+			for (int i = 0; i < row.length; ++i) {
+				if (key[i] != FactEncoding.UNBOUND && key[i] != row[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
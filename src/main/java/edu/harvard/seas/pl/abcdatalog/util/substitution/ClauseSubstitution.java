@@ -167,6 +167,55 @@ public class ClauseSubstitution implements ConstOnlySubstitution {
 		this.pos = this.indexByConj[conj];
 	}
 
+	/**
+	 * Returns the position of a variable in this substitution, or -1 if the
+	 * variable does not appear in the clause. Variables are mapped in the
+	 * order of their positions.
+	 * 
+	 * @param x
+	 *            the variable
+	 * @return the position
+	 */
+	public int getIndex(Variable x) {
+		Integer idx = this.index.get(x);
+		return idx == null ? -1 : idx;
+	}
+
+	/**
+	 * Returns the position of the first variable that is mapped by the given
+	 * conjunct of the clause body.
+	 * 
+	 * @param conj
+	 *            the conjunct
+	 * @return the position
+	 */
+	public int getStartIndex(int conj) {
+		return this.indexByConj[conj];
+	}
+
+	/**
+	 * Returns the constant at the given position, which must already have been
+	 * mapped.
+	 * 
+	 * @param idx
+	 *            the position
+	 * @return the constant
+	 */
+	public Constant get(int idx) {
+		assert idx < this.pos;
+		return this.subst[idx];
+	}
+
+	/**
+	 * Maps the next variable to the given constant.
+	 * 
+	 * @param c
+	 *            the constant
+	 */
+	public void push(Constant c) {
+		this.subst[this.pos++] = c;
+	}
+
 	@Override
 	public String toString() {
 		Set<Entry<Variable, Integer>> entries = this.index.entrySet();
@@ -0,0 +1,86 @@
+package edu.harvard.seas.pl.abcdatalog.engine;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveOptions;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+        AdaptiveJoinOrderEngineTest.MyCoreTests.class,
+        AdaptiveJoinOrderEngineTest.MyUnificationTests.class,
+        AdaptiveJoinOrderEngineTest.MyNegationTests.class,
+        AdaptiveJoinOrderEngineTest.MyColumnarCoreTests.class
+})
+public class AdaptiveJoinOrderEngineTest {
+    public static class MyCoreTests extends CoreTests {
+
+        public MyCoreTests() {
+            super(() -> new SemiNaiveEngine(false,
+                    new SemiNaiveOptions().withFactIndexer(FactIndexerFactory.createConcurrentSetFactIndexer()).withAdaptiveJoinOrder()));
+        }
+
+    }
+
+    public static class MyUnificationTests extends ExplicitUnificationTests {
+
+        public MyUnificationTests() {
+            super(() -> new SemiNaiveEngine(false,
+                    new SemiNaiveOptions().withFactIndexer(FactIndexerFactory.createConcurrentSetFactIndexer()).withAdaptiveJoinOrder()));
+        }
+
+    }
+
+    public static class MyNegationTests extends StratifiedNegationTests {
+
+        public MyNegationTests() {
+            super(() -> new SemiNaiveEngine(false,
+                    new SemiNaiveOptions().withFactIndexer(FactIndexerFactory.createConcurrentSetFactIndexer()).withAdaptiveJoinOrder()));
+        }
+
+    }
+
+    public static class MyColumnarCoreTests extends CoreTests {
+
+        public MyColumnarCoreTests() {
+            super(() -> new SemiNaiveEngine(false,
+                    new SemiNaiveOptions().withFactIndexer(FactIndexerFactory.createColumnarFactIndexer()).withAdaptiveJoinOrder()));
+        }
+
+    }
+}
@@ -37,12 +37,18 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent.ConcurrentBottomUpEngine;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactTrie;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         ConcurrentBottomUpEngineTest.MyCoreTests.class,
         ConcurrentBottomUpEngineTest.MyUnificationTests.class,
-        ConcurrentBottomUpEngineTest.MyConjunctiveQueryTests.class
+        ConcurrentBottomUpEngineTest.MyConjunctiveQueryTests.class,
+        ConcurrentBottomUpEngineTest.MyBufferedCoreTests.class,
+        ConcurrentBottomUpEngineTest.MyBufferedUnificationTests.class,
+        ConcurrentBottomUpEngineTest.MySharedPoolCoreTests.class
 })
 public class ConcurrentBottomUpEngineTest {
     public static class MyCoreTests extends CoreTests {
@@ -68,4 +74,31 @@ public class ConcurrentBottomUpEngineTest {
         }
 
     }
+
+    public static class MyBufferedCoreTests extends CoreTests {
+
+        public MyBufferedCoreTests() {
+            super(() -> new ConcurrentBottomUpEngine(FactIndexerFactory.createConcurrentQueueFactIndexer(),
+                    new ConcurrentFactTrie(), false, true));
+        }
+
+    }
+
+    public static class MyBufferedUnificationTests extends ExplicitUnificationTests {
+
+        public MyBufferedUnificationTests() {
+            super(() -> new ConcurrentBottomUpEngine(FactIndexerFactory.createConcurrentQueueFactIndexer(),
+                    new ConcurrentFactTrie(), false, true));
+        }
+
+    }
+
+    public static class MySharedPoolCoreTests extends CoreTests {
+
+        public MySharedPoolCoreTests() {
+            super(() -> new ConcurrentBottomUpEngine(FactIndexerFactory.createConcurrentQueueFactIndexer(),
+                    new ConcurrentFactTrie(), false, false, Utilities.getSharedPool()));
+        }
+
+    }
 }
@@ -37,11 +37,19 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent.ConcurrentChunkedBottomUpEngine;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.ConcurrentFactTrie;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         ConcurrentChunkedBottomUpEngineTest.MyCoreTests.class,
         ConcurrentChunkedBottomUpEngineTest.MyUnificationTests.class,
+        ConcurrentChunkedBottomUpEngineTest.MyAdaptiveCoreTests.class,
+        ConcurrentChunkedBottomUpEngineTest.MyAdaptiveUnificationTests.class,
+        ConcurrentChunkedBottomUpEngineTest.MyBufferedCoreTests.class,
+        ConcurrentChunkedBottomUpEngineTest.MyBufferedUnificationTests.class,
+        ConcurrentChunkedBottomUpEngineTest.MySharedPoolCoreTests.class
 })
 public class ConcurrentChunkedBottomUpEngineTest {
 
@@ -61,6 +69,22 @@ public class ConcurrentChunkedBottomUpEngineTest {
 
     }
 
+    public static class MyAdaptiveCoreTests extends CoreTests {
+
+        public MyAdaptiveCoreTests() {
+            super(() -> new ConcurrentChunkedBottomUpEngine());
+        }
+
+    }
+
+    public static class MyAdaptiveUnificationTests extends ExplicitUnificationTests {
+
+        public MyAdaptiveUnificationTests() {
+            super(() -> new ConcurrentChunkedBottomUpEngine());
+        }
+
+    }
+
     public static class MyConjunctiveQueryTests extends ConjunctiveQueryTests {
 
         public MyConjunctiveQueryTests() {
@@ -68,4 +92,32 @@ public class ConcurrentChunkedBottomUpEngineTest {
         }
 
     }
+
+    public static class MyBufferedCoreTests extends CoreTests {
+
+        public MyBufferedCoreTests() {
+            super(() -> new ConcurrentChunkedBottomUpEngine(4, FactIndexerFactory.createConcurrentQueueFactIndexer(),
+                    new ConcurrentFactTrie(), true));
+        }
+
+    }
+
+    public static class MyBufferedUnificationTests extends ExplicitUnificationTests {
+
+        public MyBufferedUnificationTests() {
+            super(() -> new ConcurrentChunkedBottomUpEngine(4, FactIndexerFactory.createConcurrentQueueFactIndexer(),
+                    new ConcurrentFactTrie(), true));
+        }
+
+    }
+
+    public static class MySharedPoolCoreTests extends CoreTests {
+
+        public MySharedPoolCoreTests() {
+            super(() -> new ConcurrentChunkedBottomUpEngine(ConcurrentChunkedBottomUpEngine.ADAPTIVE_CHUNK_SIZE,
+                    FactIndexerFactory.createConcurrentQueueFactIndexer(), new ConcurrentFactTrie(), false,
+                    Utilities.getSharedPool()));
+        }
+
+    }
 }
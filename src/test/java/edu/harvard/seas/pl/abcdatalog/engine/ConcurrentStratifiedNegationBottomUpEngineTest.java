@@ -33,16 +33,32 @@ package edu.harvard.seas.pl.abcdatalog.engine;
  * #L%
  */
 
+import static org.junit.Assert.assertEquals;
+
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import edu.harvard.seas.pl.abcdatalog.ast.Clause;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidationException;
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent.ConcurrentStratifiedNegationBottomUpEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveEngine;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         ConcurrentStratifiedNegationBottomUpEngineTest.MyCoreTests.class,
         ConcurrentStratifiedNegationBottomUpEngineTest.MyUnificationTests.class,
-        ConcurrentStratifiedNegationBottomUpEngineTest.MyNegationTests.class
+        ConcurrentStratifiedNegationBottomUpEngineTest.MyNegationTests.class,
+        ConcurrentStratifiedNegationBottomUpEngineTest.MySharedPoolNegationTests.class,
+        ConcurrentStratifiedNegationBottomUpEngineTest.MySchedulingTests.class
 })
 public class ConcurrentStratifiedNegationBottomUpEngineTest {
     public static class MyCoreTests extends CoreTests {
@@ -76,4 +92,90 @@ public class ConcurrentStratifiedNegationBottomUpEngineTest {
         }
 
     }
+
+    public static class MySharedPoolNegationTests extends StratifiedNegationTests {
+
+        public MySharedPoolNegationTests() {
+            super(() -> new ConcurrentStratifiedNegationBottomUpEngine(0, Utilities.getSharedPool()));
+        }
+
+    }
+
+    /**
+     * Evaluates programs with many layers of negation, each of which is a
+     * stratum that can only start once the one below it has been saturated,
+     * and compares the results with those of the sequential engine.
+     */
+    public static class MySchedulingTests extends AbstractTests {
+
+        private static final int LAYERS = 12;
+
+        public MySchedulingTests() {
+            super(ConcurrentStratifiedNegationBottomUpEngine::new);
+        }
+
+        /**
+         * Layer k holds the nodes that are not in layer k - 1; each layer
+         * also has a recursive component that depends positively on it, and
+         * the last layer joins two layers that are far apart.
+         */
+        private static String program() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 60; ++i) {
+                sb.append("n(c" + i + "). e(c" + i + ",c" + (i + 1) % 60 + ").");
+                if (i % 3 == 0) {
+                    sb.append("s(c" + i + ").");
+                }
+            }
+            sb.append("l0(X) :- s(X).");
+            for (int k = 1; k < LAYERS; ++k) {
+                sb.append("l" + k + "(X) :- n(X), not l" + (k - 1) + "(X).");
+                sb.append("t" + k + "(X,Y) :- l" + k + "(X), e(X,Y).");
+                sb.append("t" + k + "(X,Y) :- t" + k + "(X,Z), e(Z,Y), not l" + (k - 1) + "(Y).");
+            }
+            sb.append("top(X,Y) :- t1(X,Y), not t" + (LAYERS - 1) + "(Y,X), l" + (LAYERS - 2) + "(Y).");
+            return sb.toString();
+        }
+
+        private void check(Supplier<DatalogEngine> engine) throws DatalogValidationException {
+            Set<Clause> program = parseCode(program());
+            DatalogEngine expected = new SemiNaiveEngine(false);
+            expected.init(program);
+            for (int round = 0; round < 20; ++round) {
+                DatalogEngine e = engine.get();
+                e.init(program);
+                for (int k = 0; k < LAYERS; ++k) {
+                    assertEquals(query(expected, "l" + k, 1), query(e, "l" + k, 1));
+                    if (k > 0) {
+                        assertEquals(query(expected, "t" + k, 2), query(e, "t" + k, 2));
+                    }
+                }
+                assertEquals(query(expected, "top", 2), query(e, "top", 2));
+            }
+        }
+
+        private static Set<PositiveAtom> query(DatalogEngine e, String pred, int arity) {
+            Term[] args = new Term[arity];
+            for (int i = 0; i < arity; ++i) {
+                args[i] = Variable.create("X" + i);
+            }
+            return e.query(PositiveAtom.create(PredicateSym.create(pred, arity), args));
+        }
+
+        @Test(timeout = 60000)
+        public void testNegationLayers() throws DatalogValidationException {
+            check(ConcurrentStratifiedNegationBottomUpEngine::new);
+        }
+
+        @Test(timeout = 60000)
+        public void testNegationLayersOnSharedPool() throws DatalogValidationException {
+            check(() -> new ConcurrentStratifiedNegationBottomUpEngine(0, Utilities.getSharedPool()));
+        }
+
+        @Test(timeout = 60000)
+        public void testNegationLayersWithMergedStrata() throws DatalogValidationException {
+            check(() -> new ConcurrentStratifiedNegationBottomUpEngine(4));
+        }
+
+    }
 }
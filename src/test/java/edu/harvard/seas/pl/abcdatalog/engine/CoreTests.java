@@ -335,6 +335,23 @@ public abstract class CoreTests extends AbstractTests {
 				.containsAll(parseFacts("p(foo1,foo2,foo3,foo4,foo5). p(foo1,foo2,bar,foo4,foo5).")));
 	}
 	
+	@Test
+	public void testRulesWithCyclicBodies() {
+		String program = "tri(X,Y,Z) :- e(X,Y), e(Y,Z), e(Z,X)."
+				+ "e(a,b). e(b,c). e(c,a). e(c,d). e(d,a). e(a,a).";
+		DatalogEngine engine = initEngine(program);
+		Set<PositiveAtom> rs = engine.query(parseQuery("tri(X,Y,Z)?"));
+		assertEquals(4, rs.size());
+		assertTrue(rs.containsAll(parseFacts("tri(a,b,c). tri(b,c,a). tri(c,a,b). tri(a,a,a).")));
+
+		program = "r(X,Y) :- e(X,Y). r(X,Y) :- r(X,Z), r(Z,Y), e(Y,X)."
+				+ "e(a,b). e(b,c). e(c,b). e(c,a).";
+		engine = initEngine(program);
+		rs = engine.query(parseQuery("r(X,Y)?"));
+		assertEquals(6, rs.size());
+		assertTrue(rs.containsAll(parseFacts("r(a,b). r(b,c). r(c,b). r(c,a). r(a,c). r(b,a).")));
+	}
+	
 	@Test
 	public void testRulesWithUnusedVariables1() {
 		String program = "on(L) :- or(L,L1,X), on(L1). or(a,b,c). on(b).";
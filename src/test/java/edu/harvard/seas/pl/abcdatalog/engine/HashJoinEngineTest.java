@@ -0,0 +1,327 @@
+package edu.harvard.seas.pl.abcdatalog.engine;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import edu.harvard.seas.pl.abcdatalog.ast.BinaryDisunifier;
+import edu.harvard.seas.pl.abcdatalog.ast.BinaryUnifier;
+import edu.harvard.seas.pl.abcdatalog.ast.Clause;
+import edu.harvard.seas.pl.abcdatalog.ast.NegatedAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Premise;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidationException;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveOptions;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+        HashJoinEngineTest.MyCoreTests.class,
+        HashJoinEngineTest.MyUnificationTests.class,
+        HashJoinEngineTest.MyNegationTests.class,
+        HashJoinEngineTest.MyColumnarCoreTests.class,
+        HashJoinEngineTest.MyComparisonTests.class
+})
+public class HashJoinEngineTest {
+    /**
+     * Returns options under which every rule that can be evaluated using a hash
+     * join is, whatever the sizes of the relations; with the default
+     * thresholds, the small programs of the test suites never reach them.
+     */
+    private static SemiNaiveOptions forced() {
+        return new SemiNaiveOptions().withHashJoins(1, Integer.MAX_VALUE);
+    }
+
+    public static class MyCoreTests extends CoreTests {
+
+        public MyCoreTests() {
+            super(() -> new SemiNaiveEngine(false, forced()));
+        }
+
+    }
+
+    public static class MyUnificationTests extends ExplicitUnificationTests {
+
+        public MyUnificationTests() {
+            super(() -> new SemiNaiveEngine(false, forced()));
+        }
+
+    }
+
+    public static class MyNegationTests extends StratifiedNegationTests {
+
+        public MyNegationTests() {
+            super(() -> new SemiNaiveEngine(false, forced()));
+        }
+
+    }
+
+    public static class MyColumnarCoreTests extends CoreTests {
+
+        public MyColumnarCoreTests() {
+            super(() -> new SemiNaiveEngine(false,
+                    new SemiNaiveOptions().withFactIndexer(FactIndexerFactory.createColumnarFactIndexer()).withHashJoins(1, Integer.MAX_VALUE)));
+        }
+
+    }
+
+    /**
+     * Compares the facts and justifications derived using hash joins with
+     * those derived fact-at-a-time, on a program whose rules exercise each
+     * kind of premise a hash join handles.
+     */
+    public static class MyComparisonTests extends AbstractTests {
+
+        private static final String rules =
+                "p(X,Y) :- e(X,Y), not f(Y)." +
+                "q(X) :- e(X,Y), X = Y." +
+                "k(X,Z) :- e(X,Y), Z = n2." +
+                "r(X,Y) :- e(X,Y), X != Y." +
+                "s(X) :- e(X,X)." +
+                "u(X) :- e(X,Y), g(Y,Y)." +
+                "c(Y) :- e(n0,Y)." +
+                "d(X) :- e(X,Y), e(Y,n1)." +
+                "t(X,Y,Z) :- e(X,Y), e(Y,Z), e(X,Z)." +
+                "x(X,W) :- s(X), h(W)." +
+                "tc(n0,n0)." +
+                "tc(X,Y) :- e(X,Y)." +
+                "tc(X,Z) :- tc(X,Y), e(Y,Z)." +
+                "nt(X,Y) :- tc(X,Y), not tc(Y,X)." +
+                "w(X) :- tc(X,Y), tc(Y,X), not s(X).";
+
+        public MyComparisonTests() {
+            super(() -> new SemiNaiveEngine(true, new SemiNaiveOptions().withoutLeapfrogJoins()));
+        }
+
+        private static String program(int nodes, int edges, long seed) {
+            Random r = new Random(seed);
+            StringBuilder sb = new StringBuilder(rules);
+            for (int i = 0; i < edges; ++i) {
+                sb.append("e(n" + r.nextInt(nodes) + ",n" + r.nextInt(nodes) + ").");
+            }
+            for (int i = 0; i < nodes; i += 7) {
+                sb.append("e(n" + i + ",n" + i + ").");
+                sb.append("g(n" + (i + 1) + ",n" + (i + 1) + ").");
+            }
+            for (int i = 0; i < nodes; i += 3) {
+                sb.append("f(n" + i + ").");
+            }
+            sb.append("h(a). h(b).");
+            return sb.toString();
+        }
+
+        @Test
+        public void testSequential() throws DatalogValidationException {
+            compare(() -> new SemiNaiveEngine(true, forced().withoutLeapfrogJoins()));
+        }
+
+        @Test
+        public void testParallel() throws DatalogValidationException {
+            compare(() -> new SemiNaiveEngine(true, forced().withoutLeapfrogJoins().withParallelRounds()));
+        }
+
+        @Test
+        public void testColumnar() throws DatalogValidationException {
+            compare(() -> new SemiNaiveEngine(true, forced().withoutLeapfrogJoins()
+                    .withFactIndexer(FactIndexerFactory.createColumnarFactIndexer())));
+        }
+
+        private void compare(Supplier<DatalogEngineWithProvenance> hashJoins) throws DatalogValidationException {
+            for (int seed = 0; seed < 5; ++seed) {
+                String program = program(40, 60 + 20 * seed, seed);
+                Set<Clause> clauses = parseCode(program);
+                DatalogEngineWithProvenance expected = (DatalogEngineWithProvenance) initEngineUnsafe(program);
+                DatalogEngineWithProvenance actual = hashJoins.get();
+                actual.init(clauses);
+                Set<PredicateSym> preds = new HashSet<>();
+                for (Clause cl : clauses) {
+                    preds.add(((PositiveAtom) cl.getHead()).getPred());
+                }
+                for (PredicateSym pred : preds) {
+                    Set<PositiveAtom> facts = expected.query(query(pred));
+                    assertEquals(pred.toString(), facts, actual.query(query(pred)));
+                    for (PositiveAtom fact : facts) {
+                        checkJustification(clauses, expected, fact);
+                        checkJustification(clauses, actual, fact);
+                    }
+                }
+            }
+        }
+
+        private static PositiveAtom query(PredicateSym pred) {
+            Term[] args = new Term[pred.getArity()];
+            for (int i = 0; i < args.length; ++i) {
+                args[i] = Variable.create("X" + i);
+            }
+            return PositiveAtom.create(pred, args);
+        }
+
+        /**
+         * Checks that the justification of the fact is a ground instance of a
+         * clause of the program whose head is the fact and whose premises hold.
+         */
+        private static void checkJustification(Set<Clause> clauses, DatalogEngineWithProvenance e, PositiveAtom fact) {
+            Clause just = e.getJustification(fact);
+            assertNotNull(fact.toString(), just);
+            assertEquals(fact, just.getHead());
+            for (Premise p : just.getBody()) {
+                if (p instanceof PositiveAtom) {
+                    assertTrue(just.toString(), holds(e, (PositiveAtom) p));
+                } else if (p instanceof NegatedAtom) {
+                    assertFalse(just.toString(), holds(e, ((NegatedAtom) p).asPositiveAtom()));
+                } else if (p instanceof BinaryUnifier) {
+                    BinaryUnifier u = (BinaryUnifier) p;
+                    assertEquals(just.toString(), u.getLeft(), u.getRight());
+                } else {
+                    BinaryDisunifier u = (BinaryDisunifier) p;
+                    assertNotEquals(just.toString(), u.getLeft(), u.getRight());
+                }
+            }
+            for (Clause cl : clauses) {
+                if (isInstance(cl, just)) {
+                    return;
+                }
+            }
+            fail(just + " is not an instance of a clause of the program");
+        }
+
+        private static boolean holds(DatalogEngineWithProvenance e, PositiveAtom fact) {
+            return e.query(fact).contains(fact);
+        }
+
+        /**
+         * Returns whether the justification is a ground instance of the clause,
+         * up to the order of the premises (which the engine reorders).
+         */
+        private static boolean isInstance(Clause cl, Clause just) {
+            if (cl.getBody().size() != just.getBody().size()) {
+                return false;
+            }
+            Map<Variable, Term> subst = new HashMap<>();
+            return match(cl.getHead(), just.getHead(), subst)
+                    && matchBody(cl.getBody(), just.getBody(), 0, new boolean[cl.getBody().size()], subst);
+        }
+
+        private static boolean matchBody(List<Premise> body, List<Premise> justBody, int i, boolean[] used,
+                Map<Variable, Term> subst) {
+            if (i == body.size()) {
+                return true;
+            }
+            for (int j = 0; j < justBody.size(); ++j) {
+                if (!used[j]) {
+                    Map<Variable, Term> s = new HashMap<>(subst);
+                    if (match(body.get(i), justBody.get(j), s)) {
+                        used[j] = true;
+                        if (matchBody(body, justBody, i + 1, used, s)) {
+                            return true;
+                        }
+                        used[j] = false;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean match(Object p, Object q, Map<Variable, Term> subst) {
+            List<Term> from = new ArrayList<>();
+            List<Term> to = new ArrayList<>();
+            if (!addTerms(p, q, from, to)) {
+                return false;
+            }
+            for (int i = 0; i < from.size(); ++i) {
+                Term t = from.get(i);
+                if (t instanceof Variable) {
+                    Term old = subst.putIfAbsent((Variable) t, to.get(i));
+                    if (old != null && !old.equals(to.get(i))) {
+                        return false;
+                    }
+                } else if (!t.equals(to.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean addTerms(Object p, Object q, List<Term> from, List<Term> to) {
+            if (p.getClass() != q.getClass()) {
+                return false;
+            }
+            if (p instanceof PositiveAtom || p instanceof NegatedAtom) {
+                PositiveAtom a = p instanceof PositiveAtom ? (PositiveAtom) p : ((NegatedAtom) p).asPositiveAtom();
+                PositiveAtom b = q instanceof PositiveAtom ? (PositiveAtom) q : ((NegatedAtom) q).asPositiveAtom();
+                if (!a.getPred().equals(b.getPred())) {
+                    return false;
+                }
+                for (int i = 0; i < a.getArgs().length; ++i) {
+                    from.add(a.getArgs()[i]);
+                    to.add(b.getArgs()[i]);
+                }
+            } else if (p instanceof BinaryUnifier) {
+                from.add(((BinaryUnifier) p).getLeft());
+                from.add(((BinaryUnifier) p).getRight());
+                to.add(((BinaryUnifier) q).getLeft());
+                to.add(((BinaryUnifier) q).getRight());
+            } else {
+                from.add(((BinaryDisunifier) p).getLeft());
+                from.add(((BinaryDisunifier) p).getRight());
+                to.add(((BinaryDisunifier) q).getLeft());
+                to.add(((BinaryDisunifier) q).getRight());
+            }
+            return true;
+        }
+
+    }
+}
@@ -0,0 +1,165 @@
+package edu.harvard.seas.pl.abcdatalog.engine;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidationException;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.BottomUpEngineFrame;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveOptions;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
+
+public abstract class IncrementalUpdateTests extends AbstractTests {
+
+	public IncrementalUpdateTests(Supplier<DatalogEngine> engineFactory) {
+		super(engineFactory);
+	}
+
+	private void update(DatalogEngine e, String insertions, String deletions) {
+		((BottomUpEngineFrame<?>) e).update(parseFacts(insertions), parseFacts(deletions));
+	}
+
+	private void check(DatalogEngine e, String query, String expected) {
+		Set<PositiveAtom> rs = e.query(parseQuery(query));
+		Set<PositiveAtom> facts = parseFacts(expected);
+		assertEquals(facts.size(), rs.size());
+		assertTrue(rs.containsAll(facts));
+	}
+
+	private static final String TC = "tc(X,Y) :- edge(X,Y). tc(X,Y) :- tc(X,Z), edge(Z,Y).";
+
+	@Test
+	public void testInsertion() {
+		DatalogEngine e = initEngine(TC + "edge(a,b).");
+		update(e, "edge(b,c).", "");
+		check(e, "tc(X,Y)?", "tc(a,b). tc(b,c). tc(a,c).");
+		update(e, "edge(c,a).", "");
+		check(e, "tc(a,X)?", "tc(a,a). tc(a,b). tc(a,c).");
+	}
+
+	@Test
+	public void testDeletion() {
+		DatalogEngine e = initEngine(TC + "edge(a,b). edge(b,c). edge(c,d).");
+		update(e, "", "edge(b,c).");
+		check(e, "tc(X,Y)?", "tc(a,b). tc(c,d).");
+	}
+
+	@Test
+	public void testDeletionWithAlternativeDerivation() {
+		DatalogEngine e = initEngine(TC + "edge(a,b). edge(b,c). edge(a,c). edge(c,d).");
+		update(e, "", "edge(b,c).");
+		check(e, "tc(X,Y)?", "tc(a,b). tc(a,c). tc(a,d). tc(c,d).");
+	}
+
+	@Test
+	public void testDeletionFromCycle() {
+		DatalogEngine e = initEngine(TC + "edge(a,b). edge(b,a). edge(b,c).");
+		update(e, "", "edge(b,a).");
+		check(e, "tc(X,Y)?", "tc(a,b). tc(a,c). tc(b,c).");
+	}
+
+	@Test
+	public void testInsertionDisablesNegatedAtom() {
+		DatalogEngine e = initEngine("p(X) :- q(X), not r(X). r(X) :- s(X). q(a). q(b).");
+		check(e, "p(X)?", "p(a). p(b).");
+		update(e, "s(a).", "");
+		check(e, "p(X)?", "p(b).");
+	}
+
+	@Test
+	public void testDeletionEnablesNegatedAtom() {
+		DatalogEngine e = initEngine("p(X) :- q(X), not r(X). r(X) :- s(X). q(a). q(b). s(a).");
+		check(e, "p(X)?", "p(b).");
+		update(e, "", "s(a).");
+		check(e, "p(X)?", "p(a). p(b).");
+	}
+
+	@Test
+	public void testInitialIdbFacts() {
+		DatalogEngine e = initEngine(TC + "edge(a,b). tc(a,b).");
+		update(e, "", "edge(a,b).");
+		check(e, "tc(X,Y)?", "tc(a,b).");
+		update(e, "", "tc(a,b).");
+		check(e, "tc(X,Y)?", "");
+		update(e, "tc(c,d).", "");
+		check(e, "tc(X,Y)?", "tc(c,d).");
+	}
+
+	@Test
+	public void testInsertionAndDeletionOfSameFact() {
+		DatalogEngine e = initEngine(TC + "edge(a,b).");
+		update(e, "edge(a,b).", "edge(a,b).");
+		check(e, "tc(X,Y)?", "tc(a,b).");
+	}
+
+	@Test
+	public void testDeletionOfAbsentFact() {
+		DatalogEngine e = initEngine(TC + "edge(a,b). edge(b,c).");
+		((BottomUpEngineFrame<?>) e).update(Collections.emptySet(), parseFacts("edge(c,d). tc(a,c)."));
+		check(e, "tc(X,Y)?", "tc(a,b). tc(b,c). tc(a,c).");
+	}
+
+	@Test
+	public void testDeletionFromNonRemovableStore() {
+		DatalogEngine e = new SemiNaiveEngine(false, new SemiNaiveOptions().withFactIndexer(FactIndexerFactory.createColumnarFactIndexer()));
+		try {
+			e.init(parseCode("e(a,b). p(X) :- e(X,Y)."));
+		} catch (DatalogValidationException ex) {
+			throw new AssertionError(ex);
+		}
+		for (int i = 0; i < 2; ++i) {
+			try {
+				update(e, "", "e(a,b).");
+				fail("Deletion should not be supported.");
+			} catch (UnsupportedOperationException ex) {
+				// expected
+			}
+			check(e, "e(X,Y)?", "e(a,b).");
+			check(e, "p(X)?", "p(a).");
+		}
+		update(e, "e(c,d).", "");
+		check(e, "p(X)?", "p(a). p(c).");
+	}
+
+}
@@ -0,0 +1,140 @@
+package edu.harvard.seas.pl.abcdatalog.engine;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent.ConcurrentBottomUpEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveOptions;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.MappedFactIndexer;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+        MappedFactIndexerEngineTest.MySemiNaiveCoreTests.class,
+        MappedFactIndexerEngineTest.MySemiNaiveUnificationTests.class,
+        MappedFactIndexerEngineTest.MySemiNaiveNegationTests.class,
+        MappedFactIndexerEngineTest.MyConcurrentCoreTests.class,
+        MappedFactIndexerEngineTest.MyConcurrentUnificationTests.class
+})
+public class MappedFactIndexerEngineTest {
+    /**
+     * The indexers created for the current test, which are closed (deleting
+     * their files) once it is over, since the engines do not close them.
+     */
+    private static final List<MappedFactIndexer> indexers = new ArrayList<>();
+
+    private static MappedFactIndexer newIndexer() {
+        MappedFactIndexer indexer = new MappedFactIndexer();
+        indexers.add(indexer);
+        return indexer;
+    }
+
+    private static void closeIndexers() {
+        for (MappedFactIndexer indexer : indexers) {
+            indexer.close();
+        }
+        indexers.clear();
+    }
+
+    public static class MySemiNaiveCoreTests extends CoreTests {
+
+        public MySemiNaiveCoreTests() {
+            super(() -> new SemiNaiveEngine(false, new SemiNaiveOptions().withFactIndexer(newIndexer())));
+        }
+
+        @After
+        public void tearDown() {
+            closeIndexers();
+        }
+
+    }
+
+    public static class MySemiNaiveUnificationTests extends ExplicitUnificationTests {
+
+        public MySemiNaiveUnificationTests() {
+            super(() -> new SemiNaiveEngine(false, new SemiNaiveOptions().withFactIndexer(newIndexer())));
+        }
+
+        @After
+        public void tearDown() {
+            closeIndexers();
+        }
+
+    }
+
+    public static class MySemiNaiveNegationTests extends StratifiedNegationTests {
+
+        public MySemiNaiveNegationTests() {
+            super(() -> new SemiNaiveEngine(false, new SemiNaiveOptions().withFactIndexer(newIndexer())));
+        }
+
+        @After
+        public void tearDown() {
+            closeIndexers();
+        }
+
+    }
+
+    public static class MyConcurrentCoreTests extends CoreTests {
+
+        public MyConcurrentCoreTests() {
+            super(() -> new ConcurrentBottomUpEngine(newIndexer()));
+        }
+
+        @After
+        public void tearDown() {
+            closeIndexers();
+        }
+
+    }
+
+    public static class MyConcurrentUnificationTests extends ExplicitUnificationTests {
+
+        public MyConcurrentUnificationTests() {
+            super(() -> new ConcurrentBottomUpEngine(newIndexer()));
+        }
+
+        @After
+        public void tearDown() {
+            closeIndexers();
+        }
+
+    }
+}
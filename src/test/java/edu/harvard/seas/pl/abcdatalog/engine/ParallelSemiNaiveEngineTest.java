@@ -0,0 +1,169 @@
+package edu.harvard.seas.pl.abcdatalog.engine;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Clause;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidationException;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveOptions;
+import edu.harvard.seas.pl.abcdatalog.util.Utilities;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+        ParallelSemiNaiveEngineTest.MyCoreTests.class,
+        ParallelSemiNaiveEngineTest.MyUnificationTests.class,
+        ParallelSemiNaiveEngineTest.MyNegationTests.class,
+        ParallelSemiNaiveEngineTest.MySharedPoolNegationTests.class,
+        ParallelSemiNaiveEngineTest.MyProvenanceTests.class
+})
+public class ParallelSemiNaiveEngineTest {
+    public static class MyCoreTests extends CoreTests {
+
+        public MyCoreTests() {
+            super(() -> SemiNaiveEngine.newParallelEngineWithProvenance());
+        }
+
+    }
+
+    public static class MyUnificationTests extends ExplicitUnificationTests {
+
+        public MyUnificationTests() {
+            super(() -> SemiNaiveEngine.newParallelEngineWithProvenance());
+        }
+
+    }
+
+    public static class MyNegationTests extends StratifiedNegationTests {
+
+        public MyNegationTests() {
+            super(() -> SemiNaiveEngine.newParallelEngineWithProvenance());
+        }
+
+    }
+
+    public static class MySharedPoolNegationTests extends StratifiedNegationTests {
+
+        public MySharedPoolNegationTests() {
+            super(() -> new SemiNaiveEngine(true,
+                    new SemiNaiveOptions().withParallelRounds(Utilities.getSharedPool())));
+        }
+
+    }
+
+    /**
+     * Checks that a parallel evaluation records the same justification for
+     * every fact as a sequential one, on a program in which most facts have
+     * several derivations in the same round.
+     */
+    public static class MyProvenanceTests extends AbstractTests {
+
+        public MyProvenanceTests() {
+            super(() -> new SemiNaiveEngine(true));
+        }
+
+        private static String program(long seed) {
+            Random r = new Random(seed);
+            StringBuilder sb = new StringBuilder();
+            // Each head predicate has a single rule per predicate symbol that
+            // triggers it, so that the order in which an engine happens to
+            // iterate over its rules does not matter.
+            sb.append("tc(X,Y) :- e(X,Y). tc(X,Z) :- tc(X,Y), e(Y,Z). reach(Y) :- tc(n0,Y).");
+            sb.append("hub(X) :- e(X,Y), e(X,Z), Y != Z. lone(X) :- node(X), not hub(X).");
+            // An initial IDB fact that is also derived in the first round.
+            sb.append("s(X,Y) :- f(X,Y). s(n1,n2). f(n1,n2).");
+            for (int i = 0; i < 60; ++i) {
+                sb.append("node(n" + i + ").");
+            }
+            for (int i = 0; i < 400; ++i) {
+                sb.append("e(n" + r.nextInt(60) + ",n" + r.nextInt(60) + ").");
+                sb.append("f(n" + r.nextInt(60) + ",n" + r.nextInt(60) + ").");
+            }
+            return sb.toString();
+        }
+
+        @Test
+        public void testSameJustifications() throws DatalogValidationException {
+            compare(new SemiNaiveOptions());
+        }
+
+        @Test
+        public void testSameJustificationsWithHashJoins() throws DatalogValidationException {
+            compare(new SemiNaiveOptions().withHashJoins(1, Integer.MAX_VALUE));
+        }
+
+        private void compare(SemiNaiveOptions options) throws DatalogValidationException {
+            for (int seed = 0; seed < 3; ++seed) {
+                Set<Clause> program = parseCode(program(seed));
+                DatalogEngineWithProvenance sequential = new SemiNaiveEngine(true, options);
+                sequential.init(program);
+                DatalogEngineWithProvenance parallel = new SemiNaiveEngine(true, options.withParallelRounds());
+                parallel.init(program);
+                Set<PredicateSym> preds = new HashSet<>();
+                for (Clause cl : program) {
+                    preds.add(((PositiveAtom) cl.getHead()).getPred());
+                }
+                for (PredicateSym pred : preds) {
+                    Term[] args = new Term[pred.getArity()];
+                    for (int i = 0; i < args.length; ++i) {
+                        args[i] = Variable.create("X" + i);
+                    }
+                    Set<PositiveAtom> facts = sequential.query(PositiveAtom.create(pred, args));
+                    assertEquals(facts, parallel.query(PositiveAtom.create(pred, args)));
+                    for (PositiveAtom fact : facts) {
+                        Clause just = sequential.getJustification(fact);
+                        assertNotNull(fact.toString(), just);
+                        // Unifiers and disunifiers do not override equals.
+                        assertEquals(just.toString(), parallel.getJustification(fact).toString());
+                    }
+                }
+            }
+        }
+
+    }
+}
@@ -37,13 +37,15 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveOptions;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         SemiNaiveEngineTest.MyCoreTests.class,
         SemiNaiveEngineTest.MyUnificationTests.class,
         SemiNaiveEngineTest.MyNegationTests.class,
-        SemiNaiveEngineTest.MyConjunctiveQueryTests.class
+        SemiNaiveEngineTest.MyConjunctiveQueryTests.class,
+        SemiNaiveEngineTest.MyNoLeapfrogCoreTests.class
 })
 public class SemiNaiveEngineTest {
     public static class MyCoreTests extends CoreTests {
@@ -77,4 +79,12 @@ public class SemiNaiveEngineTest {
         }
 
     }
+
+    public static class MyNoLeapfrogCoreTests extends CoreTests {
+
+        public MyNoLeapfrogCoreTests() {
+            super(() -> new SemiNaiveEngine(true, new SemiNaiveOptions().withoutLeapfrogJoins()));
+        }
+
+    }
 }
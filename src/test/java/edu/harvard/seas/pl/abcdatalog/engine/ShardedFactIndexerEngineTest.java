@@ -0,0 +1,105 @@
+package edu.harvard.seas.pl.abcdatalog.engine;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent.ConcurrentBottomUpEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.concurrent.ConcurrentChunkedBottomUpEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveEngine;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.sequential.SemiNaiveOptions;
+import edu.harvard.seas.pl.abcdatalog.util.datastructures.FactIndexerFactory;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+        ShardedFactIndexerEngineTest.MySemiNaiveCoreTests.class,
+        ShardedFactIndexerEngineTest.MySemiNaiveUnificationTests.class,
+        ShardedFactIndexerEngineTest.MySemiNaiveNegationTests.class,
+        ShardedFactIndexerEngineTest.MyConcurrentCoreTests.class,
+        ShardedFactIndexerEngineTest.MyConcurrentUnificationTests.class,
+        ShardedFactIndexerEngineTest.MyChunkedCoreTests.class
+})
+public class ShardedFactIndexerEngineTest {
+    public static class MySemiNaiveCoreTests extends CoreTests {
+
+        public MySemiNaiveCoreTests() {
+            super(() -> new SemiNaiveEngine(false, new SemiNaiveOptions().withFactIndexer(FactIndexerFactory.createShardedFactIndexer(4))));
+        }
+
+    }
+
+    public static class MySemiNaiveUnificationTests extends ExplicitUnificationTests {
+
+        public MySemiNaiveUnificationTests() {
+            super(() -> new SemiNaiveEngine(false, new SemiNaiveOptions().withFactIndexer(FactIndexerFactory.createShardedFactIndexer(4))));
+        }
+
+    }
+
+    public static class MySemiNaiveNegationTests extends StratifiedNegationTests {
+
+        public MySemiNaiveNegationTests() {
+            super(() -> new SemiNaiveEngine(false, new SemiNaiveOptions().withFactIndexer(FactIndexerFactory.createShardedFactIndexer(4))));
+        }
+
+    }
+
+    public static class MyConcurrentCoreTests extends CoreTests {
+
+        public MyConcurrentCoreTests() {
+            super(() -> new ConcurrentBottomUpEngine(
+                    FactIndexerFactory.createShardedFactIndexer(4, FactIndexerFactory::createConcurrentQueueFactIndexer)));
+        }
+
+    }
+
+    public static class MyConcurrentUnificationTests extends ExplicitUnificationTests {
+
+        public MyConcurrentUnificationTests() {
+            super(() -> new ConcurrentBottomUpEngine(
+                    FactIndexerFactory.createShardedFactIndexer(4, FactIndexerFactory::createConcurrentQueueFactIndexer)));
+        }
+
+    }
+
+    public static class MyChunkedCoreTests extends CoreTests {
+
+        public MyChunkedCoreTests() {
+            super(() -> new ConcurrentChunkedBottomUpEngine(4,
+                    FactIndexerFactory.createShardedFactIndexer(4, FactIndexerFactory::createConcurrentQueueFactIndexer)));
+        }
+
+    }
+}
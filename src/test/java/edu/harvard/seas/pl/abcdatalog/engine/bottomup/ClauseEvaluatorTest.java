@@ -0,0 +1,186 @@
+package edu.harvard.seas.pl.abcdatalog.engine.bottomup;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.DatalogValidator;
+import edu.harvard.seas.pl.abcdatalog.ast.validation.UnstratifiedProgram;
+import edu.harvard.seas.pl.abcdatalog.engine.bottomup.SemiNaiveClauseAnnotator.SemiNaiveClause;
+import edu.harvard.seas.pl.abcdatalog.parser.DatalogParser;
+import edu.harvard.seas.pl.abcdatalog.parser.DatalogTokenizer;
+
+public class ClauseEvaluatorTest {
+
+    private static final PredicateSym q = PredicateSym.create("q", 2);
+    private static final PredicateSym r = PredicateSym.create("r", 2);
+
+    private static PositiveAtom fact(PredicateSym pred, String... args) {
+        Term[] terms = new Term[args.length];
+        for (int i = 0; i < args.length; ++i) {
+            terms[i] = Constant.create(args[i]);
+        }
+        return PositiveAtom.create(pred, terms);
+    }
+
+    /**
+     * Returns the annotated rule that is evaluated starting from q.
+     */
+    private static SemiNaiveClause annotate(String rule) throws Exception {
+        UnstratifiedProgram prog = new DatalogValidator().withBinaryUnificationInRuleBody()
+                .withBinaryDisunificationInRuleBody()
+                .validate(DatalogParser.parseProgram(new DatalogTokenizer(new StringReader(rule))));
+        return new SemiNaiveClauseAnnotator(Collections.singleton(q)).annotate(prog.getRules().iterator().next())
+                .iterator().next();
+    }
+
+    /**
+     * Evaluates a rule on a fixed database, recording the derived facts and
+     * the number of lookups made for each predicate symbol.
+     */
+    private static class Run {
+        private final List<PositiveAtom> derived = new ArrayList<>();
+        private final Map<PredicateSym, Integer> lookups = new HashMap<>();
+        private final ClauseEvaluator eval;
+
+        public Run(SemiNaiveClause cl, List<PositiveAtom> db, boolean compile) {
+            this.eval = new ClauseEvaluator(cl, (head, s) -> derived.add(head.applySubst(s)), (atom, s) -> {
+                lookups.merge(atom.getPred(), 1, Integer::sum);
+                List<PositiveAtom> facts = new ArrayList<>();
+                for (PositiveAtom fact : db) {
+                    if (fact.getPred().equals(atom.getPred())) {
+                        facts.add(fact);
+                    }
+                }
+                return facts;
+            }, compile);
+        }
+
+        public int getLookups(PredicateSym pred) {
+            return this.lookups.getOrDefault(pred, 0);
+        }
+    }
+
+    private static final List<PositiveAtom> qs = Arrays.asList(fact(q, "a1", "b"), fact(q, "a2", "b"),
+            fact(q, "a3", "b"), fact(q, "a4", "c"), fact(q, "a5", "c"), fact(q, "a6", "a6"));
+
+    private static final List<PositiveAtom> db = Arrays.asList(fact(r, "b", "z1"), fact(r, "b", "z2"),
+            fact(r, "c", "z3"), fact(r, "d", "z4"), fact(r, "z1", "a1"), fact(r, "z3", "a5"));
+
+    /**
+     * Evaluates the rule on the q facts both as a batch and a fact at a time,
+     * and checks that both derive the given facts. Returns the batch run.
+     */
+    private static Run check(String rule, boolean compile, Set<PositiveAtom> expected) throws Exception {
+        SemiNaiveClause cl = annotate(rule);
+        Run one = new Run(cl, db, compile);
+        for (PositiveAtom fact : qs) {
+            one.eval.evaluate(fact);
+        }
+        assertEquals(expected, new HashSet<>(one.derived));
+        assertEquals(expected.size(), one.derived.size());
+        Run batch = new Run(cl, db, compile);
+        batch.eval.evaluate(qs);
+        assertEquals(expected, new HashSet<>(batch.derived));
+        assertEquals(expected.size(), batch.derived.size());
+        return batch;
+    }
+
+    /**
+     * The facts that bind the same variables of the second atom share its
+     * lookup.
+     */
+    @Test
+    public void testBatchGroupsFactsByKey() throws Exception {
+        Set<PositiveAtom> expected = new HashSet<>();
+        for (String x : new String[] { "a1", "a2", "a3" }) {
+            expected.add(fact(q, x, "z1"));
+            expected.add(fact(q, x, "z2"));
+        }
+        expected.add(fact(q, "a4", "z3"));
+        expected.add(fact(q, "a5", "z3"));
+        for (boolean compile : new boolean[] { false, true }) {
+            Run batch = check("q(X,Z) :- q(X,Y), r(Y,Z).", compile, expected);
+            // One lookup each for b, c and a6, which matches nothing.
+            assertEquals(3, batch.getLookups(r));
+        }
+    }
+
+    /**
+     * Facts that do not match the first atom are not grouped, and the
+     * premises after the second atom are evaluated from the resumed
+     * substitution.
+     */
+    @Test
+    public void testBatchResumesAfterSecondAtom() throws Exception {
+        for (boolean compile : new boolean[] { false, true }) {
+            check("q(X,Z) :- q(X,b), r(b,Z), r(Z,X).", compile, Collections.singleton(fact(q, "a1", "z1")));
+            check("q(X,Z) :- q(X,c), r(c,Z), r(Z,X).", compile, Collections.singleton(fact(q, "a5", "z3")));
+        }
+    }
+
+    /**
+     * If the second premise is not an atom, the facts are evaluated one at a
+     * time.
+     */
+    @Test
+    public void testBatchWithNonAtomSecondPremise() throws Exception {
+        Set<PositiveAtom> expected = new HashSet<>();
+        for (PositiveAtom fact : qs) {
+            if (fact.getArgs()[0] != fact.getArgs()[1]) {
+                expected.add(fact(q, fact.getArgs()[1].toString(), fact.getArgs()[0].toString()));
+            }
+        }
+        for (boolean compile : new boolean[] { false, true }) {
+            Run batch = check("q(Y,X) :- q(X,Y), X != Y.", compile, expected);
+            assertEquals(0, batch.getLookups(r));
+        }
+    }
+}
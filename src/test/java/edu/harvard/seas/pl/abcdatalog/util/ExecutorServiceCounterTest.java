@@ -0,0 +1,155 @@
+package edu.harvard.seas.pl.abcdatalog.util;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ExecutorServiceCounterTest {
+
+    private static final int NTHREADS = 4;
+    private static final int DEPTH = 8;
+
+    /**
+     * Submits a task that submits two tasks of the next depth, down to
+     * {@link #DEPTH}; 2^(DEPTH + 1) - 1 tasks are run in all.
+     */
+    private static void submitTree(ExecutorServiceCounter exec, AtomicInteger ran, int depth) {
+        exec.submitTask(() -> {
+            ran.incrementAndGet();
+            if (depth < DEPTH) {
+                submitTree(exec, ran, depth + 1);
+                submitTree(exec, ran, depth + 1);
+            }
+        });
+    }
+
+    /**
+     * Submits trees of tasks from several threads that are not workers of the
+     * pool, whose tasks keep submitting tasks from the workers, and then
+     * waits for all of them.
+     */
+    private static void stress(ExecutorService pool, boolean block) throws Exception {
+        for (int round = 0; round < 50; ++round) {
+            ExecutorServiceCounter exec = new ExecutorServiceCounter(pool);
+            AtomicInteger ran = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < NTHREADS; ++t) {
+                threads.add(new Thread(() -> submitTree(exec, ran, 0)));
+            }
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            if (block) {
+                exec.blockUntilFinished();
+            } else {
+                exec.whenFinished().get();
+            }
+            assertEquals(NTHREADS * ((1 << (DEPTH + 1)) - 1), ran.get());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testNestedSubmissionsOnForkJoinPool() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(NTHREADS);
+        try {
+            stress(pool, true);
+            stress(pool, false);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testNestedSubmissionsOnThreadPool() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(NTHREADS);
+        try {
+            stress(pool, true);
+            stress(pool, false);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A task that throws an exception is still counted as finished, and the
+     * exception is reported to the threads waiting for the tasks.
+     */
+    @Test(timeout = 60000)
+    public void testThrowingTask() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(NTHREADS);
+        try {
+            ExecutorServiceCounter exec = new ExecutorServiceCounter(pool);
+            AtomicInteger ran = new AtomicInteger();
+            RuntimeException boom = new RuntimeException("boom");
+            exec.submitTask(() -> {
+                submitTree(exec, ran, 0);
+                throw boom;
+            });
+            try {
+                exec.blockUntilFinished();
+                fail();
+            } catch (CompletionException e) {
+                assertSame(boom, e.getCause());
+            }
+            assertEquals((1 << (DEPTH + 1)) - 1, ran.get());
+            try {
+                exec.whenFinished().get();
+                fail();
+            } catch (ExecutionException e) {
+                assertSame(boom, e.getCause());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+    }
+}
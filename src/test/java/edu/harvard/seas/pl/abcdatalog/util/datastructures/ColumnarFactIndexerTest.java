@@ -0,0 +1,135 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+
+public class ColumnarFactIndexerTest {
+
+    private static final PredicateSym pred = PredicateSym.create("columnarFactIndexerTest", 2);
+
+    private static PositiveAtom fact(int i) {
+        Term[] args = { Constant.create("c" + i), Constant.create("d" + (i % 7)) };
+        return PositiveAtom.create(pred, args);
+    }
+
+    private static PositiveAtom byFirst(int i) {
+        Term[] args = { Constant.create("c" + i), Variable.create("X") };
+        return PositiveAtom.create(pred, args);
+    }
+
+    /**
+     * Adds enough distinct constants for the column indices to be resized
+     * several times, and checks that every one of them can still be found.
+     */
+    @Test
+    public void testColumnIndexGrows() {
+        ColumnarFactIndexer indexer = new ColumnarFactIndexer();
+        int n = 5000;
+        for (int i = 0; i < n; ++i) {
+            indexer.add(fact(i));
+            indexer.add(fact(i));
+        }
+        assertEquals(n, indexer.getCardinality(pred));
+        assertEquals(n, indexer.getDistinctCount(pred, 0));
+        assertEquals(7, indexer.getDistinctCount(pred, 1));
+        for (int i = 0; i < n; ++i) {
+            assertEquals(Collections.singletonList(fact(i)), toList(indexer.indexInto(byFirst(i))));
+        }
+        assertFalse(indexer.indexInto(byFirst(n)).iterator().hasNext());
+        Term[] args = { Variable.create("X"), Constant.create("d3") };
+        List<PositiveAtom> d3 = toList(indexer.indexInto(PositiveAtom.create(pred, args)));
+        assertEquals((n + 3) / 7, d3.size());
+        for (PositiveAtom fact : d3) {
+            assertEquals(Constant.create("d3"), fact.getArgs()[1]);
+        }
+    }
+
+    /**
+     * Looks facts up while they are being added by another thread; once an
+     * add has returned, the fact has to be found through the column index.
+     */
+    @Test
+    public void testLookupsDuringAdds() throws Exception {
+        ColumnarFactIndexer indexer = new ColumnarFactIndexer();
+        int n = 20000;
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < n; ++i) {
+                indexer.add(fact(i));
+            }
+        });
+        Thread reader = new Thread(() -> {
+            try {
+                int seen = 0;
+                while (seen < n) {
+                    int added = indexer.getCardinality(pred);
+                    for (int i = seen; i < added; ++i) {
+                        assertTrue(indexer.indexInto(byFirst(i)).iterator().hasNext());
+                    }
+                    seen = added;
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    private static List<PositiveAtom> toList(Iterable<PositiveAtom> facts) {
+        List<PositiveAtom> l = new ArrayList<>();
+        for (PositiveAtom fact : facts) {
+            l.add(fact);
+        }
+        return l;
+    }
+}
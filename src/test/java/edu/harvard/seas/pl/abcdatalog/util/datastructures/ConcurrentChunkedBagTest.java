@@ -0,0 +1,127 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class ConcurrentChunkedBagTest {
+
+    private static final int NTHREADS = 8;
+
+    /**
+     * Adds elements from several threads while another thread keeps iterating
+     * over the bag. Every iteration has to return each element at most once,
+     * and every element whose add had returned before the iterator was
+     * created.
+     */
+    @Test
+    public void testConcurrentAddAndIterate() throws Exception {
+        int n = 50000;
+        ConcurrentChunkedBag<Integer> bag = new ConcurrentChunkedBag<>();
+        // The number of adds that have returned, for each thread.
+        AtomicIntegerArray done = new AtomicIntegerArray(NTHREADS);
+        CyclicBarrier barrier = new CyclicBarrier(NTHREADS + 1);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < NTHREADS; ++t) {
+            int id = t;
+            threads.add(new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (int i = 0; i < n; ++i) {
+                        bag.add(id * n + i);
+                        done.set(id, i + 1);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                barrier.await();
+                int total;
+                do {
+                    int[] before = new int[NTHREADS];
+                    total = 0;
+                    for (int t = 0; t < NTHREADS; ++t) {
+                        before[t] = done.get(t);
+                        total += before[t];
+                    }
+                    Set<Integer> seen = new HashSet<>();
+                    for (Integer e : bag) {
+                        assertTrue(seen.add(e));
+                    }
+                    for (int t = 0; t < NTHREADS; ++t) {
+                        for (int i = 0; i < before[t]; ++i) {
+                            assertTrue(seen.contains(t * n + i));
+                        }
+                    }
+                } while (total < NTHREADS * n);
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        threads.add(reader);
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(NTHREADS * n, bag.size());
+        Set<Integer> all = new HashSet<>();
+        for (Integer e : bag) {
+            all.add(e);
+        }
+        assertEquals(NTHREADS * n, all.size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testAddNull() {
+        new ConcurrentChunkedBag<Object>().add(null);
+    }
+}
@@ -0,0 +1,218 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+
+public class ConcurrentFactIndexerTest {
+
+    private static final PredicateSym pred = PredicateSym.create("concurrentFactIndexerTest", 2);
+
+    private static final PredicateSym pred3 = PredicateSym.create("concurrentFactIndexerTest", 3);
+
+    private static PositiveAtom fact(String a, String b) {
+        Term[] args = { Constant.create(a), Constant.create(b) };
+        return PositiveAtom.create(pred, args);
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        ConcurrentFactIndexer<Set<PositiveAtom>> indexer = FactIndexerFactory.createConcurrentSetFactIndexer();
+        for (int i = 0; i < 100; ++i) {
+            indexer.add(fact("a" + i, "b" + (i % 7)));
+        }
+        ConcurrentFactIndexer<Set<PositiveAtom>> copy = indexer.getCopy();
+        indexer.add(fact("x", "y"));
+        assertTrue(indexer.remove(fact("a0", "b0")));
+        copy.add(fact("z", "w"));
+
+        assertTrue(copy.indexInto(fact("a0", "b0")).contains(fact("a0", "b0")));
+        assertFalse(copy.indexInto(pred).contains(fact("x", "y")));
+        assertFalse(indexer.indexInto(pred).contains(fact("z", "w")));
+        assertFalse(indexer.indexInto(fact("a0", "b0")).contains(fact("a0", "b0")));
+        assertEquals(100, indexer.indexInto(pred).size());
+        assertEquals(101, copy.indexInto(pred).size());
+    }
+
+    private static PositiveAtom atom(Term a, Term b, Term c) {
+        Term[] args = { a, b, c };
+        return PositiveAtom.create(pred3, args);
+    }
+
+    /**
+     * Builds an indexer in which the constant "hub" is the first argument of
+     * almost every fact, while the other constants are rare.
+     */
+    private static ConcurrentFactIndexer<Set<PositiveAtom>> skewed() {
+        ConcurrentFactIndexer<Set<PositiveAtom>> indexer = FactIndexerFactory.createConcurrentSetFactIndexer();
+        for (int i = 0; i < 1000; ++i) {
+            Constant first = Constant.create(i % 100 == 0 ? "n" + i : "hub");
+            indexer.add(atom(first, Constant.create("b" + (i % 50)), Constant.create("c" + (i / 50))));
+        }
+        return indexer;
+    }
+
+    @Test
+    public void testSkewedLookupUsesSmallestBucket() {
+        ConcurrentFactIndexer<Set<PositiveAtom>> indexer = skewed();
+        Variable x = Variable.create("X");
+        Constant hub = Constant.create("hub");
+        Constant b3 = Constant.create("b3");
+        // Binding the hub rules out almost nothing, so the bucket of b3 is
+        // returned as is.
+        Set<PositiveAtom> byB3 = indexer.indexInto(atom(x, b3, x));
+        assertEquals(20, byB3.size());
+        assertSame(byB3, indexer.indexInto(atom(hub, b3, x)));
+        assertEquals(990, indexer.indexInto(atom(hub, x, x)).size());
+    }
+
+    @Test
+    public void testSelectiveLookupIntersectsTwoSmallestBuckets() {
+        ConcurrentFactIndexer<Set<PositiveAtom>> indexer = skewed();
+        Variable x = Variable.create("X");
+        Constant hub = Constant.create("hub");
+        Constant b3 = Constant.create("b3");
+        Constant c3 = Constant.create("c3");
+        // The buckets of b3 and c3 have 20 and 50 facts, which share a
+        // single fact; the hub bucket is left out of the intersection.
+        Set<PositiveAtom> r = indexer.indexInto(atom(hub, b3, c3));
+        assertNotSame(indexer.indexInto(atom(x, b3, x)), r);
+        Set<PositiveAtom> expected = new HashSet<>();
+        for (PositiveAtom fact : indexer.indexInto(pred3)) {
+            if (fact.getArgs()[1] == b3 && fact.getArgs()[2] == c3) {
+                expected.add(fact);
+            }
+        }
+        assertEquals(1, expected.size());
+        assertEquals(expected, r);
+        assertEquals(expected, new HashSet<>(r));
+        assertFalse(r.contains(atom(hub, b3, Constant.create("c4"))));
+        // The bucket of n0 has a single fact, which is not in the bucket of
+        // b3.
+        Set<PositiveAtom> none = indexer.indexInto(atom(Constant.create("n0"), b3, c3));
+        assertTrue(none.isEmpty());
+        assertEquals(0, none.size());
+    }
+
+    @Test
+    public void testDuplicateAddsAreNotCounted() {
+        ConcurrentFactIndexer<Set<PositiveAtom>> indexer = FactIndexerFactory.createConcurrentSetFactIndexer();
+        for (int i = 0; i < 3; ++i) {
+            indexer.add(fact("a", "b"));
+            indexer.add(fact("a", "c"));
+        }
+        assertEquals(2, indexer.getCardinality(pred));
+        assertEquals(1, indexer.getDistinctCount(pred, 0));
+        assertEquals(2, indexer.getDistinctCount(pred, 1));
+        assertEquals(2, indexer.getMemoryStats().get(pred).getFactCount());
+        assertTrue(indexer.remove(fact("a", "b")));
+        assertEquals(1, indexer.getCardinality(pred));
+    }
+
+    private static Set<PositiveAtom> matching(ConcurrentFactIndexer<Set<PositiveAtom>> indexer, Term b, Term c) {
+        Set<PositiveAtom> r = new HashSet<>();
+        for (PositiveAtom fact : indexer.indexInto(pred3)) {
+            if (fact.getArgs()[1] == b && fact.getArgs()[2] == c) {
+                r.add(fact);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Registers a composite index after some facts have been added, and checks
+     * that lookups binding its positions are answered by it, both for facts
+     * that were backfilled and for facts that were added later.
+     */
+    @Test
+    public void testCompositeIndexBackfill() {
+        ConcurrentFactIndexer<Set<PositiveAtom>> indexer = skewed();
+        Variable x = Variable.create("X");
+        Constant b3 = Constant.create("b3");
+        Constant c3 = Constant.create("c3");
+        indexer.addBindingPattern(pred3, new HashSet<>(Arrays.asList(1, 2)));
+
+        Set<PositiveAtom> r = indexer.indexInto(atom(x, b3, c3));
+        assertEquals(matching(indexer, b3, c3), r);
+        assertEquals(1, r.size());
+        // The composite bucket itself is returned, rather than a view.
+        assertSame(r, indexer.indexInto(atom(x, b3, c3)));
+        // A lookup that binds more positions uses the composite index too.
+        assertSame(r, indexer.indexInto(atom(Constant.create("hub"), b3, c3)));
+
+        PositiveAtom later = atom(Constant.create("later"), b3, c3);
+        indexer.add(later);
+        assertTrue(r.contains(later));
+        assertEquals(2, indexer.indexInto(atom(x, b3, c3)).size());
+
+        PositiveAtom fresh = atom(x, Constant.create("b100"), Constant.create("c100"));
+        assertTrue(indexer.indexInto(fresh).isEmpty());
+        indexer.add(atom(Constant.create("new"), Constant.create("b100"), Constant.create("c100")));
+        assertEquals(1, indexer.indexInto(fresh).size());
+    }
+
+    @Test
+    public void testCompositeIndexIgnoresSinglePositions() {
+        ConcurrentFactIndexer<Set<PositiveAtom>> indexer = skewed();
+        Variable x = Variable.create("X");
+        Constant b3 = Constant.create("b3");
+        Set<PositiveAtom> byB3 = indexer.indexInto(atom(x, b3, x));
+        indexer.addBindingPattern(pred3, new HashSet<>(Arrays.asList(1)));
+        indexer.addBindingPattern(pred3, new HashSet<>(Arrays.asList(0, 1)));
+        // Single positions are served by the per-position index.
+        assertSame(byB3, indexer.indexInto(atom(x, b3, x)));
+        Set<PositiveAtom> r = indexer.indexInto(atom(Constant.create("hub"), b3, x));
+        assertEquals(20, r.size());
+        for (PositiveAtom fact : r) {
+            assertEquals(Constant.create("hub"), fact.getArgs()[0]);
+            assertEquals(b3, fact.getArgs()[1]);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+
+public class ConcurrentTupleHashSetTest {
+
+    private static final int NTHREADS = 8;
+
+    private static List<PositiveAtom> facts(PredicateSym pred, int n) {
+        List<PositiveAtom> facts = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            Term[] args = { Constant.create("c" + i), Constant.create("d" + (i % 7)) };
+            facts.add(PositiveAtom.create(pred, args));
+        }
+        return facts;
+    }
+
+    /**
+     * Adds the same facts from several threads at once, each in its own order,
+     * so that threads keep running into tables that are being resized.
+     */
+    private static int addConcurrently(ConcurrentFactSet set, List<PositiveAtom> facts) throws Exception {
+        AtomicInteger added = new AtomicInteger();
+        CyclicBarrier barrier = new CyclicBarrier(NTHREADS);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < NTHREADS; ++t) {
+            List<PositiveAtom> mine = new ArrayList<>(facts);
+            Collections.shuffle(mine, new Random(t));
+            threads.add(new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (PositiveAtom fact : mine) {
+                        if (set.add(fact)) {
+                            added.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        return added.get();
+    }
+
+    @Test
+    public void testConcurrentAddsDuringResizes() throws Exception {
+        PredicateSym pred = PredicateSym.create("concurrentTupleHashSetTest", 2);
+        for (int n : new int[] { 1, 17, 1000, 50000 }) {
+            for (int round = 0; round < 5; ++round) {
+                ConcurrentTupleHashSet set = new ConcurrentTupleHashSet();
+                List<PositiveAtom> facts = facts(pred, n);
+                assertEquals(n, addConcurrently(set, facts));
+                for (PositiveAtom fact : facts) {
+                    assertFalse(set.add(fact));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentAddsOfDistinctPredicates() throws Exception {
+        ConcurrentTupleHashSet set = new ConcurrentTupleHashSet();
+        List<PositiveAtom> facts = new ArrayList<>();
+        for (int p = 0; p < 4; ++p) {
+            facts.addAll(facts(PredicateSym.create("concurrentTupleHashSetTest" + p, 2), 5000));
+        }
+        assertEquals(facts.size(), addConcurrently(set, facts));
+        assertEquals(0, addConcurrently(set, facts));
+    }
+}
@@ -0,0 +1,148 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+import edu.harvard.seas.pl.abcdatalog.util.substitution.SimpleConstSubstitution;
+
+public class FactEncodingTest {
+
+    private static final int NTHREADS = 8;
+
+    private static final PredicateSym pred = PredicateSym.create("factEncodingTest", 3);
+
+    /**
+     * Creates the same new constants from several threads at once, in
+     * different orders; each has to get a single id, and the ids have to fill
+     * the range between the old and the new number of constants.
+     */
+    @Test
+    public void testConstantIdsAreDense() throws Exception {
+        int n = 10000;
+        int before = Constant.getNumberOfConstants();
+        CyclicBarrier barrier = new CyclicBarrier(NTHREADS);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < NTHREADS; ++t) {
+            int offset = t * n / NTHREADS;
+            threads.add(new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (int i = 0; i < n; ++i) {
+                        Constant c = Constant.create("factEncodingTest" + (i + offset) % n);
+                        assertSame(c, Constant.fromId(c.getId()));
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(before + n, Constant.getNumberOfConstants());
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < n; ++i) {
+            ids.add(Constant.create("factEncodingTest" + i).getId());
+        }
+        for (int id = before; id < before + n; ++id) {
+            assertTrue(ids.contains(id));
+            assertEquals(id, Constant.fromId(id).getId());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeId() {
+        Constant.fromId(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnusedId() {
+        Constant.fromId(Constant.getNumberOfConstants());
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Term[] args = { Constant.create("a"), Constant.create("b"), Constant.create("a") };
+        PositiveAtom fact = PositiveAtom.create(pred, args);
+        int[] row = FactEncoding.encode(fact);
+        int a = Constant.create("a").getId();
+        assertArrayEquals(new int[] { a, Constant.create("b").getId(), a }, row);
+        assertEquals(fact, FactEncoding.decode(pred, row));
+        assertArrayEquals(row, FactEncoding.encode(fact, null));
+    }
+
+    @Test
+    public void testEncodeUnderSubstitution() {
+        Variable x = Variable.create("X");
+        Variable y = Variable.create("Y");
+        Term[] args = { x, Constant.create("b"), y };
+        PositiveAtom atom = PositiveAtom.create(pred, args);
+        int b = Constant.create("b").getId();
+        assertArrayEquals(new int[] { FactEncoding.UNBOUND, b, FactEncoding.UNBOUND },
+                FactEncoding.encode(atom, null));
+        SimpleConstSubstitution s = new SimpleConstSubstitution();
+        s.put(y, Constant.create("c"));
+        assertArrayEquals(new int[] { FactEncoding.UNBOUND, b, Constant.create("c").getId() },
+                FactEncoding.encode(atom, s));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeNonGroundFact() {
+        Term[] args = { Variable.create("X"), Constant.create("b"), Constant.create("c") };
+        FactEncoding.encode(PositiveAtom.create(pred, args));
+    }
+}
@@ -0,0 +1,192 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.engine.topdown.IterativeQsqEngine;
+import edu.harvard.seas.pl.abcdatalog.parser.DatalogParser;
+import edu.harvard.seas.pl.abcdatalog.parser.DatalogTokenizer;
+
+/**
+ * Checks the counts that the memory estimates report on a known relation: ten
+ * facts with ten distinct constants in the first position and three in the
+ * second one, each of which is added twice.
+ */
+public class MemoryAccountableTest {
+
+    private static final PredicateSym pred = PredicateSym.create("memoryAccountableTest", 2);
+
+    private static PositiveAtom fact(int i) {
+        Term[] args = { Constant.create("a" + i), Constant.create("b" + (i % 3)) };
+        return PositiveAtom.create(pred, args);
+    }
+
+    private static MemoryStats fill(FactIndexer indexer) {
+        for (int k = 0; k < 2; ++k) {
+            for (int i = 0; i < 10; ++i) {
+                indexer.add(fact(i));
+            }
+        }
+        Map<PredicateSym, MemoryStats> stats = ((MemoryAccountable) indexer).getMemoryStats();
+        assertEquals(Collections.singleton(pred), stats.keySet());
+        MemoryStats s = stats.get(pred);
+        assertEquals(10, s.getFactCount());
+        assertEquals(2, s.getArity());
+        assertTrue(s.getEstimatedBytes() > 0);
+        return s;
+    }
+
+    private static void assertBuckets(MemoryStats s, int first, int second) {
+        assertEquals(first, s.getBucketCount(0));
+        assertEquals(second, s.getBucketCount(1));
+        assertTrue(s.getIndexBytes(0) > 0);
+        assertTrue(s.getIndexBytes(1) > 0);
+    }
+
+    @Test
+    public void testConcurrentFactIndexer() {
+        MemoryStats s = fill(FactIndexerFactory.createConcurrentSetFactIndexer());
+        assertBuckets(s, 10, 3);
+        assertEquals(0, s.getNodeCount());
+    }
+
+    @Test
+    public void testColumnarFactIndexer() {
+        MemoryStats s = fill(FactIndexerFactory.createColumnarFactIndexer());
+        assertBuckets(s, 10, 3);
+        assertEquals(0, s.getNodeCount());
+    }
+
+    @Test
+    public void testMappedFactIndexer() {
+        try (MappedFactIndexer indexer = new MappedFactIndexer()) {
+            MemoryStats s = fill(indexer);
+            assertBuckets(s, 10, 3);
+            assertEquals(0, s.getNodeCount());
+        }
+    }
+
+    @Test
+    public void testSortedFactIndexer() {
+        SortedFactIndexer indexer = FactIndexerFactory.createSortedFactIndexer();
+        indexer.addOrder(pred, new int[] { 1, 0 });
+        MemoryStats s = fill(indexer);
+        // Sorted indices are not on a single position.
+        assertEquals(0, s.getBucketCount(0));
+        assertEquals(0, s.getBucketCount(1));
+        assertTrue(s.getOtherIndexBytes() > 0);
+        // One node per row in each of the two indices.
+        assertEquals(20, s.getNodeCount());
+    }
+
+    @Test
+    public void testShardedFactIndexer() {
+        ShardedFactIndexer indexer = FactIndexerFactory.createShardedFactIndexer(4);
+        // With the shard column on the second position, each constant of
+        // either position is in a single shard.
+        indexer.setShardColumn(pred, 1);
+        MemoryStats s = fill(indexer);
+        assertBuckets(s, 10, 3);
+    }
+
+    @Test
+    public void testSnapshotFactIndexer() {
+        SnapshotFactIndexer indexer = new SnapshotFactIndexer();
+        MemoryStats s = fill(indexer);
+        assertBuckets(s, 10, 3);
+        // At least one node for the map of all facts, for each of the two
+        // position maps and for each of the 13 buckets.
+        assertTrue(s.getNodeCount() >= 16);
+        SnapshotFactIndexer snapshot = indexer.snapshot();
+        indexer.remove(fact(0));
+        assertBuckets(indexer.getMemoryStats().get(pred), 9, 3);
+        assertBuckets(snapshot.getMemoryStats().get(pred), 10, 3);
+    }
+
+    @Test
+    public void testConcurrentTupleHashSet() {
+        ConcurrentTupleHashSet set = new ConcurrentTupleHashSet();
+        for (int k = 0; k < 2; ++k) {
+            for (int i = 0; i < 10; ++i) {
+                set.add(fact(i));
+            }
+        }
+        MemoryStats s = set.getMemoryStats().get(pred);
+        assertEquals(10, s.getFactCount());
+        assertEquals(0, s.getBucketCount(0));
+        assertEquals(0, s.getNodeCount());
+        assertTrue(s.getFactBytes() > 0);
+    }
+
+    @Test
+    public void testConcurrentFactTrie() {
+        ConcurrentFactTrie trie = new ConcurrentFactTrie();
+        for (int i = 0; i < 10; ++i) {
+            trie.add(fact(i));
+        }
+        MemoryStats s = trie.getMemoryStats().get(pred);
+        assertEquals(10, s.getFactCount());
+        // Level 0 holds the ten first constants, and level 1 the ten facts.
+        assertBuckets(s, 10, 10);
+        // The root and one node per first constant.
+        assertEquals(11, s.getNodeCount());
+    }
+
+    @Test
+    public void testQsqEngineRelations() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10; ++i) {
+            sb.append(fact(i)).append(". ");
+        }
+        IterativeQsqEngine engine = new IterativeQsqEngine();
+        engine.init(DatalogParser.parseProgram(new DatalogTokenizer(new StringReader(sb.toString()))));
+        MemoryStats s = engine.getMemoryStats().get(pred);
+        assertEquals(10, s.getFactCount());
+        assertEquals(0, s.getBucketCount(0));
+        assertEquals(0, s.getNodeCount());
+        assertTrue(s.getFactBytes() > 0);
+    }
+}
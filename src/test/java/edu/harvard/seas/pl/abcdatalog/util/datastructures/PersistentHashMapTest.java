@@ -0,0 +1,139 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PersistentHashMapTest {
+
+    /**
+     * A key whose hash code is chosen by the test, so that keys can collide.
+     */
+    private static final class Key {
+        private final int id;
+        private final int hash;
+
+        Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).id == id;
+        }
+    }
+
+    private static void check(Map<Key, Integer> expected, PersistentHashMap<Key, Integer> m) {
+        assertEquals(expected.size(), m.size());
+        assertEquals(expected.keySet(), m.keySet());
+        for (Map.Entry<Key, Integer> e : expected.entrySet()) {
+            assertEquals(e.getValue(), m.get(e.getKey()));
+        }
+        int n = 0;
+        for (Integer v : m.values()) {
+            assertTrue(expected.containsValue(v));
+            ++n;
+        }
+        assertEquals(expected.size(), n);
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random r = new Random(0);
+        for (int mod : new int[] { 1, 7, 1 << 20, Integer.MAX_VALUE }) {
+            Map<Key, Integer> expected = new HashMap<>();
+            PersistentHashMap<Key, Integer> m = PersistentHashMap.empty();
+            for (int i = 0; i < 3000; ++i) {
+                int id = r.nextInt(500);
+                Key k = new Key(id, id % mod);
+                if (r.nextInt(3) == 0) {
+                    expected.remove(k);
+                    m = m.minus(k);
+                } else {
+                    expected.put(k, i);
+                    m = m.plus(k, i);
+                }
+            }
+            check(expected, m);
+        }
+    }
+
+    @Test
+    public void testOldVersionsAreUnchanged() {
+        PersistentHashMap<Key, Integer> m = PersistentHashMap.empty();
+        Map<Key, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100; ++i) {
+            m = m.plus(new Key(i, i % 10), i);
+            expected.put(new Key(i, i % 10), i);
+        }
+        PersistentHashMap<Key, Integer> old = m;
+        for (int i = 0; i < 100; i += 2) {
+            m = m.minus(new Key(i, i % 10));
+        }
+        m = m.plus(new Key(1, 1), -1);
+        check(expected, old);
+        assertEquals(50, m.size());
+        assertEquals(Integer.valueOf(-1), m.get(new Key(1, 1)));
+        assertNull(m.get(new Key(0, 0)));
+    }
+
+    @Test
+    public void testUnchangedMapIsReturned() {
+        Integer v = 1;
+        PersistentHashMap<Key, Integer> m = PersistentHashMap.<Key, Integer>empty().plus(new Key(0, 0), v);
+        assertSame(m, m.plus(new Key(0, 0), v));
+        assertSame(m, m.minus(new Key(1, 0)));
+        assertSame(m, m.minus(new Key(2, 2)));
+        assertTrue(m.minus(new Key(0, 0)).isEmpty());
+        assertFalse(m.keySet().contains(new Key(1, 0)));
+        assertEquals(new HashSet<>(), PersistentHashMap.empty().keySet());
+    }
+}
@@ -0,0 +1,171 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+
+public class SnapshotFactIndexerTest {
+
+    private static final int NTHREADS = 4;
+
+    private static final PredicateSym pred = PredicateSym.create("snapshotFactIndexerTest", 2);
+
+    private static PositiveAtom fact(int t, int i) {
+        Term[] args = { Constant.create("c" + t + "_" + i), Constant.create("d" + (i % 7)) };
+        return PositiveAtom.create(pred, args);
+    }
+
+    /**
+     * Checks that the facts are in the indexer, looking them up through every
+     * index.
+     */
+    private static void checkContains(SnapshotFactIndexer indexer, Set<PositiveAtom> facts) {
+        Set<PositiveAtom> all = indexer.indexInto(pred);
+        Variable x = Variable.create("X");
+        for (PositiveAtom fact : facts) {
+            Term[] args = fact.getArgs();
+            assertTrue(all.contains(fact));
+            assertTrue(indexer.indexInto(PositiveAtom.create(pred, new Term[] { args[0], x })).contains(fact));
+            assertTrue(indexer.indexInto(PositiveAtom.create(pred, new Term[] { x, args[1] })).contains(fact));
+            assertTrue(indexer.indexInto(fact).contains(fact));
+        }
+    }
+
+    @Test
+    public void testSnapshotsWhileAdding() throws Exception {
+        SnapshotFactIndexer indexer = new SnapshotFactIndexer();
+        int n = 20000;
+        AtomicIntegerArray done = new AtomicIntegerArray(NTHREADS);
+        CyclicBarrier barrier = new CyclicBarrier(NTHREADS + 1);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < NTHREADS; ++t) {
+            int me = t;
+            threads.add(new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (int i = 0; i < n; ++i) {
+                        indexer.add(fact(me, i));
+                        done.set(me, i + 1);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        barrier.await();
+
+        // Each snapshot has to contain the facts whose add had returned, and
+        // must not change afterwards.
+        List<SnapshotFactIndexer> snapshots = new ArrayList<>();
+        List<Set<PositiveAtom>> contents = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            running = false;
+            Set<PositiveAtom> added = new HashSet<>();
+            for (int t = 0; t < NTHREADS; ++t) {
+                int k = done.get(t);
+                running |= k < n;
+                for (int i = 0; i < k; ++i) {
+                    added.add(fact(t, i));
+                }
+            }
+            SnapshotFactIndexer snapshot = indexer.snapshot();
+            checkContains(snapshot, added);
+            snapshots.add(snapshot);
+            contents.add(new HashSet<>(snapshot.indexInto(pred)));
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+
+        for (int i = 0; i < snapshots.size(); ++i) {
+            assertEquals(contents.get(i), snapshots.get(i).indexInto(pred));
+        }
+        Set<PositiveAtom> all = new HashSet<>();
+        for (int t = 0; t < NTHREADS; ++t) {
+            for (int i = 0; i < n; ++i) {
+                all.add(fact(t, i));
+            }
+        }
+        checkContains(indexer, all);
+        assertEquals(all, indexer.indexInto(pred));
+    }
+
+    @Test
+    public void testSnapshotIsIndependent() {
+        SnapshotFactIndexer indexer = new SnapshotFactIndexer();
+        for (int i = 0; i < 100; ++i) {
+            indexer.add(fact(0, i));
+        }
+        SnapshotFactIndexer snapshot = indexer.snapshot();
+        indexer.add(fact(1, 0));
+        assertTrue(indexer.remove(fact(0, 0)));
+        snapshot.add(fact(2, 0));
+        assertTrue(snapshot.remove(fact(0, 1)));
+
+        assertTrue(snapshot.indexInto(fact(0, 0)).contains(fact(0, 0)));
+        assertFalse(snapshot.indexInto(pred).contains(fact(1, 0)));
+        assertTrue(indexer.indexInto(fact(0, 1)).contains(fact(0, 1)));
+        assertFalse(indexer.indexInto(pred).contains(fact(2, 0)));
+
+        assertFalse(indexer.indexInto(fact(0, 0)).contains(fact(0, 0)));
+        assertFalse(indexer.indexInto(pred).contains(fact(0, 0)));
+        assertFalse(snapshot.indexInto(fact(0, 1)).contains(fact(0, 1)));
+        assertEquals(100, indexer.indexInto(pred).size());
+        assertEquals(100, snapshot.indexInto(pred).size());
+    }
+}
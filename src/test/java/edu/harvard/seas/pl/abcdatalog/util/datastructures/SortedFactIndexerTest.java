@@ -0,0 +1,128 @@
+package edu.harvard.seas.pl.abcdatalog.util.datastructures;
+
+/*-
+ * #%L
+ * AbcDatalog
+ * %%
+ * Copyright (C) 2016 - 2021 President and Fellows of Harvard College
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the President and Fellows of Harvard College nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.abcdatalog.ast.Constant;
+import edu.harvard.seas.pl.abcdatalog.ast.PositiveAtom;
+import edu.harvard.seas.pl.abcdatalog.ast.PredicateSym;
+import edu.harvard.seas.pl.abcdatalog.ast.Term;
+import edu.harvard.seas.pl.abcdatalog.ast.Variable;
+
+public class SortedFactIndexerTest {
+
+    private static final int NTHREADS = 8;
+
+    private static final PredicateSym pred = PredicateSym.create("sortedFactIndexerTest", 2);
+
+    private static PositiveAtom fact(int i) {
+        Term[] args = { Constant.create("c" + i), Constant.create("d" + (i % 7)) };
+        return PositiveAtom.create(pred, args);
+    }
+
+    @Test
+    public void testOrdersDoNotAddPredicates() {
+        SortedFactIndexer indexer = new SortedFactIndexer();
+        indexer.addBindingPattern(pred, Collections.singleton(1));
+        indexer.addOrder(pred, new int[] { 1, 0 });
+        assertTrue(indexer.isEmpty());
+        assertTrue(indexer.getPreds().isEmpty());
+        assertTrue(indexer.prefixScan(pred, new int[] { 1, 0 }, new int[0]).isEmpty());
+
+        indexer.add(fact(0));
+        assertEquals(Collections.singleton(pred), indexer.getPreds());
+        Term[] args = { Variable.create("X"), Constant.create("d0") };
+        assertEquals(Arrays.asList(fact(0)), toList(indexer.indexInto(PositiveAtom.create(pred, args))));
+        assertEquals(1, indexer.prefixScan(pred, new int[] { 1, 0 }, new int[0]).size());
+    }
+
+    /**
+     * Adds the same facts from several threads at once; whichever thread adds
+     * a fact, it has to be in every index once the add returns.
+     */
+    @Test
+    public void testConcurrentDuplicateAdds() throws Exception {
+        SortedFactIndexer indexer = new SortedFactIndexer();
+        indexer.addOrder(pred, new int[] { 1, 0 });
+        int n = 20000;
+        CyclicBarrier barrier = new CyclicBarrier(NTHREADS);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < NTHREADS; ++t) {
+            threads.add(new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (int i = 0; i < n; ++i) {
+                        PositiveAtom fact = fact(i);
+                        indexer.add(fact);
+                        int[] row = FactEncoding.encode(fact);
+                        int[] permuted = { row[1], row[0] };
+                        assertTrue(Arrays.equals(permuted, indexer.seek(pred, new int[] { 1, 0 }, permuted)));
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(n, new HashSet<>(toList(indexer.indexInto(pred))).size());
+        assertFalse(indexer.contains(fact(n)));
+    }
+
+    private static List<PositiveAtom> toList(Iterable<PositiveAtom> facts) {
+        List<PositiveAtom> l = new ArrayList<>();
+        for (PositiveAtom fact : facts) {
+            l.add(fact);
+        }
+        return l;
+    }
+}